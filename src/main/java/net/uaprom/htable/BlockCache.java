@@ -0,0 +1,158 @@
+package net.uaprom.htable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *  Decompressed blocks of compressed tables bounded by their total size
+ *
+ *  Blocks are evicted with the clock algorithm: the hand skips blocks
+ *  read since it passed them last time and evicts the first one that was not.
+ *  Hits do not take a lock, so the cache can be shared by many tables
+ *  and threads.
+ */
+public final class BlockCache {
+    private final long capacity;
+    // ring of cached blocks, the hand goes around it
+    private final List<Entry> entries = new ArrayList<>();
+    private int hand;
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     *  @param capacity maximum number of bytes of decompressed blocks
+     */
+    public BlockCache(long capacity) {
+        assert capacity > 0;
+        this.capacity = capacity;
+    }
+
+    static final class Entry {
+        final Entry[] slots;
+        final int block;
+        final ByteBuffer data;
+        boolean referenced;
+
+        Entry(Entry[] slots, int block, ByteBuffer data) {
+            this.slots = slots;
+            this.block = block;
+            this.data = data;
+        }
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     *  @return number of bytes of cached blocks
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int numBlocks() {
+        return entries.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     *  @return number of decompressed blocks
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public double hitRate() {
+        long hits = hits();
+        long lookups = hits + misses();
+        if (lookups == 0) {
+            return 0.0;
+        }
+        return (double) hits / lookups;
+    }
+
+    ByteBuffer hit(Entry entry) {
+        this.hits.increment();
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.data;
+    }
+
+    /**
+     *  Caches a decompressed block in slots[block] unless another thread
+     *  has just done it
+     */
+    ByteBuffer put(Entry[] slots, int block, byte[] data) {
+        this.misses.increment();
+        synchronized (this) {
+            Entry entry = slots[block];
+            if (entry != null) {
+                return entry.data;
+            }
+            evict(data.length);
+            entry = new Entry(slots, block, ByteBuffer.wrap(data));
+            this.entries.add(entry);
+            this.size += data.length;
+            slots[block] = entry;
+            return entry.data;
+        }
+    }
+
+    private void evict(int length) {
+        while (this.size + length > this.capacity && !this.entries.isEmpty()) {
+            if (this.hand >= this.entries.size()) {
+                this.hand = 0;
+            }
+            Entry entry = this.entries.get(this.hand);
+            if (entry.referenced) {
+                entry.referenced = false;
+                this.hand++;
+            } else {
+                remove(this.hand);
+                this.evictions.increment();
+            }
+        }
+    }
+
+    private void remove(int ix) {
+        Entry entry = this.entries.get(ix);
+        Entry last = this.entries.remove(this.entries.size() - 1);
+        if (ix < this.entries.size()) {
+            this.entries.set(ix, last);
+        }
+        entry.slots[entry.block] = null;
+        this.size -= entry.data.capacity();
+    }
+
+    /**
+     *  Drops all cached blocks of one table
+     */
+    synchronized void invalidate(Entry[] slots) {
+        for (int i = this.entries.size() - 1; i >= 0; i--) {
+            if (this.entries.get(i).slots == slots) {
+                remove(i);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BlockCache(capacity=%d, size=%d, hitRate=%.3f, evictions=%d)",
+                             capacity, size(), hitRate(), evictions());
+    }
+}
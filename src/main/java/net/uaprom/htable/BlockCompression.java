@@ -0,0 +1,253 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ *  Table data split into independently LZ4 compressed blocks
+ *
+ *  Format: [<Block>][<BlockEnd:8b>]<Length:8b><BlockBits:1b>
+ *
+ *  Every block but the last holds 2^BlockBits bytes of table data.
+ *  A block that does not shrink is stored as is, so its compressed length
+ *  equals its length. The block index goes after the blocks, thus tables
+ *  can be compressed while they are dumped into a stream.
+ *
+ *  Opened data is read by large readers, blocks are decompressed
+ *  on demand into a {@link BlockCache} shared by many tables.
+ */
+public final class BlockCompression {
+    private BlockCompression() {}
+
+    public static final int DEFAULT_BLOCK_BITS = 16;
+    public static final int MIN_BLOCK_BITS = 10;
+    public static final int MAX_BLOCK_BITS = 24;
+
+    private static final int FOOTER_SIZE = 9;
+
+    public static byte[] compress(byte[] data) {
+        return compress(data, DEFAULT_BLOCK_BITS);
+    }
+
+    public static byte[] compress(byte[] data, int blockBits) {
+        SegmentedBytes.Sink sink = new SegmentedBytes.Sink();
+        Output out = new Output(sink, blockBits);
+        try {
+            out.write(data, 0, data.length);
+            out.finish();
+        } catch (IOException e) {
+            // sink never throws
+            throw new IllegalStateException(e);
+        }
+        byte[] compressed = new byte[(int) sink.length()];
+        sink.toBytes().get(0, compressed, 0, compressed.length);
+        return compressed;
+    }
+
+    public static SegmentedBytes open(byte[] data, BlockCache cache) {
+        return open(SegmentedBytes.wrap(data), cache);
+    }
+
+    /**
+     *  @param data compressed table, usually memory mapped
+     *  @return bytes of the decompressed table
+     */
+    public static SegmentedBytes open(SegmentedBytes data, BlockCache cache) {
+        if (data.length() < FOOTER_SIZE) {
+            throw new IllegalArgumentException("Compressed data is too short: " + data.length());
+        }
+        long footerOffset = data.length() - FOOTER_SIZE;
+        long length = data.load(footerOffset, 8);
+        int blockBits = data.get(footerOffset + 8);
+        if (blockBits < MIN_BLOCK_BITS || blockBits > MAX_BLOCK_BITS) {
+            throw new IllegalArgumentException("Invalid block bits: " + blockBits);
+        }
+        long numBlocks = (length + (1L << blockBits) - 1) >>> blockBits;
+        long indexOffset = footerOffset - numBlocks * 8;
+        if (length < 0 || numBlocks > Integer.MAX_VALUE || indexOffset < 0) {
+            throw new IllegalArgumentException("Invalid compressed data length: " + length);
+        }
+        long[] blockEnds = new long[(int) numBlocks];
+        for (int i = 0; i < blockEnds.length; i++) {
+            blockEnds[i] = data.load(indexOffset + i * 8L, 8);
+        }
+        return new SegmentedBytes(new Blocks(data, blockEnds, blockBits, length, cache));
+    }
+
+    /**
+     *  Decompresses blocks of one table through the cache
+     */
+    static final class Blocks {
+        final SegmentedBytes data;
+        final long[] blockEnds;
+        final int blockBits;
+        final long length;
+        final BlockCache cache;
+        // cached blocks, filled in and cleared by the cache
+        private final BlockCache.Entry[] slots;
+
+        Blocks(SegmentedBytes data, long[] blockEnds, int blockBits, long length, BlockCache cache) {
+            this.data = data;
+            this.blockEnds = blockEnds;
+            this.blockBits = blockBits;
+            this.length = length;
+            this.cache = cache;
+            this.slots = new BlockCache.Entry[blockEnds.length];
+        }
+
+        int numBlocks() {
+            return blockEnds.length;
+        }
+
+        ByteBuffer block(int ix) {
+            BlockCache.Entry entry = this.slots[ix];
+            if (entry != null) {
+                return this.cache.hit(entry);
+            }
+            return this.cache.put(this.slots, ix, decompress(ix));
+        }
+
+        private byte[] decompress(int ix) {
+            long start = ix == 0 ? 0 : this.blockEnds[ix - 1];
+            int compressedLength = (int) (this.blockEnds[ix] - start);
+            int blockLength = (int) Math.min(1L << this.blockBits, this.length - ((long) ix << this.blockBits));
+            byte[] compressed = new byte[compressedLength];
+            this.data.get(start, compressed, 0, compressedLength);
+            if (compressedLength == blockLength) {
+                return compressed;
+            }
+            byte[] block = new byte[blockLength];
+            Lz4.decompress(compressed, 0, compressedLength, block, 0, blockLength);
+            return block;
+        }
+
+        boolean release() {
+            this.cache.invalidate(this.slots);
+            return this.data.unmap();
+        }
+    }
+
+    /**
+     *  Compresses written table data block by block,
+     *  {@link #finish()} writes the block index
+     */
+    public static final class Output extends OutputStream {
+        private final OutputStream out;
+        private final int blockBits;
+        private final byte[] block;
+        private final byte[] compressed;
+        private final int[] hashTable = Lz4.newHashTable();
+        private int position;
+        private long length;
+        private long compressedLength;
+        private long[] blockEnds = new long[16];
+        private int numBlocks;
+        private boolean finished;
+
+        public Output(OutputStream out) {
+            this(out, DEFAULT_BLOCK_BITS);
+        }
+
+        public Output(OutputStream out, int blockBits) {
+            assert blockBits >= MIN_BLOCK_BITS && blockBits <= MAX_BLOCK_BITS;
+            this.out = out;
+            this.blockBits = blockBits;
+            this.block = new byte[1 << blockBits];
+            this.compressed = new byte[Lz4.maxCompressedLength(1 << blockBits)];
+        }
+
+        /**
+         *  @return number of written bytes of table data
+         */
+        public long length() {
+            return length;
+        }
+
+        /**
+         *  @return number of bytes written into the underlying stream
+         */
+        public long compressedLength() {
+            return compressedLength;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            assert !this.finished;
+            this.block[this.position++] = (byte) b;
+            this.length++;
+            if (this.position == this.block.length) {
+                writeBlock();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            assert !this.finished;
+            while (len > 0) {
+                int n = Math.min(len, this.block.length - this.position);
+                System.arraycopy(b, off, this.block, this.position, n);
+                this.position += n;
+                this.length += n;
+                off += n;
+                len -= n;
+                if (this.position == this.block.length) {
+                    writeBlock();
+                }
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            int n = Lz4.compress(this.block, 0, this.position, this.compressed, 0, this.hashTable);
+            if (n < this.position) {
+                writeOut(this.compressed, n);
+            } else {
+                writeOut(this.block, this.position);
+            }
+            if (this.numBlocks == this.blockEnds.length) {
+                this.blockEnds = Arrays.copyOf(this.blockEnds, this.numBlocks * 2);
+            }
+            this.blockEnds[this.numBlocks++] = this.compressedLength;
+            this.position = 0;
+        }
+
+        private void writeOut(byte[] data, int n) throws IOException {
+            this.out.write(data, 0, n);
+            this.compressedLength += n;
+        }
+
+        /**
+         *  Compresses the last block and writes the index,
+         *  the underlying stream stays open
+         */
+        public void finish() throws IOException {
+            if (this.finished) {
+                return;
+            }
+            if (this.position > 0) {
+                writeBlock();
+            }
+            byte[] index = new byte[this.numBlocks * 8 + FOOTER_SIZE];
+            for (int i = 0; i < this.numBlocks; i++) {
+                System.arraycopy(ByteUtils.longToBytes(this.blockEnds[i]), 0, index, i * 8, 8);
+            }
+            System.arraycopy(ByteUtils.longToBytes(this.length), 0, index, this.numBlocks * 8, 8);
+            index[index.length - 1] = (byte) this.blockBits;
+            writeOut(index, index.length);
+            this.finished = true;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+            this.out.close();
+        }
+    }
+}
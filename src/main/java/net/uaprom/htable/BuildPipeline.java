@@ -0,0 +1,291 @@
+package net.uaprom.htable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ *  Builds many independent tables concurrently
+ *
+ *  Tables are submitted from one thread, built by the executor
+ *  and passed to the sink in submission order. Submitting blocks while
+ *  maxInFlight tables are being built or wait for earlier ones to be sunk,
+ *  so memory stays bounded when the sink is slower than the builds.
+ *  Builds take writers from a pool, so every writer is used
+ *  by one build at a time and can reuse its scratch.
+ */
+public final class BuildPipeline implements Closeable {
+    public interface WriterFactory {
+        HashTable.Writer newWriter();
+    }
+
+    public interface Sink {
+        /**
+         *  Called for one table at a time in submission order
+         */
+        void accept(long docId, byte[] table) throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Sink sink;
+    private final BlockingQueue<HashTable.Writer> writers;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+
+    // built tables waiting for earlier ones, keyed by sequence number
+    private final ConcurrentMap<Long, Built> built = new ConcurrentHashMap<>();
+    private final Object sinkLock = new Object();
+    private long nextSubmitted;
+    private long nextSunk;
+    private volatile Throwable failure;
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder tables = new LongAdder();
+    private final LongAdder keys = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final LongAdder buildNanos = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+
+    /**
+     *  Builds on a new fixed pool, or on virtual threads when they are available
+     */
+    public BuildPipeline(WriterFactory writerFactory, int parallelism, int maxInFlight, Sink sink) {
+        this(writerFactory, newExecutor(parallelism), true, parallelism, maxInFlight, sink);
+    }
+
+    /**
+     *  @param parallelism number of pooled writers, builds beyond it wait for a writer
+     */
+    public BuildPipeline(WriterFactory writerFactory, ExecutorService executor, int parallelism, int maxInFlight, Sink sink) {
+        this(writerFactory, executor, false, parallelism, maxInFlight, sink);
+    }
+
+    private BuildPipeline(WriterFactory writerFactory, ExecutorService executor, boolean ownsExecutor,
+                          int parallelism, int maxInFlight, Sink sink) {
+        assert parallelism > 0;
+        assert maxInFlight >= parallelism;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.sink = sink;
+        this.writers = new ArrayBlockingQueue<>(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            HashTable.Writer writer = writerFactory.newWriter();
+            writer.setReuseScratch(true);
+            this.writers.add(writer);
+        }
+        this.inFlight = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     *  @return executor running every task on a new virtual thread,
+     *      or a fixed pool of platform threads before Java 21
+     */
+    static ExecutorService newExecutor(int parallelism) {
+        try {
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return (ExecutorService) executor;
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(parallelism);
+        }
+    }
+
+    public void submit(long docId, long[] keys, byte[][] values) throws IOException, InterruptedException {
+        assert keys.length == values.length;
+        submit(docId, keys, new Values.ByteArrays(values));
+    }
+
+    public void submitInts(long docId, long[] keys, int[] values) throws IOException, InterruptedException {
+        assert keys.length == values.length;
+        submit(docId, keys, new Values.Ints(values));
+    }
+
+    public void submitLongs(long docId, long[] keys, long[] values) throws IOException, InterruptedException {
+        assert keys.length == values.length;
+        submit(docId, keys, new Values.Longs(values));
+    }
+
+    /**
+     *  Arrays must not be modified until the table is sunk
+     *
+     *  @throws IOException when an earlier build or the sink failed
+     */
+    private void submit(final long docId, final long[] keys, final Values values) throws IOException, InterruptedException {
+        checkFailure();
+        if (!this.inFlight.tryAcquire()) {
+            long startTime = System.nanoTime();
+            this.inFlight.acquire();
+            this.blockedNanos.add(System.nanoTime() - startTime);
+        }
+        final long seq = this.nextSubmitted++;
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    build(seq, docId, keys, values);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.inFlight.release();
+            throw e;
+        }
+    }
+
+    private void build(long seq, long docId, long[] keys, Values values) {
+        Built result;
+        HashTable.Writer writer = null;
+        try {
+            writer = this.writers.take();
+            long startTime = System.nanoTime();
+            byte[] table = writer.dump(keys, values);
+            this.buildNanos.add(System.nanoTime() - startTime);
+            this.tables.increment();
+            this.keys.add(keys.length);
+            this.outputBytes.add(table.length);
+            result = new Built(docId, table, null);
+        } catch (Throwable e) {
+            result = new Built(docId, null, e);
+        } finally {
+            if (writer != null) {
+                this.writers.add(writer);
+            }
+        }
+        this.built.put(seq, result);
+        sinkBuilt();
+    }
+
+    /**
+     *  Passes built tables to the sink until the next one in order is missing,
+     *  the thread which builds the missing one continues
+     */
+    private void sinkBuilt() {
+        synchronized (this.sinkLock) {
+            Built result;
+            while ((result = this.built.remove(this.nextSunk)) != null) {
+                this.nextSunk++;
+                try {
+                    if (result.failure != null) {
+                        fail(result.failure);
+                    } else if (this.failure == null) {
+                        this.sink.accept(result.docId, result.table);
+                    }
+                } catch (Throwable e) {
+                    fail(e);
+                } finally {
+                    this.inFlight.release();
+                }
+            }
+        }
+    }
+
+    private void fail(Throwable e) {
+        if (this.failure == null) {
+            this.failure = e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable failure = this.failure;
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw new IOException(failure.getMessage(), failure);
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IllegalStateException("Build failed", failure);
+    }
+
+    /**
+     *  Waits until every submitted table is sunk
+     *
+     *  @throws IOException when a build or the sink failed,
+     *      tables after the failed one are not sunk
+     */
+    public void flush() throws IOException, InterruptedException {
+        this.inFlight.acquire(this.maxInFlight);
+        this.inFlight.release(this.maxInFlight);
+        checkFailure();
+    }
+
+    /**
+     *  Flushes and shuts down the executor if the pipeline created it
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing", e);
+        } finally {
+            if (this.ownsExecutor) {
+                this.executor.shutdown();
+                try {
+                    this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public long tables() {
+        return tables.sum();
+    }
+
+    public long keys() {
+        return keys.sum();
+    }
+
+    public long outputBytes() {
+        return outputBytes.sum();
+    }
+
+    /**
+     *  @return time spent in builds summed over all workers
+     */
+    public long buildNanos() {
+        return buildNanos.sum();
+    }
+
+    /**
+     *  @return time submitting was blocked by backpressure
+     */
+    public long blockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    public double tablesPerSecond() {
+        return tables() * 1e9 / Math.max(1, System.nanoTime() - this.startNanos);
+    }
+
+    public double keysPerSecond() {
+        return keys() * 1e9 / Math.max(1, System.nanoTime() - this.startNanos);
+    }
+
+    private static final class Built {
+        final long docId;
+        final byte[] table;
+        final Throwable failure;
+
+        Built(long docId, byte[] table, Throwable failure) {
+            this.docId = docId;
+            this.table = table;
+            this.failure = failure;
+        }
+    }
+}
@@ -137,10 +137,10 @@ public class ByteUtils {
 
     public static int bytesToInt(byte[] array, int offset) {
         return
-            (array[0] & 0xff) |
-            ((array[1] & 0xff) << 8) |
-            ((array[2] & 0xff) << 16) |
-            ((array[3] & 0xff) << 24);
+            (array[offset] & 0xff) |
+            ((array[offset+1] & 0xff) << 8) |
+            ((array[offset+2] & 0xff) << 16) |
+            ((array[offset+3] & 0xff) << 24);
     }
 
     public static long bytesToLong(byte[] array) {
@@ -159,11 +159,64 @@ public class ByteUtils {
             ((array[offset+7] & 0xffL) << 56);
     }
 
+    /**
+     *  Reads only the bytes of the number, as Java 8 does not merge byte loads
+     *  into a word load. One static method for every width keeps lookup loops
+     *  free of virtual calls.
+     *
+     *  @return little-endian unsigned number of numBytes bytes
+     */
+    public static long load(byte[] array, int offset, int numBytes) {
+        switch (numBytes) {
+        case 1:
+            return array[offset] & 0xffL;
+        case 2:
+            return
+                (array[offset] & 0xffL) |
+                ((array[offset+1] & 0xffL) << 8);
+        case 3:
+            return
+                (array[offset] & 0xffL) |
+                ((array[offset+1] & 0xffL) << 8) |
+                ((array[offset+2] & 0xffL) << 16);
+        case 4:
+            return bytesToInt(array, offset) & 0xffff_ffffL;
+        case 5:
+            return
+                (bytesToInt(array, offset) & 0xffff_ffffL) |
+                ((array[offset+4] & 0xffL) << 32);
+        case 6:
+            return
+                (bytesToInt(array, offset) & 0xffff_ffffL) |
+                ((array[offset+4] & 0xffL) << 32) |
+                ((array[offset+5] & 0xffL) << 40);
+        case 7:
+            return
+                (bytesToInt(array, offset) & 0xffff_ffffL) |
+                ((array[offset+4] & 0xffL) << 32) |
+                ((array[offset+5] & 0xffL) << 40) |
+                ((array[offset+6] & 0xffL) << 48);
+        case 8:
+            return bytesToLong(array, offset);
+        default:
+            assert numBytes == 0;
+            return 0;
+        }
+    }
+
     public static float bytesToFloat(byte[] array) {
-        return Float.intBitsToFloat(bytesToInt(array));
+        return bytesToFloat(array, 0);
+    }
+
+    public static float bytesToFloat(byte[] array, int offset) {
+        return Float.intBitsToFloat(bytesToInt(array, offset));
     }
 
     public static double bytesToDouble(byte[] array) {
-        return Double.longBitsToDouble(bytesToLong(array));
+        return bytesToDouble(array, 0);
+    }
+
+    public static double bytesToDouble(byte[] array, int offset) {
+        return Double.longBitsToDouble(bytesToLong(array, offset));
     }
 }
@@ -1,7 +1,7 @@
 package net.uaprom.htable;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -16,23 +16,27 @@ import java.util.SortedMap;
 /**
  *  Hash array mapped trie implementation in Java
  *
- *  <Header><Data>
+ *  <Header><Data>[<ValueCodec>]
  *
  *  Header:
  *
- *  |3b-|-5b--|2b|3b-|b|2b|
- *   |    |    |  |   | |
- *   |    |    |  |   | | Value size (2^n)
- *   |    |    |  |   Variable value size flag (not implemented yet)
- *   |    |    |  |
- *   |    |    |  Key size (n+1)
- *   |    |    |
- *   |    |    Pointer size in bytes (n+1)
- *   |    |
- *   |    Hash table size (2^n);
- *   |    note table size 1 means there is not hash table but only one SortedKeysValues
+ *  |b|b|b|-5b--|2b|3b-|b|2b|
+ *   | | |  |    |  |   | |
+ *   | | |  |    |  |   | | Value size (2^n)
+ *   | | |  |    |  |   Encoded values flag, values are decoded by the ValueCodec ending the table
+ *   | | |  |    |  |
+ *   | | |  |    |  Key size (n+1)
+ *   | | |  |    |
+ *   | | |  |    Pointer size in bytes (n+1), low bits
+ *   | | |  |
+ *   | | |  Hash table size (2^n);
+ *   | | |  note table size 1 means there is not hash table but only one SortedKeysValues
+ *   | | |
+ *   | | Key column flag
+ *   | |
+ *   | Pointer size high bit, set for 5-8 byte pointers of tables larger than 4 GB
  *   |
- *   Reserved
+ *   Tiny table flag, such tables are encoded as TinyTable
  *
  *  Data:
  *
@@ -45,25 +49,37 @@ import java.util.SortedMap;
  *  SortedKeysValues:
  *
  *  [<Key><Value>]
+ *
+ *  or when key column flag is set:
+ *
+ *  [<Key>][<Value>]
  */
 public class ChainHashTable extends HashTable {
     private static final int HEADER_SIZE = 2;
     private static final int VALUE_SIZE_OFFSET = 0;
-    private static final int VARIABLE_VALUE_SIZE_OFFSET = 2;
+    private static final int ENCODED_VALUES_OFFSET = 2;
     private static final int KEY_SIZE_OFFSET = 3;
     private static final int PTR_SIZE_OFFSET = 6;
     private static final int HASH_TABLE_SIZE_OFFSET = 8;
+    private static final int KEY_COLUMN_OFFSET = 13;
+    private static final int PTR_SIZE_HIGH_OFFSET = 14;
     private static final int KEY_SIZE_MASK = 0b0000_0111;
     private static final int PTR_SIZE_MASK = 0b0000_0011;
     private static final int VALUE_SIZE_MASK = 0b0000_0011;
     private static final int HASH_TABLE_SIZE_MASK = 0b0001_1111;
+    private static final int KEY_COLUMN_MASK = 0b0000_0001;
 
     public static final class Writer extends HashTable.Writer {
         private final int fillingRatio;
         private final int minHashTableSize;
+        private final boolean keyColumn;
+        // kept between dumps when scratch is reused
+        private Arena arena;
 
         public static final int DEFAULT_FILLING_RATIO = 10;
         public static final int DEFAULT_MIN_HASH_TABLE_SIZE = 2;
+        // keeps average bucket length within Reader.SCAN_THRESHOLD
+        public static final int KEY_COLUMN_FILLING_RATIO = 4;
 
         public Writer(ValueSize valueSize) {
             this(valueSize, DEFAULT_FILLING_RATIO);
@@ -74,17 +90,36 @@ public class ChainHashTable extends HashTable {
         }
 
         public Writer(ValueSize valueSize, int fillingRatio, int minHashTableSize) {
+            this(valueSize, fillingRatio, minHashTableSize, false);
+        }
+
+        public Writer(ValueSize valueSize, boolean keyColumn) {
+            this(valueSize, keyColumn ? KEY_COLUMN_FILLING_RATIO : DEFAULT_FILLING_RATIO, DEFAULT_MIN_HASH_TABLE_SIZE, keyColumn);
+        }
+
+        /**
+         *  When keyColumn is set every bucket stores all its keys first
+         *  and then all its values so the reader can scan keys word by word.
+         */
+        public Writer(ValueSize valueSize, int fillingRatio, int minHashTableSize, boolean keyColumn) {
             super(valueSize);
             assert fillingRatio > 0;
             assert minHashTableSize > 1;
             this.fillingRatio = fillingRatio;
             this.minHashTableSize = minHashTableSize;
+            this.keyColumn = keyColumn;
         }
 
         public ValueSize valueSize() {
             return valueSize;
         }
 
+        @Override
+        public String toString() {
+            return "ChainHashTable.Writer(valueSize=" + valueSize + ", fillingRatio=" + fillingRatio +
+                ", minHashTableSize=" + minHashTableSize + ", keyColumn=" + keyColumn + ")";
+        }
+
         private int getHashTableSize(int numValues) {
             int size = Integer.highestOneBit(numValues / fillingRatio);
             if (size < minHashTableSize) {
@@ -93,236 +128,622 @@ public class ChainHashTable extends HashTable {
             return size;
         }
 
-        private short getHeader(int keySize, int ptrSize, int hashTableSize) {
-            assert 1 <= ptrSize && ptrSize <= 4;
+        private short getHeader(int keySize, int ptrSize, int hashTableSize, ValueSize valueSize, boolean encodedValues) {
+            assert 1 <= ptrSize && ptrSize <= MAX_PTR_SIZE;
 
             int header = 0;
             header |= (keySize - 1) << KEY_SIZE_OFFSET;
-            header |= (ptrSize - 1) << PTR_SIZE_OFFSET;
-            header |= this.valueSize.encode() << VALUE_SIZE_OFFSET;
+            header |= ((ptrSize - 1) & PTR_SIZE_MASK) << PTR_SIZE_OFFSET;
+            header |= ((ptrSize - 1) >>> 2) << PTR_SIZE_HIGH_OFFSET;
+            header |= valueSize.encode() << VALUE_SIZE_OFFSET;
+            if (encodedValues) {
+                header |= 1 << ENCODED_VALUES_OFFSET;
+            }
             int encodedHashTableSize = (31 - Integer.numberOfLeadingZeros(hashTableSize));
             if (encodedHashTableSize < 0) {
                 encodedHashTableSize = 0;
             }
             header |= encodedHashTableSize << HASH_TABLE_SIZE_OFFSET;
+            if (this.keyColumn) {
+                header |= 1 << KEY_COLUMN_OFFSET;
+            }
             return (short) header;
         }
 
         @Override
-        public byte[] dump(long[] keys, byte[][] values) {
-            assert keys.length == values.length;
-
-            if (keys.length == 0) {
-                return new byte[0];
-            }
-
+        HTable build(long[] keys, Values values, ValueSize valueSize) {
             long maxKey = keys[keys.length - 1];
             int keySize = ByteUtils.getMinimumNumberOfBytes(maxKey);
             int hashTableSize = getHashTableSize(keys.length);
+            return new HTable(hashTableSize, keySize, valueSize, keys, values, arena());
+        }
+
+        private Arena arena() {
+            if (!this.reuseScratch) {
+                return new Arena();
+            }
+            if (this.arena == null) {
+                this.arena = new Arena();
+            }
+            return this.arena;
+        }
 
-            HTable htable = new HTable(hashTableSize, keySize, valueSize.size);
-            for (int i = 0; i < keys.length; i++) {
-                long key = keys[i];
-                byte[] value = values[i];
-                htable.put(key, value);
+        /**
+         *  Scratch arrays of a dump
+         */
+        private static final class Arena {
+            private int[] bucketStarts = new int[0];
+            private int[] entries = new int[0];
+            private int[] positions = new int[0];
+
+            private int[] bucketStarts(int length) {
+                if (this.bucketStarts.length < length) {
+                    this.bucketStarts = new int[length];
+                } else {
+                    Arrays.fill(this.bucketStarts, 0, length, 0);
+                }
+                return this.bucketStarts;
+            }
+
+            private int[] entries(int length) {
+                if (this.entries.length < length) {
+                    this.entries = new int[length];
+                }
+                return this.entries;
             }
 
-            byte[] data = htable.dump();
-            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + data.length);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-            buffer.putShort(getHeader(keySize, htable.getPtrSize(), hashTableSize));
-            buffer.put(data);
-            return buffer.array();
+            private int[] positions(int length) {
+                if (this.positions.length < length) {
+                    this.positions = new int[length];
+                }
+                return this.positions;
+            }
         }
 
-        final class HTable {
-            private final SortedKeysValues[] table;
-            private final SortedKeysValues kvList;
+        /**
+         *  Entries grouped by buckets, no objects are created per entry
+         */
+        final class HTable implements Dumpable {
+            private final int size;
+            private final int numBuckets;
+            private final long[] keys;
+            private final Values values;
+            // bucket i holds entries[bucketStarts[i]..bucketStarts[i + 1]),
+            // the only bucket when there is no hash table
+            private final int[] bucketStarts;
+            private final int[] entries;
             private final int keySize;
-            private final int valueSize;
+            private final ValueSize valueSize;
             private int ptrSize;
 
-            public HTable(int size, int keySize, int valueSize) {
-                this.table = new SortedKeysValues[size];
-                for (int i = 0; i < size; i++) {
-                    this.table[i] = new SortedKeysValues();
-                }
-                this.kvList = new SortedKeysValues();
+            public HTable(int size, int keySize, ValueSize valueSize, long[] keys, Values values, Arena arena) {
+                this.size = size;
+                this.numBuckets = Math.max(size, 1);
+                this.keys = keys;
+                this.values = values;
                 this.keySize = keySize;
                 this.valueSize = valueSize;
+                this.bucketStarts = arena.bucketStarts(this.numBuckets + 1);
+                this.entries = arena.entries(keys.length);
+                if (size == 0) {
+                    this.bucketStarts[1] = keys.length;
+                    for (int i = 0; i < keys.length; i++) {
+                        this.entries[i] = i;
+                    }
+                    return;
+                }
+                for (long key : keys) {
+                    this.bucketStarts[hash(key) + 1]++;
+                }
+                for (int i = 0; i < size; i++) {
+                    this.bucketStarts[i + 1] += this.bucketStarts[i];
+                }
+                // keys are sorted, so every bucket stays sorted
+                int[] positions = arena.positions(size);
+                System.arraycopy(this.bucketStarts, 0, positions, 0, size);
+                for (int i = 0; i < keys.length; i++) {
+                    this.entries[positions[hash(keys[i])]++] = i;
+                }
             }
 
             private int hash(long key) {
-                return (int) (key % table.length);
-            }
-
-            public void put(long key, byte[] value) {
-                if (this.table.length > 0) {
-                    this.table[hash(key)].add(key, value);
-                } else {
-                    kvList.add(key, value);
-                }
+                return (int) (key % size);
             }
 
             public int getPtrSize() {
                 return ptrSize;
             }
 
-            public byte[] dump() {
-                ptrSize = calcPtrSize();
-                int bufferSize = calcBufferSize(ptrSize);
-                LongCodec ptrCodec = HashTable.LONG_CODECS[ptrSize - 1];
-                LongCodec keyCodec = HashTable.LONG_CODECS[keySize - 1];
-
-                ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-                buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-                if (table.length > 0) {
-                    ByteBuffer tableBuffer = buffer.slice();
-                    int kvListOffset = table.length * ptrSize;
-                    buffer.position(kvListOffset);
-                    ByteBuffer kvListBuffer = buffer.slice();
-                    for (SortedKeysValues kvList : table) {
-                        int kvListPtr = 0;
-                        if (!kvList.isEmpty()) {
-                            kvListPtr = HEADER_SIZE + kvListBuffer.position() + kvListOffset;
+            @Override
+            public void layout(int maxPtrSize) {
+                ptrSize = calcPtrSize(maxPtrSize);
+            }
+
+            @Override
+            public long dumpSize() {
+                return calcBufferSize(ptrSize);
+            }
+
+            private int bucketLength(int bucketIx) {
+                return this.bucketStarts[bucketIx + 1] - this.bucketStarts[bucketIx];
+            }
+
+            private int calcBucketSize(int bucketIx) {
+                return bucketLength(bucketIx) * (keySize + valueSize.size);
+            }
+
+            @Override
+            public void dump(Output output) throws IOException {
+                output.reserve(HEADER_SIZE).putShort(getHeader(keySize, ptrSize, size, valueSize, values.codec() != null));
+                if (size > 0) {
+                    long kvListOffset = HEADER_SIZE + (long) size * ptrSize;
+                    for (int bucketIx = 0; bucketIx < size; bucketIx++) {
+                        long kvListPtr = 0;
+                        if (bucketLength(bucketIx) > 0) {
+                            kvListPtr = kvListOffset;
                         }
-                        tableBuffer.put(ptrCodec.dump(kvListPtr));
-                        kvList.dump(kvListBuffer, keyCodec);
+                        Values.putBytes(output.reserve(ptrSize), kvListPtr, ptrSize);
+                        kvListOffset += calcBucketSize(bucketIx);
                     }
-                } else {
-                    kvList.dump(buffer, keyCodec);
                 }
-                return buffer.array();
+                for (int bucketIx = 0; bucketIx < this.numBuckets; bucketIx++) {
+                    dumpBucket(output, bucketIx);
+                }
+            }
+
+            private void dumpBucket(Output output, int bucketIx) throws IOException {
+                int from = this.bucketStarts[bucketIx];
+                int to = this.bucketStarts[bucketIx + 1];
+                if (keyColumn) {
+                    for (int i = from; i < to; i++) {
+                        Values.putBytes(output.reserve(keySize), this.keys[this.entries[i]], keySize);
+                    }
+                    for (int i = from; i < to; i++) {
+                        this.values.put(output.reserve(valueSize.size), this.entries[i]);
+                    }
+                    return;
+                }
+                for (int i = from; i < to; i++) {
+                    ByteBuffer buffer = output.reserve(keySize + valueSize.size);
+                    Values.putBytes(buffer, this.keys[this.entries[i]], keySize);
+                    this.values.put(buffer, this.entries[i]);
+                }
             }
 
-            private int calcPtrSize() {
+            private int calcPtrSize(int maxPtrSize) {
                 int ptrSize = 1;
-                if (table.length == 0) {
+                if (size == 0) {
                     return ptrSize;
                 }
                 int lastKvListSize = 0;
-                for (int kvListIx = table.length - 1; kvListIx >= 0; kvListIx--){
-                    lastKvListSize = table[kvListIx].calcBufferSize(keySize, valueSize);
+                for (int bucketIx = size - 1; bucketIx >= 0; bucketIx--){
+                    lastKvListSize = calcBucketSize(bucketIx);
                     if (lastKvListSize != 0) {
                         break;
                     }
                 }
-                for (; ptrSize <= 4; ptrSize++) {
-                    int bufferSize = calcBufferSize(ptrSize);
-                    if (HEADER_SIZE + bufferSize - lastKvListSize < (1 << ptrSize * 8)) {
+                for (; ptrSize < maxPtrSize; ptrSize++) {
+                    long bufferSize = calcBufferSize(ptrSize);
+                    if (bufferSize - lastKvListSize < (1L << ptrSize * 8)) {
                         break;
                     }
                 }
                 return ptrSize;
             }
 
-            private int calcBufferSize(int ptrSize) {
-                int bufferSize = 0;
-                if (table.length > 0) {
-                    bufferSize += table.length * ptrSize;
-                    for (SortedKeysValues kvList : table) {
-                        bufferSize += kvList.calcBufferSize(keySize, valueSize);
-                    }
-                } else {
-                    bufferSize += this.kvList.calcBufferSize(keySize, valueSize);
+            /**
+             *  @return table size including the header
+             */
+            private long calcBufferSize(int ptrSize) {
+                return HEADER_SIZE + (long) size * ptrSize + (long) keys.length * (keySize + valueSize.size);
+            }
+        }
+    }
+
+    public static final class Reader extends HashTable.Reader {
+        private final Layout layout;
+
+        /**
+         *  Buckets of the key column layout that are not longer than
+         *  this are scanned linearly instead of binary search
+         */
+        public static final int SCAN_THRESHOLD = 16;
+
+        public Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        public Reader(byte[] data, int offset, int length) {
+            super(data, offset, length);
+            this.layout = Layout.decode(ByteUtils.bytesToShort(data, offset));
+        }
+
+        public boolean keyColumn() {
+            return layout.keyColumn;
+        }
+
+        public int keySize() {
+            return layout.keySize;
+        }
+
+        public int ptrSize() {
+            return layout.ptrSize;
+        }
+
+        /**
+         *  @return 1 when there is no hash table but only one sorted list
+         */
+        public int hashTableSize() {
+            return layout.hashTableSize;
+        }
+
+        @Override
+        public ValueSize valueSize() {
+            return layout.valueSize;
+        }
+
+        @Override
+        public int getValueOffset(long key) {
+            return lookup(key);
+        }
+
+        @Override
+        int findValueOffset(long key, Probe probe) {
+            return layout.getValueOffset(this.data, this.offset, this.length, key, probe);
+        }
+
+        /**
+         *  Visits entries bucket by bucket, keys are sorted inside a bucket
+         */
+        @Override
+        public void forEach(EntryVisitor visitor) {
+            if (this.length == 0) {
+                return;
+            }
+            for (int hashTableIx = 0; hashTableIx < layout.hashTableSize; hashTableIx++) {
+                int kvListLength = bucketLength(hashTableIx);
+                if (kvListLength > 0) {
+                    layout.forEach(this.data, this.offset + bucketOffset(hashTableIx), kvListLength, visitor);
                 }
-                return bufferSize;
             }
         }
 
-        final class SortedKeysValues extends ArrayList<KeyValue> {
-            public void add(long key, byte[] value) {
-                add(new KeyValue(key, value));
+        /**
+         *  @return bucket offset relative to the table start, 0 for empty buckets
+         */
+        int bucketOffset(int hashTableIx) {
+            if (layout.hashTableSize == 1) {
+                return HEADER_SIZE;
+            }
+            int ptrOffset = this.offset + HEADER_SIZE + hashTableIx * layout.ptrSize;
+            return (int) ByteUtils.load(this.data, ptrOffset, layout.ptrSize);
+        }
+
+        /**
+         *  @return bucket length in bytes
+         */
+        int bucketLength(int hashTableIx) {
+            if (layout.hashTableSize == 1) {
+                return this.length - HEADER_SIZE;
+            }
+            int kvListPtr = bucketOffset(hashTableIx);
+            if (kvListPtr == 0) {
+                return 0;
             }
+            return layout.getKvListLength(this.data, this.offset, this.length, hashTableIx, kvListPtr);
+        }
+    }
+
+    /**
+     *  Reader of tables larger than 2 GB, usually memory mapped
+     */
+    public static final class LargeReader extends HashTable.LargeReader {
+        private final Layout layout;
 
-            public void dump(ByteBuffer buffer, LongCodec keyCodec) {
-                for (KeyValue kv : this) {
-                    kv.dump(buffer, keyCodec);
+        public LargeReader(SegmentedBytes data) {
+            this(data, 0, data.length());
+        }
+
+        public LargeReader(SegmentedBytes data, long offset, long length) {
+            super(data, offset, length);
+            this.layout = Layout.decode((short) data.load(offset, HEADER_SIZE));
+        }
+
+        public int ptrSize() {
+            return layout.ptrSize;
+        }
+
+        @Override
+        public ValueSize valueSize() {
+            return layout.valueSize;
+        }
+
+        @Override
+        public long getValueOffset(long key) {
+            long kvListPtr;
+            long kvListLength;
+            if (layout.hashTableSize == 1) {
+                kvListPtr = HEADER_SIZE;
+                kvListLength = this.length - HEADER_SIZE;
+            } else {
+                int hashTableIx = (int) (key % layout.hashTableSize);
+                kvListPtr = loadPtr(hashTableIx);
+                if (kvListPtr == 0) {
+                    return NOT_FOUND_OFFSET;
+                }
+                kvListLength = this.length - kvListPtr;
+                for (int i = hashTableIx + 1; i < layout.hashTableSize; i++) {
+                    long nextKvListPtr = loadPtr(i);
+                    if (nextKvListPtr != 0) {
+                        kvListLength = nextKvListPtr - kvListPtr;
+                        break;
+                    }
                 }
             }
+            if (layout.keySize < 8 && key >>> (layout.keySize << 3) != 0) {
+                return NOT_FOUND_OFFSET;
+            }
 
-            public int calcBufferSize(int keySize, int valueSize) {
-                if (isEmpty()) {
-                    return 0;
+            long kvListOffset = this.offset + kvListPtr;
+            int kvListSize = (int) (kvListLength / layout.entrySize);
+            int keyStride = layout.keyColumn ? layout.keySize : layout.entrySize;
+            int minEntryIx = 0, maxEntryIx = kvListSize - 1;
+            while (minEntryIx <= maxEntryIx) {
+                int currentEntryIx = (maxEntryIx + minEntryIx) >>> 1;
+                long entryKey = this.data.load(kvListOffset + (long) currentEntryIx * keyStride, layout.keySize);
+                if (entryKey > key) {
+                    maxEntryIx = currentEntryIx - 1;
+                } else if (entryKey < key) {
+                    minEntryIx = currentEntryIx + 1;
+                } else if (layout.keyColumn) {
+                    return kvListOffset + (long) kvListSize * layout.keySize + (long) currentEntryIx * layout.valueSize.size;
+                } else {
+                    return kvListOffset + (long) currentEntryIx * layout.entrySize + layout.keySize;
                 }
-                return size() * (keySize + valueSize);
             }
+            return NOT_FOUND_OFFSET;
         }
 
-        final class KeyValue {
-            public final long key;
-            public final byte[] value;
+        private long loadPtr(int hashTableIx) {
+            return this.data.load(this.offset + HEADER_SIZE + (long) hashTableIx * layout.ptrSize, layout.ptrSize);
+        }
+    }
 
-            public KeyValue(long key, byte[] value) {
-                this.key = key;
-                this.value = value;
+    /**
+     *  Looks up one key in many tables without creating a reader per table.
+     *  Bucket indexes of the key are computed once for every hash table size,
+     *  tables with keys narrower than the key are not searched.
+     */
+    public static final class MultiReader extends HashTable.MultiReader {
+        @Override
+        protected HashTable.MultiReader.Lookup prepare(long key) {
+            return new KeyLookup(key);
+        }
+    }
+
+    private static final class KeyLookup extends HashTable.MultiReader.Lookup {
+        private final long key;
+        private final int keySize;
+        // indexed by hash table size bits
+        private final int[] hashTableIxs = new int[HASH_TABLE_SIZE_MASK + 1];
+
+        KeyLookup(long key) {
+            this.key = key;
+            this.keySize = ByteUtils.getMinimumNumberOfBytes(key);
+            for (int bits = 0; bits < this.hashTableIxs.length; bits++) {
+                this.hashTableIxs[bits] = (int) (key % (1 << bits));
             }
+        }
 
-            public void dump(ByteBuffer buffer, LongCodec keyCodec) {
-                buffer.put(keyCodec.dump(key));
-                buffer.put(value);
+        @Override
+        public int getValueOffset(byte[] data, int offset, int length) {
+            if (length == 0) {
+                return Reader.NOT_FOUND_OFFSET;
+            }
+            Layout layout = Layout.decode(ByteUtils.bytesToShort(data, offset));
+            if (layout.keySize < this.keySize) {
+                return Reader.NOT_FOUND_OFFSET;
             }
+            return layout.getValueOffset(data, offset, ValueCodec.tableLength(data, offset, length),
+                                         this.key, this.hashTableIxs[layout.hashTableBits], null);
         }
     }
 
-    public static final class Reader extends HashTable.Reader {
+    /**
+     *  Merges buckets of two tables with the same hash table size,
+     *  keys of a bucket are sorted
+     */
+    static final class Join {
+        private final Reader a;
+        private final Reader b;
+        private final KeySets.Operation operation;
+        private final KeySets.JoinVisitor visitor;
+
+        Join(Reader a, Reader b, KeySets.Operation operation, KeySets.JoinVisitor visitor) {
+            this.a = a;
+            this.b = b;
+            this.operation = operation;
+            this.visitor = visitor;
+        }
+
+        boolean canJoin() {
+            return a.length != 0 && b.length != 0 && a.layout.hashTableSize == b.layout.hashTableSize;
+        }
+
+        void run() {
+            for (int hashTableIx = 0; hashTableIx < a.layout.hashTableSize; hashTableIx++) {
+                int sizeA = a.bucketLength(hashTableIx) / a.layout.entrySize;
+                if (sizeA == 0 && operation != KeySets.Operation.UNION) {
+                    continue;
+                }
+                int sizeB = b.bucketLength(hashTableIx) / b.layout.entrySize;
+                int offsetA = sizeA == 0 ? 0 : a.offset + a.bucketOffset(hashTableIx);
+                int offsetB = sizeB == 0 ? 0 : b.offset + b.bucketOffset(hashTableIx);
+                merge(offsetA, sizeA, offsetB, sizeB);
+            }
+        }
+
+        private void merge(int offsetA, int sizeA, int offsetB, int sizeB) {
+            Layout layoutA = a.layout;
+            Layout layoutB = b.layout;
+            int ixA = 0;
+            int ixB = 0;
+            while (ixA < sizeA || ixB < sizeB) {
+                if (ixB == sizeB) {
+                    if (operation == KeySets.Operation.INTERSECTION) {
+                        return;
+                    }
+                    visitor.visit(layoutA.entryKey(a.data, offsetA, sizeA, ixA), layoutA.entryValueOffset(offsetA, sizeA, ixA), Reader.NOT_FOUND_OFFSET);
+                    ixA++;
+                    continue;
+                }
+                if (ixA == sizeA) {
+                    if (operation != KeySets.Operation.UNION) {
+                        return;
+                    }
+                    visitor.visit(layoutB.entryKey(b.data, offsetB, sizeB, ixB), Reader.NOT_FOUND_OFFSET, layoutB.entryValueOffset(offsetB, sizeB, ixB));
+                    ixB++;
+                    continue;
+                }
+                long keyA = layoutA.entryKey(a.data, offsetA, sizeA, ixA);
+                long keyB = layoutB.entryKey(b.data, offsetB, sizeB, ixB);
+                if (keyA < keyB) {
+                    if (operation != KeySets.Operation.INTERSECTION) {
+                        visitor.visit(keyA, layoutA.entryValueOffset(offsetA, sizeA, ixA), Reader.NOT_FOUND_OFFSET);
+                    }
+                    ixA++;
+                } else if (keyB < keyA) {
+                    if (operation == KeySets.Operation.UNION) {
+                        visitor.visit(keyB, Reader.NOT_FOUND_OFFSET, layoutB.entryValueOffset(offsetB, sizeB, ixB));
+                    }
+                    ixB++;
+                } else {
+                    if (operation != KeySets.Operation.DIFFERENCE) {
+                        visitor.visit(keyA, layoutA.entryValueOffset(offsetA, sizeA, ixA), layoutB.entryValueOffset(offsetB, sizeB, ixB));
+                    }
+                    ixA++;
+                    ixB++;
+                }
+            }
+        }
+    }
+
+    /**
+     *  Decoded header with lookup methods, shared by all tables with the same header
+     */
+    static final class Layout {
         private final int keySize;
-        private final LongCodec keyCodec;
         private final int ptrSize;
-        private final LongCodec ptrCodec;
         private final ValueSize valueSize;
+        private final int hashTableBits;
         private final int hashTableSize;
         private final int entrySize;
+        private final boolean keyColumn;
 
-        public Reader(byte[] data) {
-            this(data, 0, data.length);
-        }
+        private static final Layout[] LAYOUTS = new Layout[1 << 16];
 
-        public Reader(byte[] data, int offset, int length) {
-            super(data, offset, length);
-            short header = ByteUtils.bytesToShort(data, offset);
-            this.keySize = ((header >>> KEY_SIZE_OFFSET) & KEY_SIZE_MASK) + 1;
-            this.keyCodec = HashTable.LONG_CODECS[keySize - 1];
-            this.ptrSize = ((header >>> PTR_SIZE_OFFSET) & PTR_SIZE_MASK) + 1;
-            this.ptrCodec = HashTable.LONG_CODECS[ptrSize - 1];
+        private Layout(short header) {
+            // a tiny table is the only key column list without a hash table
+            boolean tiny = TinyTable.isTiny(header);
+            this.keySize = tiny ? TinyTable.keySize(header) : ((header >>> KEY_SIZE_OFFSET) & KEY_SIZE_MASK) + 1;
+            this.ptrSize = tiny ? 1 : ((header >>> PTR_SIZE_OFFSET) & PTR_SIZE_MASK | ((header >>> PTR_SIZE_HIGH_OFFSET) & 1) << 2) + 1;
             this.valueSize = ValueSize.decode((header >>> VALUE_SIZE_OFFSET) & VALUE_SIZE_MASK);
-            this.hashTableSize = 1 << ((header >>> HASH_TABLE_SIZE_OFFSET) & HASH_TABLE_SIZE_MASK);
+            this.hashTableBits = tiny ? 0 : (header >>> HASH_TABLE_SIZE_OFFSET) & HASH_TABLE_SIZE_MASK;
+            this.hashTableSize = 1 << this.hashTableBits;
             this.entrySize = keySize + valueSize.size;
+            this.keyColumn = tiny || ((header >>> KEY_COLUMN_OFFSET) & KEY_COLUMN_MASK) != 0;
         }
 
-        @Override
-        public ValueSize valueSize() {
-            return valueSize;
+        static Layout decode(short header) {
+            // layouts are immutable so racy initialization is harmless
+            Layout layout = LAYOUTS[header & 0xffff];
+            if (layout == null) {
+                layout = new Layout(header);
+                LAYOUTS[header & 0xffff] = layout;
+            }
+            return layout;
         }
 
-        @Override
-        public int getValueOffset(long key) {
+        int getValueOffset(byte[] data, int offset, int length, long key, Probe probe) {
+            return getValueOffset(data, offset, length, key, (int) (key % hashTableSize), probe);
+        }
+
+        /**
+         *  @param hashTableIx bucket of the key, key % hashTableSize
+         */
+        int getValueOffset(byte[] data, int offset, int length, long key, int hashTableIx, Probe probe) {
             if (hashTableSize == 1) {
-                return binarySearch(HEADER_SIZE, this.length - HEADER_SIZE, key);
+                return search(data, offset, HEADER_SIZE, length - HEADER_SIZE, key, probe);
             } else {
-                int hashTableIx = (int) (key % hashTableSize);
-                int ptrOffset = this.offset + HEADER_SIZE + hashTableIx * this.ptrSize;
-                int kvListPtr = (int) ptrCodec.load(this.data, ptrOffset);
+                if (probe != null) {
+                    probe.levels++;
+                }
+                int ptrOffset = offset + HEADER_SIZE + hashTableIx * this.ptrSize;
+                int kvListPtr = (int) ByteUtils.load(data, ptrOffset, this.ptrSize);
                 if (kvListPtr == 0) {
-                    return NOT_FOUND_OFFSET;
+                    return Reader.NOT_FOUND_OFFSET;
                 }
-                int kvListLength = getKvListLength(hashTableIx, kvListPtr);
-                return binarySearch(kvListPtr, kvListLength, key);
+                int kvListLength = getKvListLength(data, offset, length, hashTableIx, kvListPtr);
+                return search(data, offset, kvListPtr, kvListLength, key, probe);
+            }
+        }
+
+        private int search(byte[] data, int offset, int kvListOffset, int kvListLength, long key, Probe probe) {
+            if (probe != null) {
+                probe.bucketLength = kvListLength / entrySize;
+            }
+            if (keyColumn) {
+                return columnSearch(data, offset + kvListOffset, kvListLength, key, probe);
+            }
+            return binarySearch(data, offset + kvListOffset, kvListLength, key, probe);
+        }
+
+        private int columnSearch(byte[] data, int offset, int kvListLength, long key, Probe probe) {
+            int kvListSize = kvListLength / entrySize;
+            if (this.keySize < 8 && key >>> (this.keySize << 3) != 0) {
+                return Reader.NOT_FOUND_OFFSET;
+            }
+            int entryIx = TinyTable.search(data, offset, kvListSize, this.keySize, key, probe);
+            if (entryIx < 0) {
+                return Reader.NOT_FOUND_OFFSET;
             }
+            return offset + kvListSize * this.keySize + entryIx * this.valueSize.size;
         }
 
-        private long getKey(int offset, int entryIx) {
-            return keyCodec.load(this.data, offset + entryIx * this.entrySize);
+        void forEach(byte[] data, int offset, int kvListLength, EntryVisitor visitor) {
+            int kvListSize = kvListLength / entrySize;
+            for (int i = 0; i < kvListSize; i++) {
+                visitor.visit(entryKey(data, offset, kvListSize, i), entryValueOffset(offset, kvListSize, i));
+            }
+        }
+
+        long entryKey(byte[] data, int offset, int kvListSize, int entryIx) {
+            if (keyColumn) {
+                return ByteUtils.load(data, offset + entryIx * this.keySize, this.keySize);
+            }
+            return getKey(data, offset, entryIx);
+        }
+
+        int entryValueOffset(int offset, int kvListSize, int entryIx) {
+            if (keyColumn) {
+                return offset + kvListSize * this.keySize + entryIx * this.valueSize.size;
+            }
+            return offset + entryIx * entrySize + keySize;
+        }
+
+        private long getKey(byte[] data, int offset, int entryIx) {
+            return ByteUtils.load(data, offset + entryIx * this.entrySize, this.keySize);
         }
 
-        private int binarySearch(int kvListOffset, int kvListLength, long key) {
-            int offset = this.offset + kvListOffset;
+        private int binarySearch(byte[] data, int offset, int kvListLength, long key, Probe probe) {
             int kvListSize = kvListLength / entrySize;
             int minEntryIx = 0, maxEntryIx = kvListSize - 1;
             while (minEntryIx <= maxEntryIx) {
                 int currentEntryIx = (maxEntryIx + minEntryIx) >>> 1;
-                long entryKey = getKey(offset, currentEntryIx);
+                if (probe != null) {
+                    probe.probes++;
+                }
+                long entryKey = getKey(data, offset, currentEntryIx);
                 if (entryKey > key) {
                     maxEntryIx = currentEntryIx - 1;
                 } else if (entryKey < key) {
@@ -331,20 +752,20 @@ public class ChainHashTable extends HashTable {
                     return offset + currentEntryIx * entrySize + keySize;
                 }
             }
-            return NOT_FOUND_OFFSET;
+            return Reader.NOT_FOUND_OFFSET;
         }
 
-        private int getKvListLength(int hashTableIx, int kvListPtr) {
+        private int getKvListLength(byte[] data, int offset, int length, int hashTableIx, int kvListPtr) {
             for (int i = hashTableIx + 1; i < hashTableSize; i++) {
-                int nextPtrOffset = this.offset + HEADER_SIZE + i * ptrSize;
-                int nextKvListPtr = (int) ptrCodec.load(this.data, nextPtrOffset);
+                int nextPtrOffset = offset + HEADER_SIZE + i * ptrSize;
+                int nextKvListPtr = (int) ByteUtils.load(data, nextPtrOffset, ptrSize);
                 if (nextKvListPtr == 0) {
                     continue;
                 } else {
                     return nextKvListPtr - kvListPtr;
                 }
             }
-            return this.length - kvListPtr;
+            return length - kvListPtr;
         }
     }
 }
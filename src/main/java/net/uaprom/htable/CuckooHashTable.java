@@ -0,0 +1,539 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ *  Bucketized cuckoo hash table with key fingerprints
+ *
+ *  Every key is stored in one of its two buckets, so a lookup reads
+ *  at most two buckets whatever the load factor is.
+ *
+ *  <Header><NumBuckets:4b><Seed:4b>[<Bucket>][<ValueCodec>]
+ *
+ *  Header:
+ *
+ *  |b|--7b---|2b|3b-|b|2b|
+ *   |  |      |  |   | |
+ *   |  |      |  |   | Value size (2^n)
+ *   |  |      |  |   Encoded values flag, values are decoded by the ValueCodec ending the table
+ *   |  |      |  |
+ *   |  |      |  Key size (n+1)
+ *   |  |      |
+ *   |  |      Bucket size in slots (2^n)
+ *   |  |
+ *   |  Reserved
+ *   |
+ *   Tiny table flag, such tables are encoded as TinyTable
+ *
+ *  Bucket:
+ *
+ *  [<Fingerprint:1b>][<Key><Value>]
+ *
+ *  Empty slots have zero fingerprint and zero bytes. The first bucket
+ *  and the fingerprint of a key come from the high and the low bits
+ *  of its hash mixed with the seed, the second bucket from the low half.
+ */
+public final class CuckooHashTable extends HashTable {
+    private static final int HEADER_SIZE = 2 + 4 + 4;
+    private static final int VALUE_SIZE_OFFSET = 0;
+    private static final int ENCODED_VALUES_OFFSET = 2;
+    private static final int KEY_SIZE_OFFSET = 3;
+    private static final int BUCKET_SIZE_OFFSET = 6;
+    private static final int VALUE_SIZE_MASK = 0b0000_0011;
+    private static final int KEY_SIZE_MASK = 0b0000_0111;
+    private static final int BUCKET_SIZE_MASK = 0b0000_0011;
+
+    static long hash(long key, int seed) {
+        long h = (key ^ seed * 0x9E3779B97F4A7C15L) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 31)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 29);
+    }
+
+    static int fingerprint(long hash) {
+        int fingerprint = (int) hash & 0xff;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    static int firstBucket(long hash, int numBuckets) {
+        return (int) (((hash >>> 32) * numBuckets) >>> 32);
+    }
+
+    static int secondBucket(long hash, int numBuckets) {
+        int bucket = (int) (((hash & 0xffff_ffffL) * numBuckets) >>> 32);
+        if (bucket == firstBucket(hash, numBuckets)) {
+            bucket++;
+            return bucket == numBuckets ? 0 : bucket;
+        }
+        return bucket;
+    }
+
+    public static final class Writer extends HashTable.Writer {
+        private final int loadFactor;
+        private final int bucketSize;
+        // kept between dumps when scratch is reused
+        private Arena arena;
+
+        public static final int DEFAULT_LOAD_FACTOR = 90;
+        public static final int MAX_LOAD_FACTOR = 95;
+        public static final int DEFAULT_BUCKET_SIZE = 4;
+        public static final int MAX_BUCKET_SIZE = 8;
+        // evictions per key before the next seed is tried
+        private static final int MAX_KICKS = 1000;
+        // seeds tried before the table grows
+        private static final int MAX_SEEDS = 8;
+
+        public Writer(ValueSize valueSize) {
+            this(valueSize, DEFAULT_LOAD_FACTOR);
+        }
+
+        public Writer(ValueSize valueSize, int loadFactor) {
+            this(valueSize, loadFactor, DEFAULT_BUCKET_SIZE);
+        }
+
+        /**
+         *  @param loadFactor percent of occupied slots, the table grows
+         *      a little when keys do not fit at this load factor
+         *  @param bucketSize slots per bucket: 1, 2, 4 or 8
+         */
+        public Writer(ValueSize valueSize, int loadFactor, int bucketSize) {
+            super(valueSize);
+            assert 0 < loadFactor && loadFactor <= MAX_LOAD_FACTOR;
+            assert 0 < bucketSize && bucketSize <= MAX_BUCKET_SIZE && Integer.bitCount(bucketSize) == 1;
+            this.loadFactor = loadFactor;
+            this.bucketSize = bucketSize;
+        }
+
+        @Override
+        public String toString() {
+            return "CuckooHashTable.Writer(valueSize=" + valueSize + ", loadFactor=" + loadFactor +
+                ", bucketSize=" + bucketSize + ")";
+        }
+
+        @Override
+        Table build(long[] keys, Values values, ValueSize valueSize) {
+            if (!KeySorter.isStrictlySorted(keys)) {
+                // the table would grow forever trying to place duplicate keys
+                throw new IllegalArgumentException("Keys must be strictly ascending when the writer has no sorter");
+            }
+            // negative keys are sorted first and need all bytes
+            int keySize = keys[0] < 0 ? 8 : ByteUtils.getMinimumNumberOfBytes(keys[keys.length - 1]);
+            int numBuckets = (int) Math.max(1, ((long) keys.length * 100 + this.loadFactor * this.bucketSize - 1) / (this.loadFactor * this.bucketSize));
+            Arena arena = arena();
+            while (true) {
+                for (int seed = 0; seed < MAX_SEEDS; seed++) {
+                    int[] slots = arena.slots(numBuckets * this.bucketSize);
+                    if (place(keys, slots, numBuckets, seed)) {
+                        return new Table(keys, values, valueSize, keySize, numBuckets, seed, slots);
+                    }
+                }
+                numBuckets += Math.max(1, numBuckets >>> 5);
+            }
+        }
+
+        /**
+         *  Inserts keys by random walk evictions
+         *
+         *  @param slots filled with key indexes plus one, 0 marks empty slots
+         *  @return false when some key did not fit
+         */
+        private boolean place(long[] keys, int[] slots, int numBuckets, int seed) {
+            int bucketSize = this.bucketSize;
+            // xorshift keeps the output reproducible
+            int random = seed * 0x9E3779B9 | 1;
+            for (int i = 0; i < keys.length; i++) {
+                int entry = i + 1;
+                long hash = hash(keys[i], seed);
+                int bucket = firstBucket(hash, numBuckets);
+                if (insert(slots, bucket, bucketSize, entry)) {
+                    continue;
+                }
+                bucket = secondBucket(hash, numBuckets);
+                int kicks = 0;
+                while (!insert(slots, bucket, bucketSize, entry)) {
+                    if (kicks++ == MAX_KICKS) {
+                        return false;
+                    }
+                    random ^= random << 13;
+                    random ^= random >>> 17;
+                    random ^= random << 5;
+                    int slot = bucket * bucketSize + (random & (bucketSize - 1));
+                    int evicted = slots[slot];
+                    slots[slot] = entry;
+                    entry = evicted;
+                    long evictedHash = hash(keys[evicted - 1], seed);
+                    int firstBucket = firstBucket(evictedHash, numBuckets);
+                    bucket = bucket == firstBucket ? secondBucket(evictedHash, numBuckets) : firstBucket;
+                }
+            }
+            return true;
+        }
+
+        private static boolean insert(int[] slots, int bucket, int bucketSize, int entry) {
+            int start = bucket * bucketSize;
+            for (int slot = start; slot < start + bucketSize; slot++) {
+                if (slots[slot] == 0) {
+                    slots[slot] = entry;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Arena arena() {
+            if (!this.reuseScratch) {
+                return new Arena();
+            }
+            if (this.arena == null) {
+                this.arena = new Arena();
+            }
+            return this.arena;
+        }
+
+        /**
+         *  Scratch arrays of a dump
+         */
+        private static final class Arena {
+            private int[] slots = new int[0];
+
+            private int[] slots(int length) {
+                if (this.slots.length < length) {
+                    this.slots = new int[length];
+                } else {
+                    Arrays.fill(this.slots, 0, length, 0);
+                }
+                return this.slots;
+            }
+        }
+
+        final class Table implements Dumpable {
+            private final long[] keys;
+            private final Values values;
+            private final ValueSize valueSize;
+            private final int keySize;
+            private final int numBuckets;
+            private final int seed;
+            private final int[] slots;
+
+            Table(long[] keys, Values values, ValueSize valueSize, int keySize, int numBuckets, int seed, int[] slots) {
+                this.keys = keys;
+                this.values = values;
+                this.valueSize = valueSize;
+                this.keySize = keySize;
+                this.numBuckets = numBuckets;
+                this.seed = seed;
+                this.slots = slots;
+            }
+
+            private int bucketLength() {
+                return bucketSize * (1 + keySize + valueSize.size);
+            }
+
+            @Override
+            public void layout(int maxPtrSize) {}
+
+            @Override
+            public long dumpSize() {
+                return HEADER_SIZE + (long) numBuckets * bucketLength();
+            }
+
+            @Override
+            public void dump(Output output) throws IOException {
+                int header = 0;
+                header |= valueSize.encode() << VALUE_SIZE_OFFSET;
+                if (values.codec() != null) {
+                    header |= 1 << ENCODED_VALUES_OFFSET;
+                }
+                header |= (keySize - 1) << KEY_SIZE_OFFSET;
+                header |= Integer.numberOfTrailingZeros(bucketSize) << BUCKET_SIZE_OFFSET;
+                ByteBuffer buffer = output.reserve(HEADER_SIZE);
+                buffer.putShort((short) header);
+                buffer.putInt(numBuckets);
+                buffer.putInt(seed);
+
+                int entrySize = keySize + valueSize.size;
+                for (int bucket = 0; bucket < numBuckets; bucket++) {
+                    buffer = output.reserve(bucketLength());
+                    int start = bucket * bucketSize;
+                    for (int slot = start; slot < start + bucketSize; slot++) {
+                        int entry = slots[slot];
+                        buffer.put(entry == 0 ? 0 : (byte) fingerprint(hash(keys[entry - 1], seed)));
+                    }
+                    for (int slot = start; slot < start + bucketSize; slot++) {
+                        int entry = slots[slot];
+                        if (entry == 0) {
+                            for (int i = 0; i < entrySize; i++) {
+                                buffer.put((byte) 0);
+                            }
+                            continue;
+                        }
+                        Values.putBytes(buffer, keys[entry - 1], keySize);
+                        values.put(buffer, entry - 1);
+                    }
+                }
+            }
+        }
+    }
+
+    public static final class Reader extends HashTable.Reader {
+        private final Layout layout;
+
+        public Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        public Reader(byte[] data, int offset, int length) {
+            super(data, offset, length);
+            this.layout = this.length == 0 ? null : Layout.decode(data, offset);
+        }
+
+        public int keySize() {
+            return layout.keySize;
+        }
+
+        public int bucketSize() {
+            return layout.bucketSize;
+        }
+
+        public int numBuckets() {
+            return layout.numBuckets;
+        }
+
+        @Override
+        public ValueSize valueSize() {
+            return layout.valueSize;
+        }
+
+        @Override
+        public int getValueOffset(long key) {
+            return lookup(key);
+        }
+
+        @Override
+        int findValueOffset(long key, Probe probe) {
+            if (this.length == 0) {
+                return NOT_FOUND_OFFSET;
+            }
+            if (layout.tiny) {
+                return TinyTable.getValueOffset(this.data, this.offset, key, probe);
+            }
+            return layout.getValueOffset(this.data, this.offset, key, probe);
+        }
+
+        /**
+         *  Visits entries bucket by bucket in slot order
+         */
+        @Override
+        public void forEach(EntryVisitor visitor) {
+            if (this.length == 0) {
+                return;
+            }
+            if (layout.tiny) {
+                TinyTable.forEach(this.data, this.offset, visitor);
+                return;
+            }
+            for (int bucket = 0; bucket < layout.numBuckets; bucket++) {
+                int bucketOffset = layout.bucketOffset(this.offset, bucket);
+                for (int slot = 0; slot < layout.bucketSize; slot++) {
+                    if (this.data[bucketOffset + slot] != 0) {
+                        int entryOffset = layout.entryOffset(bucketOffset, slot);
+                        visitor.visit(ByteUtils.load(this.data, entryOffset, layout.keySize), entryOffset + layout.keySize);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Reader of tables larger than 2 GB, usually memory mapped
+     */
+    public static final class LargeReader extends HashTable.LargeReader {
+        private final Layout layout;
+
+        public LargeReader(SegmentedBytes data) {
+            this(data, 0, data.length());
+        }
+
+        public LargeReader(SegmentedBytes data, long offset, long length) {
+            super(data, offset, length);
+            this.layout = this.length == 0 ? null : Layout.decode(data, offset);
+        }
+
+        public int numBuckets() {
+            return layout.numBuckets;
+        }
+
+        @Override
+        public ValueSize valueSize() {
+            return layout.valueSize;
+        }
+
+        @Override
+        public long getValueOffset(long key) {
+            if (this.length == 0) {
+                return NOT_FOUND_OFFSET;
+            }
+            if (layout.tiny) {
+                return TinyTable.getValueOffset(this.data, this.offset, key);
+            }
+            if (layout.keySize < 8 && key >>> (layout.keySize << 3) != 0) {
+                return NOT_FOUND_OFFSET;
+            }
+            long hash = hash(key, layout.seed);
+            int fingerprint = fingerprint(hash);
+            long valueOffset = search(firstBucket(hash, layout.numBuckets), key, fingerprint);
+            if (valueOffset != NOT_FOUND_OFFSET) {
+                return valueOffset;
+            }
+            return search(secondBucket(hash, layout.numBuckets), key, fingerprint);
+        }
+
+        private long search(int bucket, long key, int fingerprint) {
+            long bucketOffset = this.offset + HEADER_SIZE + (long) bucket * layout.bucketLength;
+            for (int slot = 0; slot < layout.bucketSize; slot++) {
+                if ((this.data.get(bucketOffset + slot) & 0xff) != fingerprint) {
+                    continue;
+                }
+                long entryOffset = bucketOffset + layout.bucketSize + (long) slot * layout.entrySize;
+                if (this.data.load(entryOffset, layout.keySize) == key) {
+                    return entryOffset + layout.keySize;
+                }
+            }
+            return NOT_FOUND_OFFSET;
+        }
+    }
+
+    /**
+     *  Looks up one key in many tables without creating a reader per table.
+     *  Layouts of recently read tables are kept, so tables must not change in place.
+     */
+    public static final class MultiReader extends HashTable.MultiReader {
+        private static final int LAYOUT_CACHE_SIZE = 256;
+
+        // direct mapped by table, concurrent lookups may replace each other's entries
+        private final LayoutEntry[] layouts = new LayoutEntry[LAYOUT_CACHE_SIZE];
+
+        @Override
+        protected HashTable.MultiReader.Lookup prepare(final long key) {
+            return new HashTable.MultiReader.Lookup() {
+                @Override
+                public int getValueOffset(byte[] data, int offset, int length) {
+                    if (length == 0) {
+                        return Reader.NOT_FOUND_OFFSET;
+                    }
+                    Layout layout = layout(data, offset);
+                    if (layout.tiny) {
+                        return TinyTable.getValueOffset(data, offset, key, null);
+                    }
+                    return layout.getValueOffset(data, offset, key, null);
+                }
+            };
+        }
+
+        private Layout layout(byte[] data, int offset) {
+            int slot = (System.identityHashCode(data) * 31 + offset) & (LAYOUT_CACHE_SIZE - 1);
+            LayoutEntry entry = this.layouts[slot];
+            if (entry == null || entry.data != data || entry.offset != offset) {
+                entry = new LayoutEntry(data, offset, Layout.decode(data, offset));
+                this.layouts[slot] = entry;
+            }
+            return entry.layout;
+        }
+
+        private static final class LayoutEntry {
+            final byte[] data;
+            final int offset;
+            final Layout layout;
+
+            LayoutEntry(byte[] data, int offset, Layout layout) {
+                this.data = data;
+                this.offset = offset;
+                this.layout = layout;
+            }
+        }
+    }
+
+    /**
+     *  Decoded header with lookup methods
+     */
+    static final class Layout {
+        private final boolean tiny;
+        private final int keySize;
+        private final ValueSize valueSize;
+        private final int bucketSize;
+        private final int entrySize;
+        private final int bucketLength;
+        private final int numBuckets;
+        private final int seed;
+
+        private Layout(short header, int numBuckets, int seed) {
+            this.tiny = TinyTable.isTiny(header);
+            this.keySize = this.tiny ? TinyTable.keySize(header) : ((header >>> KEY_SIZE_OFFSET) & KEY_SIZE_MASK) + 1;
+            this.valueSize = ValueSize.decode((header >>> VALUE_SIZE_OFFSET) & VALUE_SIZE_MASK);
+            this.bucketSize = 1 << ((header >>> BUCKET_SIZE_OFFSET) & BUCKET_SIZE_MASK);
+            this.entrySize = keySize + valueSize.size;
+            this.bucketLength = bucketSize * (1 + entrySize);
+            this.numBuckets = numBuckets;
+            this.seed = seed;
+        }
+
+        static Layout decode(byte[] data, int offset) {
+            short header = ByteUtils.bytesToShort(data, offset);
+            if (TinyTable.isTiny(header)) {
+                return new Layout(header, 0, 0);
+            }
+            return new Layout(header, ByteUtils.bytesToInt(data, offset + 2), ByteUtils.bytesToInt(data, offset + 6));
+        }
+
+        static Layout decode(SegmentedBytes data, long offset) {
+            short header = (short) data.load(offset, 2);
+            if (TinyTable.isTiny(header)) {
+                return new Layout(header, 0, 0);
+            }
+            return new Layout(header, (int) data.load(offset + 2, 4), (int) data.load(offset + 6, 4));
+        }
+
+        int bucketOffset(int offset, int bucket) {
+            return offset + HEADER_SIZE + bucket * bucketLength;
+        }
+
+        int entryOffset(int bucketOffset, int slot) {
+            return bucketOffset + bucketSize + slot * entrySize;
+        }
+
+        int getValueOffset(byte[] data, int offset, long key, Probe probe) {
+            if (this.keySize < 8 && key >>> (this.keySize << 3) != 0) {
+                return Reader.NOT_FOUND_OFFSET;
+            }
+            long hash = hash(key, this.seed);
+            int fingerprint = fingerprint(hash);
+            int valueOffset = search(data, bucketOffset(offset, firstBucket(hash, this.numBuckets)), key, fingerprint, probe);
+            if (valueOffset != Reader.NOT_FOUND_OFFSET) {
+                return valueOffset;
+            }
+            return search(data, bucketOffset(offset, secondBucket(hash, this.numBuckets)), key, fingerprint, probe);
+        }
+
+        private int search(byte[] data, int bucketOffset, long key, int fingerprint, Probe probe) {
+            if (probe != null) {
+                probe.levels++;
+                probe.bucketLength = this.bucketSize;
+            }
+            for (int slot = 0; slot < this.bucketSize; slot++) {
+                if ((data[bucketOffset + slot] & 0xff) != fingerprint) {
+                    continue;
+                }
+                if (probe != null) {
+                    probe.probes++;
+                }
+                int entryOffset = entryOffset(bucketOffset, slot);
+                if (ByteUtils.load(data, entryOffset, this.keySize) == key) {
+                    return entryOffset + this.keySize;
+                }
+            }
+            return Reader.NOT_FOUND_OFFSET;
+        }
+    }
+}
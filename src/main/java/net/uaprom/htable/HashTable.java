@@ -1,5 +1,11 @@
 package net.uaprom.htable;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
@@ -11,6 +17,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 /**
@@ -18,6 +26,10 @@ import java.util.SortedMap;
  *
  */
 abstract public class HashTable {
+    // pointers of tables dumped into a byte array never exceed 4 bytes
+    static final int MAX_ARRAY_PTR_SIZE = 4;
+    static final int MAX_PTR_SIZE = 8;
+
     public static enum ValueSize {
         BYTE(1), SHORT(2), INT(4), LONG(8);//, VAR(-1);
 
@@ -48,9 +60,203 @@ abstract public class HashTable {
             return ValueSize.get(1 << value);
         }
     }
+
+    /**
+     *  Lossy encodings of float values, see Writer.setFloatEncoding
+     */
+    public static enum FloatEncoding {
+        // IEEE 754 half precision, 11 significant bits up to 65504
+        FLOAT16(ValueSize.SHORT),
+        // upper half of a float, 8 significant bits and the whole float range
+        BFLOAT16(ValueSize.SHORT),
+        // levels evenly spaced between the smallest and the largest value
+        LINEAR8(ValueSize.BYTE), LINEAR16(ValueSize.SHORT),
+        // levels evenly spaced in log(1 + value - min), finer near the smallest value
+        LOG8(ValueSize.BYTE), LOG16(ValueSize.SHORT);
+
+        public final ValueSize valueSize;
+
+        FloatEncoding(ValueSize valueSize) {
+            this.valueSize = valueSize;
+        }
+    }
+
+    /**
+     *  Formats of tables, recorded by containers of many tables
+     */
+    public static enum Format {
+        TRIE, CHAIN, CUCKOO;
+
+        public static Format of(Writer writer) {
+            if (writer instanceof TrieHashTable.Writer) {
+                return TRIE;
+            }
+            if (writer instanceof ChainHashTable.Writer) {
+                return CHAIN;
+            }
+            if (writer instanceof CuckooHashTable.Writer) {
+                return CUCKOO;
+            }
+            throw new IllegalArgumentException("Unsupported writer: " + writer);
+        }
+
+        public Reader reader(byte[] data, int offset, int length) {
+            switch (this) {
+            case TRIE:
+                return new TrieHashTable.Reader(data, offset, length);
+            case CHAIN:
+                return new ChainHashTable.Reader(data, offset, length);
+            default:
+                return new CuckooHashTable.Reader(data, offset, length);
+            }
+        }
+
+        public LargeReader largeReader(SegmentedBytes data, long offset, long length) {
+            switch (this) {
+            case TRIE:
+                return new TrieHashTable.LargeReader(data, offset, length);
+            case CHAIN:
+                return new ChainHashTable.LargeReader(data, offset, length);
+            default:
+                return new CuckooHashTable.LargeReader(data, offset, length);
+            }
+        }
+    }
     
+    /**
+     *  Receives lookup and dump events of readers and writers it is set to.
+     *  Readers and writers without a listener do not measure anything.
+     */
+    public interface Listener {
+        /**
+         *  @param levels number of trie levels or hash table hops walked
+         *  @param bucketLength number of entries in the searched bucket
+         *  @param probes number of key comparisons
+         */
+        void onLookup(Reader reader, long key, boolean found, int levels, int bucketLength, int probes, long nanos);
+
+        void onDump(Writer writer, DumpStats stats);
+    }
+
+    public static final class DumpStats {
+        public final int numKeys;
+        // building intermediate structures
+        public final long buildNanos;
+        // calculating pointer sizes and offsets
+        public final long layoutNanos;
+        // serializing into the output buffer
+        public final long writeNanos;
+        // bytes allocated by the dumping thread, -1 if the JVM cannot measure it;
+        // upper bound of the working memory
+        public final long allocatedBytes;
+        public final long outputSize;
+
+        public DumpStats(int numKeys, long buildNanos, long layoutNanos, long writeNanos, long allocatedBytes, long outputSize) {
+            this.numKeys = numKeys;
+            this.buildNanos = buildNanos;
+            this.layoutNanos = layoutNanos;
+            this.writeNanos = writeNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.outputSize = outputSize;
+        }
+
+        public long totalNanos() {
+            return buildNanos + layoutNanos + writeNanos;
+        }
+    }
+
+    /**
+     *  Collects phase timings of a single dump
+     */
+    static final class DumpRecorder {
+        private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+        // com.sun.management.ThreadMXBean.getThreadAllocatedBytes, null when the JVM has no such bean
+        private static final Method THREAD_ALLOCATED_BYTES = threadAllocatedBytesMethod();
+
+        private final int numKeys;
+        private final long startAllocatedBytes;
+        private long time;
+        private long buildNanos;
+        private long layoutNanos;
+
+        DumpRecorder(int numKeys) {
+            this.numKeys = numKeys;
+            this.startAllocatedBytes = allocatedBytes();
+            this.time = System.nanoTime();
+        }
+
+        void built() {
+            long now = System.nanoTime();
+            buildNanos = now - time;
+            time = now;
+        }
+
+        void laidOut() {
+            long now = System.nanoTime();
+            layoutNanos = now - time;
+            time = now;
+        }
+
+        DumpStats written(long outputSize) {
+            long writeNanos = System.nanoTime() - time;
+            long endAllocatedBytes = startAllocatedBytes < 0 ? -1 : allocatedBytes();
+            long allocated = endAllocatedBytes < 0 ? -1 : endAllocatedBytes - startAllocatedBytes;
+            return new DumpStats(numKeys, buildNanos, layoutNanos, writeNanos, allocated, outputSize);
+        }
+
+        private static Method threadAllocatedBytesMethod() {
+            try {
+                Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+                if (beanClass.isInstance(THREAD_MX_BEAN)) {
+                    return beanClass.getMethod("getThreadAllocatedBytes", long.class);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // allocations are not measured
+            }
+            return null;
+        }
+
+        /**
+         *  @return bytes allocated by the current thread or -1 when they are not measured
+         */
+        private static long allocatedBytes() {
+            if (THREAD_ALLOCATED_BYTES == null) {
+                return -1;
+            }
+            try {
+                return (Long) THREAD_ALLOCATED_BYTES.invoke(THREAD_MX_BEAN, Thread.currentThread().getId());
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     *  Receives table entries in the order they are stored
+     */
+    public interface EntryVisitor {
+        void visit(long key, int valueOffset);
+    }
+
+    /**
+     *  Lookup shape collected only when a listener is set
+     */
+    static final class Probe {
+        int levels;
+        int bucketLength;
+        int probes;
+    }
+
     abstract public static class Writer {
         protected final ValueSize valueSize;
+        protected Listener listener;
+        protected KeySorter sorter;
+        protected boolean reuseScratch;
+        protected int tinyThreshold = DEFAULT_TINY_THRESHOLD;
+        protected FloatEncoding floatEncoding;
+        protected int maxDictionarySize;
+
+        public static final int DEFAULT_TINY_THRESHOLD = 16;
 
         public Writer(ValueSize valueSize) {
             this.valueSize = valueSize;
@@ -60,17 +266,84 @@ abstract public class HashTable {
             return valueSize;
         }
 
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        public Listener listener() {
+            return listener;
+        }
+
+        /**
+         *  Without a sorter keys must be passed in ascending order
+         */
+        public void setSorter(KeySorter sorter) {
+            this.sorter = sorter;
+        }
+
+        public KeySorter sorter() {
+            return sorter;
+        }
+
+        /**
+         *  Keeps scratch structures between dumps, so dumping many small tables
+         *  allocates almost nothing. Such a writer must not be shared between threads.
+         */
+        public void setReuseScratch(boolean reuseScratch) {
+            this.reuseScratch = reuseScratch;
+        }
+
+        public boolean reuseScratch() {
+            return reuseScratch;
+        }
+
+        /**
+         *  Tables with at most this number of keys are written as tiny tables
+         *  when it is not larger, 0 disables them
+         */
+        public void setTinyThreshold(int tinyThreshold) {
+            assert 0 <= tinyThreshold && tinyThreshold <= TinyTable.MAX_NUM_KEYS;
+            this.tinyThreshold = tinyThreshold;
+        }
+
+        public int tinyThreshold() {
+            return tinyThreshold;
+        }
+
+        /**
+         *  Floats are stored in 1 or 2 bytes with the encoding, readers decode
+         *  them in getFloat. Null stores them as is.
+         */
+        public void setFloatEncoding(FloatEncoding floatEncoding) {
+            this.floatEncoding = floatEncoding;
+        }
+
+        public FloatEncoding floatEncoding() {
+            return floatEncoding;
+        }
+
+        /**
+         *  Values are stored as ordinals into the sorted dictionary of their
+         *  distinct values when there are at most maxDictionarySize of them
+         *  and the table gets smaller, 0 disables dictionaries.
+         *  Readers resolve ordinals in all getters.
+         */
+        public void setMaxDictionarySize(int maxDictionarySize) {
+            assert 0 <= maxDictionarySize && maxDictionarySize <= ValueCodec.Dictionary.MAX_SIZE;
+            this.maxDictionarySize = maxDictionarySize;
+        }
+
+        public int maxDictionarySize() {
+            return maxDictionarySize;
+        }
+
         public byte[] dumpBytes(Collection<Long> keys, Collection<Byte> values) {
             return dumpBytes(ByteUtils.toLongArray(keys), ByteUtils.toByteArray(values));
         }
 
         public byte[] dumpBytes(long[] keys, byte[] values) {
             assert valueSize == ValueSize.BYTE;
-            byte[][] bytesArray = new byte[values.length][];
-            for (int i = 0; i < values.length; i++) {
-                bytesArray[i] = new byte[]{ values[i] };
-            }
-            return dump(keys, bytesArray);
+            return dump(keys, new Values.Bytes(values));
         }
 
         public byte[] dumpShorts(List<Long> keys, List<Short> values) {
@@ -79,11 +352,7 @@ abstract public class HashTable {
 
         public byte[] dumpShorts(long[] keys, short[] values) {
             assert valueSize == ValueSize.SHORT;
-            byte[][] bytesArray = new byte[values.length][];
-            for (int i = 0; i < values.length; i++) {
-                bytesArray[i] = ByteUtils.shortToBytes(values[i]);
-            }
-            return dump(keys, bytesArray);
+            return dump(keys, new Values.Shorts(values));
         }
 
         public byte[] dumpInts(List<Long> keys, List<Integer> values) {
@@ -92,11 +361,7 @@ abstract public class HashTable {
 
         public byte[] dumpInts(long[] keys, int[] values) {
             assert valueSize == ValueSize.INT;
-            byte[][] bytesArray = new byte[values.length][];
-            for (int i = 0; i < values.length; i++) {
-                bytesArray[i] = ByteUtils.intToBytes(values[i]);
-            }
-            return dump(keys, bytesArray);
+            return dump(keys, new Values.Ints(values));
         }
 
         public byte[] dumpLongs(List<Long> keys, List<Long> values) {
@@ -105,11 +370,7 @@ abstract public class HashTable {
 
         public byte[] dumpLongs(long[] keys, long[] values) {
             assert valueSize == ValueSize.LONG;
-            byte[][] bytesArray = new byte[values.length][];
-            for (int i = 0; i < values.length; i++) {
-                bytesArray[i] = ByteUtils.longToBytes(values[i]);
-            }
-            return dump(keys, bytesArray);
+            return dump(keys, new Values.Longs(values));
         }
 
         public byte[] dumpFloats(Collection<Long> keys, Collection<Float> values) {
@@ -118,11 +379,7 @@ abstract public class HashTable {
 
         public byte[] dumpFloats(long[] keys, float[] values) {
             assert valueSize == ValueSize.INT;
-            byte[][] bytesArray = new byte[values.length][];
-            for (int i = 0; i < values.length; i++) {
-                bytesArray[i] = ByteUtils.floatToBytes(values[i]);
-            }
-            return dump(keys, bytesArray);
+            return dump(keys, floats(values));
         }
 
         public byte[] dumpDoubles(Collection<Long> keys, Collection<Double> values) {
@@ -131,11 +388,7 @@ abstract public class HashTable {
 
         public byte[] dumpDoubles(long[] keys, double[] values) {
             assert valueSize == ValueSize.LONG;
-            byte[][] bytesArray = new byte[values.length][];
-            for (int i = 0; i < values.length; i++) {
-                bytesArray[i] = ByteUtils.doubleToBytes(values[i]);
-            }
-            return dump(keys, bytesArray);
+            return dump(keys, new Values.Doubles(values));
         }
 
         public byte[] dump(Collection<Long> keys, Collection<byte[]> values) {
@@ -146,26 +399,341 @@ abstract public class HashTable {
             return dump(ByteUtils.toLongArray(entries.keySet()), ByteUtils.toBytesArray(entries.values()));
         }
 
-        abstract public byte[] dump(long[] keys, byte[][] values);
+        public byte[] dump(long[] keys, byte[][] values) {
+            return dump(keys, new Values.ByteArrays(values));
+        }
+
+        /**
+         *  Streams the table into the output, so tables larger than 2 GB
+         *  can be written. Pointers take up to 8 bytes.
+         *
+         *  @return number of written bytes
+         */
+        public long dump(long[] keys, byte[][] values, OutputStream out) throws IOException {
+            return dump(keys, new Values.ByteArrays(values), out);
+        }
+
+        public int dumpBytes(long[] keys, byte[] values, ByteBuffer target) {
+            assert valueSize == ValueSize.BYTE;
+            return dump(keys, new Values.Bytes(values), target);
+        }
+
+        public int dumpShorts(long[] keys, short[] values, ByteBuffer target) {
+            assert valueSize == ValueSize.SHORT;
+            return dump(keys, new Values.Shorts(values), target);
+        }
+
+        public int dumpInts(long[] keys, int[] values, ByteBuffer target) {
+            assert valueSize == ValueSize.INT;
+            return dump(keys, new Values.Ints(values), target);
+        }
+
+        public int dumpLongs(long[] keys, long[] values, ByteBuffer target) {
+            assert valueSize == ValueSize.LONG;
+            return dump(keys, new Values.Longs(values), target);
+        }
+
+        public int dumpFloats(long[] keys, float[] values, ByteBuffer target) {
+            assert valueSize == ValueSize.INT;
+            return dump(keys, floats(values), target);
+        }
+
+        public int dumpDoubles(long[] keys, double[] values, ByteBuffer target) {
+            assert valueSize == ValueSize.LONG;
+            return dump(keys, new Values.Doubles(values), target);
+        }
+
+        /**
+         *  Appends the table at the target position, the target may be a direct buffer
+         *  and keeps its byte order. Pointers take up to 4 bytes.
+         *
+         *  @return number of written bytes
+         *  @throws BufferOverflowException when the table does not fit,
+         *      nothing is written then
+         */
+        public int dump(long[] keys, byte[][] values, ByteBuffer target) {
+            return dump(keys, new Values.ByteArrays(values), target);
+        }
+
+        /**
+         *  Writes the table into dst starting at off
+         *
+         *  @return number of written bytes
+         *  @throws BufferOverflowException when the table does not fit
+         */
+        public int dump(long[] keys, byte[][] values, byte[] dst, int off) {
+            return dump(keys, new Values.ByteArrays(values), ByteBuffer.wrap(dst, off, dst.length - off));
+        }
+
+        byte[] dump(long[] keys, Values values) {
+            assert keys.length == values.length();
+
+            if (keys.length == 0) {
+                return new byte[0];
+            }
+
+            DumpRecorder recorder = this.listener != null ? new DumpRecorder(keys.length) : null;
+            Dumpable table = prepare(keys, values, MAX_ARRAY_PTR_SIZE, recorder);
+            long size = table.dumpSize();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Table of " + size + " bytes does not fit into an array, dump it into a stream");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            write(table, buffer);
+            if (recorder != null) {
+                this.listener.onDump(this, recorder.written(size));
+            }
+            return buffer.array();
+        }
+
+        int dump(long[] keys, Values values, ByteBuffer target) {
+            assert keys.length == values.length();
+
+            if (keys.length == 0) {
+                return 0;
+            }
+
+            DumpRecorder recorder = this.listener != null ? new DumpRecorder(keys.length) : null;
+            Dumpable table = prepare(keys, values, MAX_ARRAY_PTR_SIZE, recorder);
+            long size = table.dumpSize();
+            if (size > target.remaining()) {
+                throw new BufferOverflowException();
+            }
+
+            write(table, target);
+            if (recorder != null) {
+                this.listener.onDump(this, recorder.written(size));
+            }
+            return (int) size;
+        }
+
+        long dump(long[] keys, Values values, OutputStream out) throws IOException {
+            assert keys.length == values.length();
+
+            if (keys.length == 0) {
+                return 0;
+            }
+
+            DumpRecorder recorder = this.listener != null ? new DumpRecorder(keys.length) : null;
+            Dumpable table = prepare(keys, values, MAX_PTR_SIZE, recorder);
+            long size = table.dumpSize();
+
+            Output output = new StreamOutput(out);
+            table.dump(output);
+            output.flush();
+            if (recorder != null) {
+                this.listener.onDump(this, recorder.written(size));
+            }
+            return size;
+        }
+
+        private Values floats(float[] values) {
+            if (this.floatEncoding == null) {
+                return new Values.Floats(values);
+            }
+            return ValueCodec.forFloats(this.floatEncoding, values).encodeFloats(values);
+        }
+
+        /**
+         *  Sorts keys when needed, builds and lays out the table
+         */
+        private Dumpable prepare(long[] keys, Values values, int maxPtrSize, DumpRecorder recorder) {
+            if (this.sorter != null && !KeySorter.isStrictlySorted(keys)) {
+                int[] order = this.sorter.order(keys);
+                keys = KeySorter.permute(keys, order);
+                values = values.permute(order);
+            }
+            if (this.maxDictionarySize > 0 && values.codec() == null && this.valueSize != ValueSize.BYTE) {
+                ValueCodec.Dictionary dictionary = ValueCodec.Dictionary.fit(values, this.valueSize, this.maxDictionarySize);
+                if (dictionary != null) {
+                    values = dictionary.encode(values);
+                }
+            }
+            ValueCodec codec = values.codec();
+            ValueSize valueSize = codec != null ? codec.storedSize() : this.valueSize;
+            Dumpable table = build(keys, values, valueSize);
+            if (recorder != null) {
+                recorder.built();
+            }
+            table.layout(maxPtrSize);
+            if (keys.length <= this.tinyThreshold) {
+                TinyTable tiny = new TinyTable(keys, values, valueSize);
+                if (tiny.dumpSize() <= table.dumpSize()) {
+                    table = tiny;
+                }
+            }
+            if (codec != null) {
+                table = new ValueCodec.EncodedTable(table, codec);
+            }
+            if (recorder != null) {
+                recorder.laidOut();
+            }
+            return table;
+        }
+
+        /**
+         *  @param keys sorted keys
+         *  @param valueSize size of stored values, smaller than the writer's one
+         *      for encoded values
+         */
+        abstract Dumpable build(long[] keys, Values values, ValueSize valueSize);
+
+    }
+
+    /**
+     *  Destination of serialized tables
+     */
+    abstract static class Output {
+        /**
+         *  @return buffer with at least numBytes remaining
+         */
+        abstract ByteBuffer reserve(int numBytes) throws IOException;
+
+        abstract void flush() throws IOException;
+    }
+
+    static final class BufferOutput extends Output {
+        private final ByteBuffer buffer;
+
+        BufferOutput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        ByteBuffer reserve(int numBytes) {
+            return buffer;
+        }
+
+        @Override
+        void flush() {}
+    }
+
+    /**
+     *  Writes a laid out table into a buffer having enough room for it
+     */
+    static void write(Dumpable table, ByteBuffer buffer) {
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            table.dump(new BufferOutput(buffer));
+        } catch (IOException e) {
+            // buffer output never flushes
+            throw new IllegalStateException(e);
+        } finally {
+            buffer.order(order);
+        }
+    }
+
+    /**
+     *  Table built by a writer
+     */
+    interface Dumpable {
+        /**
+         *  Chooses the smallest pointer size not exceeding maxPtrSize
+         */
+        void layout(int maxPtrSize);
+
+        /**
+         *  @return size in bytes, known after layout
+         */
+        long dumpSize();
+
+        void dump(Output output) throws IOException;
+    }
+
+    static final class StreamOutput extends Output {
+        private static final int BUFFER_SIZE = 1 << 16;
+
+        private final OutputStream out;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        StreamOutput(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        ByteBuffer reserve(int numBytes) throws IOException {
+            assert numBytes <= BUFFER_SIZE;
+            if (buffer.remaining() < numBytes) {
+                flush();
+            }
+            return buffer;
+        }
+
+        @Override
+        void flush() throws IOException {
+            out.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
     }
 
     abstract public static class Reader {
         protected final byte[] data;
         protected final int offset;
         protected final int length;
+        // decodes values of encoded tables, null for others
+        protected final ValueCodec codec;
+        protected Listener listener;
         
         public static final int NOT_FOUND_OFFSET = -1;
 
         public Reader(byte[] data, int offset, int length) {
             this.data = data;
             this.offset = offset;
-            this.length = length;
+            // lookups do not see the codec
+            this.length = ValueCodec.tableLength(data, offset, length);
+            this.codec = ValueCodec.isEncoded(data, offset, length) ? ValueCodec.read(data, offset, length) : null;
         }
 
+        /**
+         *  @return size of stored values
+         */
         abstract public ValueSize valueSize();
 
+        /**
+         *  @return encoding of float values or null when they are stored as is
+         */
+        public FloatEncoding floatEncoding() {
+            return codec != null ? codec.floatEncoding() : null;
+        }
+
+        public void setListener(Listener listener) {
+            this.listener = listener;
+        }
+
+        public Listener listener() {
+            return listener;
+        }
+
         abstract public int getValueOffset(long key);
 
+        /**
+         *  Finds the value offset reporting the lookup to the listener if there is one,
+         *  readers of this package implement getValueOffset with it
+         */
+        final int lookup(long key) {
+            if (this.listener == null) {
+                return findValueOffset(key, null);
+            }
+            Probe probe = new Probe();
+            long startTime = System.nanoTime();
+            int valueOffset = findValueOffset(key, probe);
+            long nanos = System.nanoTime() - startTime;
+            this.listener.onLookup(this, key, valueOffset != NOT_FOUND_OFFSET,
+                                   probe.levels, probe.bucketLength, probe.probes, nanos);
+            return valueOffset;
+        }
+
+        /**
+         *  @param probe collects lookup shape, null when nobody listens
+         */
+        int findValueOffset(long key, Probe probe) {
+            return getValueOffset(key);
+        }
+
+        abstract public void forEach(EntryVisitor visitor);
+
         public boolean exists(long key) {
             int valueOffset = getValueOffset(key);
             return valueOffset != NOT_FOUND_OFFSET;
@@ -180,6 +748,9 @@ abstract public class HashTable {
         }
 
         public byte getByte(int valueOffset) {
+            if (this.codec != null) {
+                return (byte) decode(valueOffset);
+            }
             assert this.valueSize() == ValueSize.BYTE;
             return this.data[valueOffset];
         }
@@ -193,8 +764,11 @@ abstract public class HashTable {
         }
 
         public short getShort(int valueOffset) {
+            if (this.codec != null) {
+                return (short) decode(valueOffset);
+            }
             assert this.valueSize() == ValueSize.SHORT;
-            return ByteUtils.bytesToShort(get(valueOffset));
+            return ByteUtils.bytesToShort(this.data, valueOffset);
         }
 
         public int getInt(long key, int defaultValue) {
@@ -206,8 +780,11 @@ abstract public class HashTable {
         }
 
         public int getInt(int valueOffset) {
+            if (this.codec != null) {
+                return (int) decode(valueOffset);
+            }
             assert this.valueSize() == ValueSize.INT;
-            return ByteUtils.bytesToInt(get(valueOffset));
+            return ByteUtils.bytesToInt(this.data, valueOffset);
         }
 
         public long getLong(long key, long defaultValue) {
@@ -219,8 +796,11 @@ abstract public class HashTable {
         }
 
         public long getLong(int valueOffset) {
+            if (this.codec != null) {
+                return decode(valueOffset);
+            }
             assert this.valueSize() == ValueSize.LONG;
-            return ByteUtils.bytesToLong(get(valueOffset));
+            return ByteUtils.bytesToLong(this.data, valueOffset);
         }
 
         public float getFloat(long key, float defaultValue) {
@@ -232,8 +812,11 @@ abstract public class HashTable {
         }
 
         public float getFloat(int valueOffset) {
+            if (this.codec != null) {
+                return this.codec.decodeFloat(loadStored(valueOffset));
+            }
             assert this.valueSize() == ValueSize.INT;
-            return ByteUtils.bytesToFloat(get(valueOffset));
+            return ByteUtils.bytesToFloat(this.data, valueOffset);
         }
 
         public double getDouble(long key, double defaultValue) {
@@ -245,11 +828,17 @@ abstract public class HashTable {
         }
 
         public double getDouble(int valueOffset) {
+            if (this.codec != null) {
+                return Double.longBitsToDouble(decode(valueOffset));
+            }
             assert this.valueSize() == ValueSize.LONG;
-            return ByteUtils.bytesToDouble(get(valueOffset));
+            return ByteUtils.bytesToDouble(this.data, valueOffset);
         }
 
         public byte[] get(int valueOffset) {
+            if (this.codec != null) {
+                return LONG_CODECS[this.codec.valueSize().size - 1].dump(decode(valueOffset));
+            }
             byte[] value = new byte[this.valueSize().size];
             System.arraycopy(this.data, valueOffset, value, 0, this.valueSize().size);
             return value;
@@ -262,6 +851,296 @@ abstract public class HashTable {
             }
             return get(valueOffset);
         }
+
+        private long loadStored(int valueOffset) {
+            return ByteUtils.load(this.data, valueOffset, this.valueSize().size);
+        }
+
+        /**
+         *  @return bits of the decoded value
+         */
+        private long decode(int valueOffset) {
+            return this.codec.decode(loadStored(valueOffset));
+        }
+    }
+
+    /**
+     *  Reader of tables that do not fit into a byte array,
+     *  offsets are absolute positions in the segmented data
+     */
+    abstract public static class LargeReader {
+        protected final SegmentedBytes data;
+        protected final long offset;
+        protected final long length;
+        protected final ValueCodec codec;
+
+        public static final long NOT_FOUND_OFFSET = -1;
+
+        public LargeReader(SegmentedBytes data, long offset, long length) {
+            this.data = data;
+            this.offset = offset;
+            this.length = ValueCodec.tableLength(data, offset, length);
+            this.codec = this.length != length ? ValueCodec.read(data, offset, length) : null;
+        }
+
+        /**
+         *  @return size of stored values
+         */
+        abstract public ValueSize valueSize();
+
+        public FloatEncoding floatEncoding() {
+            return codec != null ? codec.floatEncoding() : null;
+        }
+
+        public SegmentedBytes data() {
+            return data;
+        }
+
+        abstract public long getValueOffset(long key);
+
+        public boolean exists(long key) {
+            return getValueOffset(key) != NOT_FOUND_OFFSET;
+        }
+
+        public byte getByte(long key, byte defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return (byte) decode(valueOffset);
+            }
+            assert this.valueSize() == ValueSize.BYTE;
+            return this.data.get(valueOffset);
+        }
+
+        public short getShort(long key, short defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return (short) decode(valueOffset);
+            }
+            assert this.valueSize() == ValueSize.SHORT;
+            return (short) this.data.load(valueOffset, 2);
+        }
+
+        public int getInt(long key, int defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return (int) decode(valueOffset);
+            }
+            assert this.valueSize() == ValueSize.INT;
+            return (int) this.data.load(valueOffset, 4);
+        }
+
+        public long getLong(long key, long defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return decode(valueOffset);
+            }
+            assert this.valueSize() == ValueSize.LONG;
+            return this.data.load(valueOffset, 8);
+        }
+
+        public float getFloat(long key, float defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return this.codec.decodeFloat(this.data.load(valueOffset, this.valueSize().size));
+            }
+            assert this.valueSize() == ValueSize.INT;
+            return Float.intBitsToFloat((int) this.data.load(valueOffset, 4));
+        }
+
+        public double getDouble(long key, double defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return Double.longBitsToDouble(decode(valueOffset));
+            }
+            assert this.valueSize() == ValueSize.LONG;
+            return Double.longBitsToDouble(this.data.load(valueOffset, 8));
+        }
+
+        public byte[] get(long key, byte[] defaultValue) {
+            long valueOffset = getValueOffset(key);
+            if (valueOffset == NOT_FOUND_OFFSET) {
+                return defaultValue;
+            }
+            if (this.codec != null) {
+                return LONG_CODECS[this.codec.valueSize().size - 1].dump(decode(valueOffset));
+            }
+            byte[] value = new byte[this.valueSize().size];
+            this.data.get(valueOffset, value, 0, value.length);
+            return value;
+        }
+
+        private long decode(long valueOffset) {
+            return this.codec.decode(this.data.load(valueOffset, this.valueSize().size));
+        }
+    }
+
+    /**
+     *  Looks up one key in many serialized tables of the same format.
+     *  Tables are passed as parallel arrays of data, offsets and lengths,
+     *  the key is decomposed once per call and no reader is created per table.
+     *  Codecs of encoded tables are cached by the multi reader, so tables
+     *  must not be changed in place while it is used.
+     */
+    abstract public static class MultiReader {
+        public static final int PARALLEL_THRESHOLD = 4096;
+        private static final int CODEC_CACHE_SIZE = 256;
+
+        // direct mapped by table, concurrent lookups may replace each other's entries
+        private final CodecEntry[] codecs = new CodecEntry[CODEC_CACHE_SIZE];
+
+        abstract public static class Lookup {
+            abstract public int getValueOffset(byte[] data, int offset, int length);
+        }
+
+        abstract protected Lookup prepare(long key);
+
+        public void getValueOffsets(long key, byte[][] data, int[] offsets, int[] lengths, int[] valueOffsets) {
+            fillValueOffsets(prepare(key), data, offsets, lengths, valueOffsets, 0, data.length);
+        }
+
+        public void getValueOffsets(long key, byte[][] data, int[] offsets, int[] lengths, int[] valueOffsets, ForkJoinPool pool) {
+            pool.invoke(new ValueOffsetsAction(prepare(key), data, offsets, lengths, valueOffsets, 0, data.length));
+        }
+
+        public void getBytes(long key, byte[][] data, int[] offsets, int[] lengths, byte defaultValue, byte[] values) {
+            Lookup lookup = prepare(key);
+            for (int i = 0; i < data.length; i++) {
+                int valueOffset = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+                values[i] = valueOffset == Reader.NOT_FOUND_OFFSET ? defaultValue : (byte) load(data[i], offsets[i], lengths[i], valueOffset, 1);
+            }
+        }
+
+        public void getShorts(long key, byte[][] data, int[] offsets, int[] lengths, short defaultValue, short[] values) {
+            Lookup lookup = prepare(key);
+            for (int i = 0; i < data.length; i++) {
+                int valueOffset = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+                values[i] = valueOffset == Reader.NOT_FOUND_OFFSET ? defaultValue : (short) load(data[i], offsets[i], lengths[i], valueOffset, 2);
+            }
+        }
+
+        public void getInts(long key, byte[][] data, int[] offsets, int[] lengths, int defaultValue, int[] values) {
+            Lookup lookup = prepare(key);
+            for (int i = 0; i < data.length; i++) {
+                int valueOffset = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+                values[i] = valueOffset == Reader.NOT_FOUND_OFFSET ? defaultValue : (int) load(data[i], offsets[i], lengths[i], valueOffset, 4);
+            }
+        }
+
+        public void getLongs(long key, byte[][] data, int[] offsets, int[] lengths, long defaultValue, long[] values) {
+            Lookup lookup = prepare(key);
+            for (int i = 0; i < data.length; i++) {
+                int valueOffset = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+                values[i] = valueOffset == Reader.NOT_FOUND_OFFSET ? defaultValue : load(data[i], offsets[i], lengths[i], valueOffset, 8);
+            }
+        }
+
+        public void getFloats(long key, byte[][] data, int[] offsets, int[] lengths, float defaultValue, float[] values) {
+            Lookup lookup = prepare(key);
+            for (int i = 0; i < data.length; i++) {
+                int valueOffset = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+                values[i] = valueOffset == Reader.NOT_FOUND_OFFSET ? defaultValue : Float.intBitsToFloat((int) load(data[i], offsets[i], lengths[i], valueOffset, 4));
+            }
+        }
+
+        public void getDoubles(long key, byte[][] data, int[] offsets, int[] lengths, double defaultValue, double[] values) {
+            Lookup lookup = prepare(key);
+            for (int i = 0; i < data.length; i++) {
+                int valueOffset = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+                values[i] = valueOffset == Reader.NOT_FOUND_OFFSET ? defaultValue : Double.longBitsToDouble(load(data[i], offsets[i], lengths[i], valueOffset, 8));
+            }
+        }
+
+        /**
+         *  @return bits of the value, decoded when the table is encoded
+         */
+        private long load(byte[] data, int offset, int length, int valueOffset, int valueSize) {
+            if (!ValueCodec.isEncoded(data, offset, length)) {
+                return ByteUtils.load(data, valueOffset, valueSize);
+            }
+            ValueCodec codec = codec(data, offset, length);
+            return codec.decode(ByteUtils.load(data, valueOffset, codec.storedSize().size));
+        }
+
+        private ValueCodec codec(byte[] data, int offset, int length) {
+            int slot = (System.identityHashCode(data) * 31 + offset) & (CODEC_CACHE_SIZE - 1);
+            CodecEntry entry = this.codecs[slot];
+            if (entry == null || entry.data != data || entry.offset != offset || entry.length != length) {
+                entry = new CodecEntry(data, offset, length, ValueCodec.read(data, offset, length));
+                this.codecs[slot] = entry;
+            }
+            return entry.codec;
+        }
+
+        private static final class CodecEntry {
+            final byte[] data;
+            final int offset;
+            final int length;
+            final ValueCodec codec;
+
+            CodecEntry(byte[] data, int offset, int length, ValueCodec codec) {
+                this.data = data;
+                this.offset = offset;
+                this.length = length;
+                this.codec = codec;
+            }
+        }
+
+        private static void fillValueOffsets(Lookup lookup, byte[][] data, int[] offsets, int[] lengths, int[] valueOffsets, int from, int to) {
+            for (int i = from; i < to; i++) {
+                valueOffsets[i] = lookup.getValueOffset(data[i], offsets[i], lengths[i]);
+            }
+        }
+
+        private static final class ValueOffsetsAction extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Lookup lookup;
+            private final byte[][] data;
+            private final int[] offsets;
+            private final int[] lengths;
+            private final int[] valueOffsets;
+            private final int from;
+            private final int to;
+
+            ValueOffsetsAction(Lookup lookup, byte[][] data, int[] offsets, int[] lengths, int[] valueOffsets, int from, int to) {
+                this.lookup = lookup;
+                this.data = data;
+                this.offsets = offsets;
+                this.lengths = lengths;
+                this.valueOffsets = valueOffsets;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            protected void compute() {
+                if (to - from <= PARALLEL_THRESHOLD) {
+                    fillValueOffsets(lookup, data, offsets, lengths, valueOffsets, from, to);
+                    return;
+                }
+                int mid = (from + to) >>> 1;
+                invokeAll(new ValueOffsetsAction(lookup, data, offsets, lengths, valueOffsets, from, mid),
+                          new ValueOffsetsAction(lookup, data, offsets, lengths, valueOffsets, mid, to));
+            }
+        }
     }
 
     protected static final LongCodec[] LONG_CODECS = new LongCodec[] {
@@ -273,7 +1152,7 @@ abstract public class HashTable {
 
             @Override
             public long load(byte[] array, int offset) {
-                return array[offset] & 0xff;
+                return array[offset] & 0xffL;
             }
         },
         new LongCodec() {
@@ -286,8 +1165,8 @@ abstract public class HashTable {
             @Override
             public long load(byte[] array, int offset) {
                 return
-                    (array[offset] & 0xff) |
-                    ((array[offset+1] & 0xff) << 8);
+                    (array[offset] & 0xffL) |
+                    ((array[offset+1] & 0xffL) << 8);
             }
         },
         new LongCodec() {
@@ -301,9 +1180,9 @@ abstract public class HashTable {
             @Override
             public long load(byte[] array, int offset) {
                 return
-                    (array[offset] & 0xff) |
-                    ((array[offset+1] & 0xff) << 8) |
-                    ((array[offset+2] & 0xff) << 16);
+                    (array[offset] & 0xffL) |
+                    ((array[offset+1] & 0xffL) << 8) |
+                    ((array[offset+2] & 0xffL) << 16);
             }
         },
         new LongCodec() {
@@ -318,10 +1197,10 @@ abstract public class HashTable {
             @Override
             public long load(byte[] array, int offset) {
                 return
-                    (array[offset] & 0xff) |
-                    ((array[offset+1] & 0xff) << 8) |
-                    ((array[offset+2] & 0xff) << 16) |
-                    ((array[offset+3] & 0xff) << 24);
+                    (array[offset] & 0xffL) |
+                    ((array[offset+1] & 0xffL) << 8) |
+                    ((array[offset+2] & 0xffL) << 16) |
+                    ((array[offset+3] & 0xffL) << 24);
             }
         },
         new LongCodec() {
@@ -337,11 +1216,11 @@ abstract public class HashTable {
             @Override
             public long load(byte[] array, int offset) {
                 return
-                    (array[offset] & 0xff) |
-                    ((array[offset+1] & 0xff) << 8) |
-                    ((array[offset+2] & 0xff) << 16) |
-                    ((array[offset+3] & 0xff) << 24) |
-                    ((array[offset+4] & 0xff) << 32);
+                    (array[offset] & 0xffL) |
+                    ((array[offset+1] & 0xffL) << 8) |
+                    ((array[offset+2] & 0xffL) << 16) |
+                    ((array[offset+3] & 0xffL) << 24) |
+                    ((array[offset+4] & 0xffL) << 32);
             }
         },
         new LongCodec() {
@@ -358,12 +1237,12 @@ abstract public class HashTable {
             @Override
             public long load(byte[] array, int offset) {
                 return
-                    (array[offset] & 0xff) |
-                    ((array[offset+1] & 0xff) << 8) |
-                    ((array[offset+2] & 0xff) << 16) |
-                    ((array[offset+3] & 0xff) << 24) |
-                    ((array[offset+4] & 0xff) << 32) |
-                    ((array[offset+5] & 0xff) << 40);
+                    (array[offset] & 0xffL) |
+                    ((array[offset+1] & 0xffL) << 8) |
+                    ((array[offset+2] & 0xffL) << 16) |
+                    ((array[offset+3] & 0xffL) << 24) |
+                    ((array[offset+4] & 0xffL) << 32) |
+                    ((array[offset+5] & 0xffL) << 40);
             }
         },
         new LongCodec() {
@@ -381,13 +1260,13 @@ abstract public class HashTable {
             @Override
             public long load(byte[] array, int offset) {
                 return
-                    (array[offset] & 0xff) |
-                    ((array[offset+1] & 0xff) << 8) |
-                    ((array[offset+2] & 0xff) << 16) |
-                    ((array[offset+3] & 0xff) << 24) |
-                    ((array[offset+4] & 0xff) << 32) |
-                    ((array[offset+5] & 0xff) << 40) |
-                    ((array[offset+6] & 0xff) << 48);
+                    (array[offset] & 0xffL) |
+                    ((array[offset+1] & 0xffL) << 8) |
+                    ((array[offset+2] & 0xffL) << 16) |
+                    ((array[offset+3] & 0xffL) << 24) |
+                    ((array[offset+4] & 0xffL) << 32) |
+                    ((array[offset+5] & 0xffL) << 40) |
+                    ((array[offset+6] & 0xffL) << 48);
             }
         },
         new LongCodec() {
@@ -0,0 +1,116 @@
+package net.uaprom.htable;
+
+
+/**
+ *  Set operations over keys of two tables
+ *
+ *  Two TrieHashTable tables whose levels have the same bitmask sizes are
+ *  walked together node by node combining whole bitmasks, so intersections
+ *  skip subtrees present in one table only. Two ChainHashTable tables with
+ *  the same hash table size are merged bucket by bucket. Other tables are
+ *  joined by lookups into the second table, or into the larger one
+ *  for intersections.
+ *
+ *  Tries walked together are visited in ascending key order, other tables
+ *  in the order of their forEach.
+ */
+public final class KeySets {
+    private KeySets() {}
+
+    public interface JoinVisitor {
+        /**
+         *  @param valueOffsetA value offset in the first table,
+         *      HashTable.Reader.NOT_FOUND_OFFSET when the key is absent from it
+         *  @param valueOffsetB value offset in the second table or NOT_FOUND_OFFSET
+         */
+        void visit(long key, int valueOffsetA, int valueOffsetB);
+    }
+
+    enum Operation {
+        INTERSECTION, UNION, DIFFERENCE
+    }
+
+    /**
+     *  Visits keys present in both tables
+     */
+    public static void intersect(HashTable.Reader a, HashTable.Reader b, JoinVisitor visitor) {
+        join(a, b, Operation.INTERSECTION, visitor);
+    }
+
+    /**
+     *  Visits keys present in any of the tables
+     */
+    public static void union(HashTable.Reader a, HashTable.Reader b, JoinVisitor visitor) {
+        join(a, b, Operation.UNION, visitor);
+    }
+
+    /**
+     *  Visits keys of the first table absent from the second one
+     */
+    public static void difference(HashTable.Reader a, HashTable.Reader b, final HashTable.EntryVisitor visitor) {
+        join(a, b, Operation.DIFFERENCE, new JoinVisitor() {
+            @Override
+            public void visit(long key, int valueOffsetA, int valueOffsetB) {
+                visitor.visit(key, valueOffsetA);
+            }
+        });
+    }
+
+    static void join(HashTable.Reader a, HashTable.Reader b, Operation operation, JoinVisitor visitor) {
+        if (a instanceof TrieHashTable.Reader && b instanceof TrieHashTable.Reader) {
+            TrieHashTable.Join join = new TrieHashTable.Join((TrieHashTable.Reader) a, (TrieHashTable.Reader) b, operation, visitor);
+            if (join.canJoin()) {
+                join.run();
+                return;
+            }
+        }
+        if (a instanceof ChainHashTable.Reader && b instanceof ChainHashTable.Reader) {
+            ChainHashTable.Join join = new ChainHashTable.Join((ChainHashTable.Reader) a, (ChainHashTable.Reader) b, operation, visitor);
+            if (join.canJoin()) {
+                join.run();
+                return;
+            }
+        }
+        lookupJoin(a, b, operation, visitor);
+    }
+
+    private static void lookupJoin(final HashTable.Reader a, final HashTable.Reader b, final Operation operation, final JoinVisitor visitor) {
+        if (operation == Operation.INTERSECTION && a.length > b.length) {
+            // lookups into the larger table
+            b.forEach(new HashTable.EntryVisitor() {
+                @Override
+                public void visit(long key, int valueOffsetB) {
+                    int valueOffsetA = getValueOffset(a, key);
+                    if (valueOffsetA != HashTable.Reader.NOT_FOUND_OFFSET) {
+                        visitor.visit(key, valueOffsetA, valueOffsetB);
+                    }
+                }
+            });
+            return;
+        }
+        a.forEach(new HashTable.EntryVisitor() {
+            @Override
+            public void visit(long key, int valueOffsetA) {
+                int valueOffsetB = getValueOffset(b, key);
+                boolean found = valueOffsetB != HashTable.Reader.NOT_FOUND_OFFSET;
+                if (operation == Operation.UNION || found == (operation == Operation.INTERSECTION)) {
+                    visitor.visit(key, valueOffsetA, valueOffsetB);
+                }
+            }
+        });
+        if (operation == Operation.UNION) {
+            b.forEach(new HashTable.EntryVisitor() {
+                @Override
+                public void visit(long key, int valueOffsetB) {
+                    if (getValueOffset(a, key) == HashTable.Reader.NOT_FOUND_OFFSET) {
+                        visitor.visit(key, HashTable.Reader.NOT_FOUND_OFFSET, valueOffsetB);
+                    }
+                }
+            });
+        }
+    }
+
+    private static int getValueOffset(HashTable.Reader reader, long key) {
+        return reader.length == 0 ? HashTable.Reader.NOT_FOUND_OFFSET : reader.getValueOffset(key);
+    }
+}
@@ -0,0 +1,403 @@
+package net.uaprom.htable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ *  Sorts unsorted keys for writers
+ *
+ *  Keys are sorted together with their indexes by a parallel LSD radix sort,
+ *  so values of any type are permuted afterwards without being moved around
+ *  during the sort. Inputs needing more scratch memory than the budget are
+ *  sorted in runs which are spilled to temporary files and merged.
+ *  The sort is stable, so duplicate keys keep their input order.
+ */
+public final class KeySorter {
+    public static enum DuplicatePolicy {
+        FAIL, KEEP_FIRST, KEEP_LAST
+    }
+
+    public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+    // key, index and their copies for scattering
+    private static final int BYTES_PER_KEY = 2 * (8 + 4);
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+    static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private final DuplicatePolicy duplicatePolicy;
+    private final long memoryBudget;
+    private final File tempDir;
+    private final ForkJoinPool pool;
+
+    public KeySorter() {
+        this(DuplicatePolicy.FAIL);
+    }
+
+    public KeySorter(DuplicatePolicy duplicatePolicy) {
+        this(duplicatePolicy, DEFAULT_MEMORY_BUDGET, null, ForkJoinPool.commonPool());
+    }
+
+    /**
+     *  @param memoryBudget scratch memory in bytes for sorting in memory
+     *  @param tempDir directory for spilled runs, null for the default one
+     */
+    public KeySorter(DuplicatePolicy duplicatePolicy, long memoryBudget, File tempDir, ForkJoinPool pool) {
+        assert memoryBudget >= BYTES_PER_KEY;
+        this.duplicatePolicy = duplicatePolicy;
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+        this.pool = pool;
+    }
+
+    public DuplicatePolicy duplicatePolicy() {
+        return duplicatePolicy;
+    }
+
+    /**
+     *  Sorted entries, arrays are the passed ones when keys were already sorted
+     */
+    public static final class Entries {
+        public final long[] keys;
+        public final byte[][] values;
+
+        public Entries(long[] keys, byte[][] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+    }
+
+    public Entries sort(long[] keys, byte[][] values) {
+        assert keys.length == values.length;
+
+        if (isStrictlySorted(keys)) {
+            return new Entries(keys, values);
+        }
+        int[] order = order(keys);
+        byte[][] sortedValues = new byte[order.length][];
+        for (int i = 0; i < order.length; i++) {
+            sortedValues[i] = values[order[i]];
+        }
+        return new Entries(permute(keys, order), sortedValues);
+    }
+
+    static long[] permute(long[] keys, int[] order) {
+        long[] permuted = new long[order.length];
+        for (int i = 0; i < order.length; i++) {
+            permuted[i] = keys[order[i]];
+        }
+        return permuted;
+    }
+
+    /**
+     *  @return indexes of the keys in ascending key order
+     *      with duplicates resolved by the policy
+     */
+    public int[] order(long[] keys) {
+        int runSize = (int) Math.min(Integer.MAX_VALUE, this.memoryBudget / BYTES_PER_KEY);
+        int[] order;
+        if (keys.length <= runSize) {
+            order = sortRun(keys, 0, keys.length);
+        } else {
+            try {
+                order = sortExternal(keys, runSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return resolveDuplicates(keys, order);
+    }
+
+    static boolean isStrictlySorted(long[] keys) {
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i - 1] >= keys[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int[] resolveDuplicates(long[] keys, int[] order) {
+        int n = 0;
+        for (int i = 0; i < order.length; i++) {
+            boolean duplicate = i > 0 && keys[order[i]] == keys[order[n - 1]];
+            if (!duplicate) {
+                order[n++] = order[i];
+                continue;
+            }
+            switch (this.duplicatePolicy) {
+            case FAIL:
+                throw new IllegalArgumentException("Duplicate key: " + keys[order[i]]);
+            case KEEP_LAST:
+                order[n - 1] = order[i];
+                break;
+            case KEEP_FIRST:
+                break;
+            }
+        }
+        if (n == order.length) {
+            return order;
+        }
+        int[] unique = new int[n];
+        System.arraycopy(order, 0, unique, 0, n);
+        return unique;
+    }
+
+    /**
+     *  LSD radix sort of keys[from, to) by 8 bit digits,
+     *  digits that are the same for all keys are skipped
+     */
+    private int[] sortRun(long[] keys, int from, int to) {
+        int n = to - from;
+        long[] k = new long[n];
+        int[] ix = new int[n];
+        for (int i = 0; i < n; i++) {
+            // flips the sign bit so signed order matches unsigned digits
+            k[i] = keys[from + i] ^ Long.MIN_VALUE;
+            ix[i] = from + i;
+        }
+        long[] kBuf = new long[n];
+        int[] ixBuf = new int[n];
+
+        int numChunks = n < PARALLEL_THRESHOLD ? 1 : Math.min(this.pool.getParallelism() * 4, n / (PARALLEL_THRESHOLD / 4));
+        int[][] counts = new int[numChunks][RADIX];
+        for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+            runChunks(new CountAction(k, counts, shift, n), numChunks);
+            if (isSingleDigit(counts, n)) {
+                continue;
+            }
+            // chunk offsets inside every digit keep the sort stable
+            int offset = 0;
+            for (int digit = 0; digit < RADIX; digit++) {
+                for (int chunk = 0; chunk < numChunks; chunk++) {
+                    int count = counts[chunk][digit];
+                    counts[chunk][digit] = offset;
+                    offset += count;
+                }
+            }
+            runChunks(new ScatterAction(k, ix, kBuf, ixBuf, counts, shift, n), numChunks);
+            long[] kTmp = k;
+            k = kBuf;
+            kBuf = kTmp;
+            int[] ixTmp = ix;
+            ix = ixBuf;
+            ixBuf = ixTmp;
+        }
+        return ix;
+    }
+
+    private static boolean isSingleDigit(int[][] counts, int n) {
+        for (int digit = 0; digit < RADIX; digit++) {
+            int total = 0;
+            for (int[] chunkCounts : counts) {
+                total += chunkCounts[digit];
+            }
+            if (total != 0) {
+                return total == n;
+            }
+        }
+        return true;
+    }
+
+    private void runChunks(ChunkAction action, int numChunks) {
+        if (numChunks == 1) {
+            action.chunk(0, 1);
+            return;
+        }
+        final ChunkTask[] tasks = new ChunkTask[numChunks];
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            tasks[chunk] = new ChunkTask(action, chunk, numChunks);
+        }
+        this.pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private static abstract class ChunkAction {
+        protected final int n;
+
+        ChunkAction(int n) {
+            this.n = n;
+        }
+
+        void chunk(int chunk, int numChunks) {
+            long size = this.n;
+            compute(chunk, (int) (size * chunk / numChunks), (int) (size * (chunk + 1) / numChunks));
+        }
+
+        abstract void compute(int chunk, int from, int to);
+    }
+
+    private static final class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ChunkAction action;
+        private final int chunk;
+        private final int numChunks;
+
+        ChunkTask(ChunkAction action, int chunk, int numChunks) {
+            this.action = action;
+            this.chunk = chunk;
+            this.numChunks = numChunks;
+        }
+
+        @Override
+        protected void compute() {
+            this.action.chunk(this.chunk, this.numChunks);
+        }
+    }
+
+    private static final class CountAction extends ChunkAction {
+        private final long[] k;
+        private final int[][] counts;
+        private final int shift;
+
+        CountAction(long[] k, int[][] counts, int shift, int n) {
+            super(n);
+            this.k = k;
+            this.counts = counts;
+            this.shift = shift;
+        }
+
+        @Override
+        void compute(int chunk, int from, int to) {
+            int[] chunkCounts = this.counts[chunk];
+            Arrays.fill(chunkCounts, 0);
+            for (int i = from; i < to; i++) {
+                chunkCounts[(int) (this.k[i] >>> this.shift) & (RADIX - 1)]++;
+            }
+        }
+    }
+
+    private static final class ScatterAction extends ChunkAction {
+        private final long[] k;
+        private final int[] ix;
+        private final long[] kOut;
+        private final int[] ixOut;
+        private final int[][] offsets;
+        private final int shift;
+
+        ScatterAction(long[] k, int[] ix, long[] kOut, int[] ixOut, int[][] offsets, int shift, int n) {
+            super(n);
+            this.k = k;
+            this.ix = ix;
+            this.kOut = kOut;
+            this.ixOut = ixOut;
+            this.offsets = offsets;
+            this.shift = shift;
+        }
+
+        @Override
+        void compute(int chunk, int from, int to) {
+            int[] chunkOffsets = this.offsets[chunk];
+            for (int i = from; i < to; i++) {
+                int pos = chunkOffsets[(int) (this.k[i] >>> this.shift) & (RADIX - 1)]++;
+                this.kOut[pos] = this.k[i];
+                this.ixOut[pos] = this.ix[i];
+            }
+        }
+    }
+
+    /**
+     *  Sorts runs in memory, spills them as key and index pairs
+     *  and merges them, ties go to the earlier run to keep the sort stable
+     */
+    private int[] sortExternal(long[] keys, int runSize) throws IOException {
+        List<File> runs = new ArrayList<>();
+        try {
+            for (int from = 0; from < keys.length; from += runSize) {
+                int to = (int) Math.min(keys.length, (long) from + runSize);
+                int[] runOrder = sortRun(keys, from, to);
+                File run = File.createTempFile("htable-run-", ".bin", this.tempDir);
+                runs.add(run);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)))) {
+                    for (int ix : runOrder) {
+                        out.writeLong(keys[ix]);
+                        out.writeInt(ix);
+                    }
+                }
+            }
+
+            int[] order = new int[keys.length];
+            PriorityQueue<RunReader> queue = new PriorityQueue<>();
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+                    RunReader reader = new RunReader(runs.get(i), i);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                int n = 0;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    order[n++] = reader.index;
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+            } finally {
+                for (RunReader reader : queue) {
+                    reader.close();
+                }
+            }
+            return order;
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+    }
+
+    private static final class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private final int runIx;
+        long key;
+        int index;
+
+        RunReader(File run, int runIx) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run)));
+            this.runIx = runIx;
+        }
+
+        boolean next() throws IOException {
+            try {
+                this.key = this.in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            this.index = this.in.readInt();
+            return true;
+        }
+
+        void close() throws IOException {
+            this.in.close();
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            int c = Long.compare(this.key, other.key);
+            return c != 0 ? c : Integer.compare(this.runIx, other.runIx);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package net.uaprom.htable;
+
+import java.util.Arrays;
+
+
+/**
+ *  LZ4 block format compressor and decompressor
+ *
+ *  Compression is greedy with a single hash table of 4 byte sequences,
+ *  output is readable by any LZ4 block decoder.
+ */
+final class Lz4 {
+    private Lz4() {}
+
+    static final int MIN_MATCH = 4;
+    // the last match starts at least 12 bytes before the end
+    private static final int MF_LIMIT = 12;
+    // the last 5 bytes are always literals
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_DISTANCE = 0xffff;
+    private static final int RUN_MASK = 0x0f;
+    static final int HASH_BITS = 12;
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    static int[] newHashTable() {
+        return new int[1 << HASH_BITS];
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    /**
+     *  @param hashTable scratch from {@link #newHashTable()}
+     *  @return length of compressed data written into dst,
+     *      dst must have room for {@link #maxCompressedLength(int)} bytes
+     */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] hashTable) {
+        // positions are stored plus one, zero is an empty slot
+        Arrays.fill(hashTable, 0);
+        int end = srcOff + srcLen;
+        int mfLimit = end - MF_LIMIT;
+        int matchLimit = end - LAST_LITERALS;
+        int anchor = srcOff;
+        int ip = srcOff;
+        int op = dstOff;
+        while (ip < mfLimit) {
+            int sequence = ByteUtils.bytesToInt(src, ip);
+            int h = hash(sequence);
+            int ref = srcOff + hashTable[h] - 1;
+            hashTable[h] = ip - srcOff + 1;
+            if (ref < srcOff || ip - ref > MAX_DISTANCE || ByteUtils.bytesToInt(src, ref) != sequence) {
+                // skips faster through incompressible data
+                ip += 1 + ((ip - anchor) >>> 6);
+                continue;
+            }
+            while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op);
+            ip += matchLength;
+            anchor = ip;
+            if (ip - 2 < mfLimit) {
+                hashTable[hash(ByteUtils.bytesToInt(src, ip - 2))] = ip - 2 - srcOff + 1;
+            }
+        }
+        op = writeLiterals(src, anchor, end - anchor, dst, op);
+        return op - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int literalsOff, int numLiterals, int distance, int matchLength,
+                                     byte[] dst, int op) {
+        int token = op;
+        op = writeLiterals(src, literalsOff, numLiterals, dst, op);
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+        int length = matchLength - MIN_MATCH;
+        if (length >= RUN_MASK) {
+            dst[token] |= RUN_MASK;
+            op = writeLength(length - RUN_MASK, dst, op);
+        } else {
+            dst[token] |= length;
+        }
+        return op;
+    }
+
+    private static int writeLiterals(byte[] src, int off, int numLiterals, byte[] dst, int op) {
+        int token = op++;
+        if (numLiterals >= RUN_MASK) {
+            dst[token] = (byte) (RUN_MASK << 4);
+            op = writeLength(numLiterals - RUN_MASK, dst, op);
+        } else {
+            dst[token] = (byte) (numLiterals << 4);
+        }
+        System.arraycopy(src, off, dst, op, numLiterals);
+        return op + numLiterals;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        for (; length >= 0xff; length -= 0xff) {
+            dst[op++] = (byte) 0xff;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     *  @param dstLen exact length of decompressed data
+     */
+    static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int ip = srcOff;
+        int end = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        while (ip < end) {
+            int token = src[ip++] & 0xff;
+            int numLiterals = token >>> 4;
+            if (numLiterals == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    numLiterals += b;
+                } while (b == 0xff);
+            }
+            if (op + numLiterals > dstEnd || ip + numLiterals > end) {
+                throw new IllegalArgumentException("Malformed LZ4 block");
+            }
+            System.arraycopy(src, ip, dst, op, numLiterals);
+            ip += numLiterals;
+            op += numLiterals;
+            if (ip == end) {
+                break;
+            }
+
+            int distance = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int b;
+                do {
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 0xff);
+            }
+            matchLength += MIN_MATCH;
+            int ref = op - distance;
+            if (distance == 0 || ref < dstOff || op + matchLength > dstEnd) {
+                throw new IllegalArgumentException("Malformed LZ4 block");
+            }
+            if (distance >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+            } else {
+                // overlapping copy repeats the last distance bytes
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op + i] = dst[ref + i];
+                }
+            }
+            op += matchLength;
+        }
+        if (op != dstEnd) {
+            throw new IllegalArgumentException("Malformed LZ4 block");
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package net.uaprom.htable;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+
+/**
+ *  Listener that aggregates lookup and dump events
+ *  into striped counters and log-linear histograms
+ *
+ *  Can be shared by many readers and writers from different threads.
+ */
+public class Metrics implements HashTable.Listener {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final Histogram levels = new Histogram();
+    private final Histogram bucketLengths = new Histogram();
+    private final Histogram probes = new Histogram();
+    private final Histogram lookupNanos = new Histogram();
+
+    private final LongAdder dumpedKeys = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final Histogram buildNanos = new Histogram();
+    private final Histogram layoutNanos = new Histogram();
+    private final Histogram writeNanos = new Histogram();
+    private final Histogram outputSizes = new Histogram();
+    private final LongAccumulator maxAllocatedBytes = new LongAccumulator(MAX, 0);
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    @Override
+    public void onLookup(HashTable.Reader reader, long key, boolean found, int levels, int bucketLength, int probes, long nanos) {
+        if (found) {
+            this.hits.increment();
+        } else {
+            this.misses.increment();
+        }
+        this.levels.record(levels);
+        if (bucketLength > 0) {
+            this.bucketLengths.record(bucketLength);
+        }
+        this.probes.record(probes);
+        this.lookupNanos.record(nanos);
+    }
+
+    @Override
+    public void onDump(HashTable.Writer writer, HashTable.DumpStats stats) {
+        this.dumpedKeys.add(stats.numKeys);
+        this.outputBytes.add(stats.outputSize);
+        this.buildNanos.record(stats.buildNanos);
+        this.layoutNanos.record(stats.layoutNanos);
+        this.writeNanos.record(stats.writeNanos);
+        this.outputSizes.record(stats.outputSize);
+        this.maxAllocatedBytes.accumulate(stats.allocatedBytes);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long lookups() {
+        return hits() + misses();
+    }
+
+    public Histogram levels() {
+        return levels;
+    }
+
+    public Histogram bucketLengths() {
+        return bucketLengths;
+    }
+
+    public Histogram probes() {
+        return probes;
+    }
+
+    public Histogram lookupNanos() {
+        return lookupNanos;
+    }
+
+    public long dumps() {
+        return outputSizes.count();
+    }
+
+    public long dumpedKeys() {
+        return dumpedKeys.sum();
+    }
+
+    public long outputBytes() {
+        return outputBytes.sum();
+    }
+
+    public Histogram buildNanos() {
+        return buildNanos;
+    }
+
+    public Histogram layoutNanos() {
+        return layoutNanos;
+    }
+
+    public Histogram writeNanos() {
+        return writeNanos;
+    }
+
+    public Histogram outputSizes() {
+        return outputSizes;
+    }
+
+    public long maxAllocatedBytes() {
+        return maxAllocatedBytes.get();
+    }
+
+    /**
+     *  Histogram of non-negative values with 16 linear sub-buckets
+     *  per power of two, so relative error is below 1/16.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final LongAdder[] counts = new LongAdder[NUM_BUCKETS];
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(MAX, 0);
+
+        public Histogram() {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                this.counts[i] = new LongAdder();
+            }
+        }
+
+        static int bucketIndex(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+        }
+
+        static long bucketLowerBound(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            long subBucket = index % SUB_BUCKETS;
+            return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            this.counts[bucketIndex(value)].increment();
+            this.total.add(value);
+            this.max.accumulate(value);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder c : this.counts) {
+                count += c.sum();
+            }
+            return count;
+        }
+
+        public long total() {
+            return total.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long count = count();
+            if (count == 0) {
+                return 0.0;
+            }
+            return (double) total() / count;
+        }
+
+        /**
+         *  @param percentile in range [0, 100]
+         *  @return lower bound of the bucket containing the percentile
+         */
+        public long percentile(double percentile) {
+            long[] snapshot = new long[NUM_BUCKETS];
+            long count = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                snapshot[i] = this.counts[i].sum();
+                count += snapshot[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100.0 * count);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return bucketLowerBound(i);
+                }
+            }
+            return max();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package net.uaprom.htable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import net.uaprom.htable.HashTable.ValueSize;
+
+
+/**
+ *  Key index mapping keys to dense ordinals, shared by many value columns
+ *
+ *  <NumKeys:4b><IndexLength:4b><IndexFormat:1b><NumColumns:1b>[<ValueSize:1b>]<Index>[<Column>]
+ *
+ *  The index is a table of any format whose values are ordinals
+ *  of the smallest size fitting the number of keys. Ordinal of a key is
+ *  its position in the arrays passed to the writer. Column holds values
+ *  of all keys in ordinal order, so reading many columns of a key
+ *  takes a single lookup and keys are stored once.
+ */
+public final class OrdinalTable {
+    private OrdinalTable() {}
+
+    public static final int NOT_FOUND = -1;
+
+    private static final int HEADER_SIZE = 10;
+
+    public interface WriterFactory {
+        /**
+         *  @return writer of the key index storing values of the given size
+         */
+        HashTable.Writer newWriter(ValueSize ordinalSize);
+    }
+
+    public interface OrdinalVisitor {
+        void visit(long key, int ordinal);
+    }
+
+    static ValueSize ordinalSize(int numKeys) {
+        if (numKeys <= 1 << 8) {
+            return ValueSize.BYTE;
+        }
+        if (numKeys <= 1 << 16) {
+            return ValueSize.SHORT;
+        }
+        return ValueSize.INT;
+    }
+
+    /**
+     *  Values of one column in ordinal order
+     */
+    public static final class Column {
+        final ValueSize valueSize;
+        final Values values;
+
+        private Column(ValueSize valueSize, Values values) {
+            this.valueSize = valueSize;
+            this.values = values;
+        }
+
+        public static Column ofBytes(byte[] values) {
+            return new Column(ValueSize.BYTE, new Values.Bytes(values));
+        }
+
+        public static Column ofShorts(short[] values) {
+            return new Column(ValueSize.SHORT, new Values.Shorts(values));
+        }
+
+        public static Column ofInts(int[] values) {
+            return new Column(ValueSize.INT, new Values.Ints(values));
+        }
+
+        public static Column ofLongs(long[] values) {
+            return new Column(ValueSize.LONG, new Values.Longs(values));
+        }
+
+        public static Column ofFloats(float[] values) {
+            return new Column(ValueSize.INT, new Values.Floats(values));
+        }
+
+        public static Column ofDoubles(double[] values) {
+            return new Column(ValueSize.LONG, new Values.Doubles(values));
+        }
+
+        public ValueSize valueSize() {
+            return valueSize;
+        }
+    }
+
+    /**
+     *  Keys must be passed in ascending order unless the index writer has a sorter,
+     *  columns keep the order of the keys either way
+     */
+    public static final class Writer {
+        private final WriterFactory indexWriterFactory;
+
+        public Writer(WriterFactory indexWriterFactory) {
+            this.indexWriterFactory = indexWriterFactory;
+        }
+
+        public byte[] dump(long[] keys, Column... columns) {
+            int numKeys = keys.length;
+            if (columns.length > 0xff) {
+                throw new IllegalArgumentException("Too many columns: " + columns.length);
+            }
+            long size = HEADER_SIZE + columns.length;
+            for (Column column : columns) {
+                if (column.values.length() != numKeys) {
+                    throw new IllegalArgumentException("Column of " + column.values.length() + " values for " + numKeys + " keys");
+                }
+                size += (long) numKeys * column.valueSize.size;
+            }
+
+            ValueSize ordinalSize = ordinalSize(numKeys);
+            HashTable.Writer indexWriter = this.indexWriterFactory.newWriter(ordinalSize);
+            if (indexWriter.valueSize() != ordinalSize) {
+                throw new IllegalArgumentException("Index writer stores " + indexWriter.valueSize() + " values instead of " + ordinalSize);
+            }
+            HashTable.Format format = HashTable.Format.of(indexWriter);
+            byte[] index = numKeys == 0 ? TinyTable.empty(ordinalSize) : indexWriter.dump(keys, ordinals(numKeys, ordinalSize));
+            size += index.length;
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Table of " + size + " bytes does not fit into an array");
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(numKeys);
+            buffer.putInt(index.length);
+            buffer.put((byte) format.ordinal());
+            buffer.put((byte) columns.length);
+            for (Column column : columns) {
+                buffer.put((byte) column.valueSize.encode());
+            }
+            buffer.put(index);
+            for (Column column : columns) {
+                for (int i = 0; i < numKeys; i++) {
+                    column.values.put(buffer, i);
+                }
+            }
+            assert !buffer.hasRemaining();
+            return buffer.array();
+        }
+
+        private static Values ordinals(int numKeys, ValueSize ordinalSize) {
+            switch (ordinalSize) {
+            case BYTE:
+                byte[] bytes = new byte[numKeys];
+                for (int i = 0; i < numKeys; i++) {
+                    bytes[i] = (byte) i;
+                }
+                return new Values.Bytes(bytes);
+            case SHORT:
+                short[] shorts = new short[numKeys];
+                for (int i = 0; i < numKeys; i++) {
+                    shorts[i] = (short) i;
+                }
+                return new Values.Shorts(shorts);
+            default:
+                int[] ints = new int[numKeys];
+                for (int i = 0; i < numKeys; i++) {
+                    ints[i] = i;
+                }
+                return new Values.Ints(ints);
+            }
+        }
+    }
+
+    public static final class Reader {
+        private final byte[] data;
+        private final int numKeys;
+        private final HashTable.Reader index;
+        private final ValueSize ordinalSize;
+        private final ValueSize[] valueSizes;
+        private final int[] columnOffsets;
+
+        public Reader(byte[] data) {
+            this(data, 0, data.length);
+        }
+
+        public Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.numKeys = ByteUtils.bytesToInt(data, offset);
+            int indexLength = ByteUtils.bytesToInt(data, offset + 4);
+            int format = data[offset + 8];
+            if (format < 0 || format >= HashTable.Format.values().length) {
+                throw new IllegalArgumentException("Unknown index format: " + format);
+            }
+            int numColumns = data[offset + 9] & 0xff;
+            this.valueSizes = new ValueSize[numColumns];
+            this.columnOffsets = new int[numColumns];
+            int indexOffset = offset + HEADER_SIZE + numColumns;
+            int columnOffset = indexOffset + indexLength;
+            for (int i = 0; i < numColumns; i++) {
+                this.valueSizes[i] = ValueSize.decode(data[offset + HEADER_SIZE + i]);
+                this.columnOffsets[i] = columnOffset;
+                columnOffset += this.numKeys * this.valueSizes[i].size;
+            }
+            if (columnOffset > offset + length) {
+                throw new IllegalArgumentException("Data is shorter than its columns: " + length);
+            }
+            this.index = HashTable.Format.values()[format].reader(data, indexOffset, indexLength);
+            this.ordinalSize = ordinalSize(this.numKeys);
+        }
+
+        public int numKeys() {
+            return numKeys;
+        }
+
+        public int numColumns() {
+            return valueSizes.length;
+        }
+
+        public ValueSize valueSize(int column) {
+            return valueSizes[column];
+        }
+
+        /**
+         *  @return reader of the key index, its values are ordinals
+         */
+        public HashTable.Reader index() {
+            return index;
+        }
+
+        /**
+         *  @return ordinal of the key or NOT_FOUND
+         */
+        public int getOrdinal(long key) {
+            int valueOffset = this.index.getValueOffset(key);
+            if (valueOffset == HashTable.Reader.NOT_FOUND_OFFSET) {
+                return NOT_FOUND;
+            }
+            return ordinal(valueOffset);
+        }
+
+        /**
+         *  Goes through getters of the index as its writer could encode the ordinals
+         */
+        private int ordinal(int valueOffset) {
+            switch (this.ordinalSize) {
+            case BYTE:
+                return this.index.getByte(valueOffset) & 0xff;
+            case SHORT:
+                return this.index.getShort(valueOffset) & 0xffff;
+            default:
+                return this.index.getInt(valueOffset);
+            }
+        }
+
+        public boolean exists(long key) {
+            return this.index.exists(key);
+        }
+
+        public void forEach(final OrdinalVisitor visitor) {
+            this.index.forEach(new HashTable.EntryVisitor() {
+                @Override
+                public void visit(long key, int valueOffset) {
+                    visitor.visit(key, ordinal(valueOffset));
+                }
+            });
+        }
+
+        public byte getByte(int column, int ordinal) {
+            assert this.valueSizes[column] == ValueSize.BYTE;
+            return this.data[this.columnOffsets[column] + ordinal];
+        }
+
+        public short getShort(int column, int ordinal) {
+            assert this.valueSizes[column] == ValueSize.SHORT;
+            return ByteUtils.bytesToShort(this.data, this.columnOffsets[column] + (ordinal << 1));
+        }
+
+        public int getInt(int column, int ordinal) {
+            assert this.valueSizes[column] == ValueSize.INT;
+            return ByteUtils.bytesToInt(this.data, this.columnOffsets[column] + (ordinal << 2));
+        }
+
+        public long getLong(int column, int ordinal) {
+            assert this.valueSizes[column] == ValueSize.LONG;
+            return ByteUtils.bytesToLong(this.data, this.columnOffsets[column] + (ordinal << 3));
+        }
+
+        public float getFloat(int column, int ordinal) {
+            assert this.valueSizes[column] == ValueSize.INT;
+            return ByteUtils.bytesToFloat(this.data, this.columnOffsets[column] + (ordinal << 2));
+        }
+
+        public double getDouble(int column, int ordinal) {
+            assert this.valueSizes[column] == ValueSize.LONG;
+            return ByteUtils.bytesToDouble(this.data, this.columnOffsets[column] + (ordinal << 3));
+        }
+
+        public byte[] get(int column, int ordinal) {
+            int size = this.valueSizes[column].size;
+            byte[] value = new byte[size];
+            System.arraycopy(this.data, this.columnOffsets[column] + ordinal * size, value, 0, size);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Read-only bytes addressed by long offsets
+ *
+ *  Data is split into segments of 2^30 bytes because a single array
+ *  or mapped buffer can not exceed 2 GB. Segments are either heap arrays
+ *  or memory mapped regions of a file. Bytes of block compressed tables
+ *  are decompressed block by block on demand, see {@link BlockCompression}.
+ */
+public final class SegmentedBytes {
+    public static final int DEFAULT_SEGMENT_BITS = 30;
+
+    private final ByteBuffer[] segments;
+    // decompresses segments when segments are null
+    private final BlockCompression.Blocks blocks;
+    private final int segmentBits;
+    private final long segmentMask;
+    private final long length;
+
+    private SegmentedBytes(ByteBuffer[] segments, int segmentBits, long length) {
+        this.segments = segments;
+        this.blocks = null;
+        this.segmentBits = segmentBits;
+        this.segmentMask = (1L << segmentBits) - 1;
+        this.length = length;
+    }
+
+    SegmentedBytes(BlockCompression.Blocks blocks) {
+        this.segments = null;
+        this.blocks = blocks;
+        this.segmentBits = blocks.blockBits;
+        this.segmentMask = (1L << blocks.blockBits) - 1;
+        this.length = blocks.length;
+    }
+
+    public static SegmentedBytes wrap(byte[] data) {
+        return wrap(data, DEFAULT_SEGMENT_BITS);
+    }
+
+    static SegmentedBytes wrap(byte[] data, int segmentBits) {
+        int segmentSize = 1 << segmentBits;
+        int numSegments = (data.length + segmentSize - 1) >>> segmentBits;
+        ByteBuffer[] segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            int start = i << segmentBits;
+            segments[i] = ByteBuffer.wrap(data, start, Math.min(segmentSize, data.length - start)).slice();
+        }
+        return new SegmentedBytes(segments, segmentBits, data.length);
+    }
+
+    public static SegmentedBytes map(FileChannel channel) throws IOException {
+        return map(channel, 0, channel.size());
+    }
+
+    public static SegmentedBytes map(FileChannel channel, long position, long length) throws IOException {
+        long segmentSize = 1L << DEFAULT_SEGMENT_BITS;
+        int numSegments = (int) ((length + segmentSize - 1) >>> DEFAULT_SEGMENT_BITS);
+        ByteBuffer[] segments = new ByteBuffer[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            long start = (long) i << DEFAULT_SEGMENT_BITS;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + start, Math.min(segmentSize, length - start));
+        }
+        return new SegmentedBytes(segments, DEFAULT_SEGMENT_BITS, length);
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isCompressed() {
+        return blocks != null;
+    }
+
+    private ByteBuffer segment(int ix) {
+        if (this.blocks != null) {
+            return this.blocks.block(ix);
+        }
+        return this.segments[ix];
+    }
+
+    public byte get(long index) {
+        return segment((int) (index >>> this.segmentBits)).get((int) (index & this.segmentMask));
+    }
+
+    /**
+     *  @return little-endian unsigned number of numBytes bytes
+     */
+    public long load(long index, int numBytes) {
+        ByteBuffer segment = segment((int) (index >>> this.segmentBits));
+        int position = (int) (index & this.segmentMask);
+        long v = 0;
+        if (position + numBytes <= segment.limit()) {
+            for (int i = numBytes - 1; i >= 0; i--) {
+                v = (v << 8) | (segment.get(position + i) & 0xffL);
+            }
+        } else {
+            // crosses the segment boundary
+            for (int i = numBytes - 1; i >= 0; i--) {
+                v = (v << 8) | (get(index + i) & 0xffL);
+            }
+        }
+        return v;
+    }
+
+    public void get(long index, byte[] dst, int dstOffset, int numBytes) {
+        while (numBytes > 0) {
+            ByteBuffer segment = segment((int) (index >>> this.segmentBits)).duplicate();
+            segment.position((int) (index & this.segmentMask));
+            int n = Math.min(numBytes, segment.remaining());
+            segment.get(dst, dstOffset, n);
+            index += n;
+            dstOffset += n;
+            numBytes -= n;
+        }
+    }
+
+    /**
+     *  Unmaps mapped segments right away instead of when they are collected,
+     *  reading the bytes afterwards crashes the JVM. Compressed bytes also
+     *  drop their cached blocks.
+     *
+     *  @return false if the JVM does not allow to unmap buffers
+     *      or there are no mapped segments
+     */
+    public boolean unmap() {
+        if (this.blocks != null) {
+            return this.blocks.release();
+        }
+        if (UNMAPPER == null) {
+            return false;
+        }
+        boolean unmapped = false;
+        for (ByteBuffer segment : this.segments) {
+            if (segment.isDirect()) {
+                UNMAPPER.unmap(segment);
+                unmapped = true;
+            }
+        }
+        return unmapped;
+    }
+
+    private static abstract class Unmapper {
+        abstract void unmap(ByteBuffer buffer);
+    }
+
+    private static final Unmapper UNMAPPER = unmapper();
+
+    private static Unmapper unmapper() {
+        try {
+            // Java 9 and later
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            final Object unsafe = theUnsafe.get(null);
+            return new Unmapper() {
+                @Override
+                void unmap(ByteBuffer buffer) {
+                    invoke(invokeCleaner, unsafe, buffer);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // falls back to the cleaner of Java 8 buffers
+        }
+        try {
+            final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return new Unmapper() {
+                @Override
+                void unmap(ByteBuffer buffer) {
+                    Object bufferCleaner = invoke(cleaner, buffer);
+                    if (bufferCleaner != null) {
+                        invoke(clean, bufferCleaner);
+                    }
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not unmap buffer", e);
+        }
+    }
+
+    /**
+     *  Collects written bytes into heap segments
+     */
+    public static final class Sink extends OutputStream {
+        private final int segmentBits;
+        private final List<byte[]> segments = new ArrayList<>();
+        private byte[] current;
+        private int position;
+        private long length;
+
+        public Sink() {
+            this(DEFAULT_SEGMENT_BITS);
+        }
+
+        Sink(int segmentBits) {
+            this.segmentBits = segmentBits;
+            this.current = new byte[Math.min(1 << 16, 1 << segmentBits)];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity();
+            this.current[this.position++] = (byte) b;
+            this.length++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                ensureCapacity();
+                int n = Math.min(len, this.current.length - this.position);
+                System.arraycopy(b, off, this.current, this.position, n);
+                this.position += n;
+                this.length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void ensureCapacity() {
+            if (this.position < this.current.length) {
+                return;
+            }
+            int segmentSize = 1 << this.segmentBits;
+            if (this.current.length < segmentSize) {
+                byte[] grown = new byte[Math.min(this.current.length * 2, segmentSize)];
+                System.arraycopy(this.current, 0, grown, 0, this.position);
+                this.current = grown;
+            } else {
+                this.segments.add(this.current);
+                this.current = new byte[Math.min(1 << 16, segmentSize)];
+                this.position = 0;
+            }
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public SegmentedBytes toBytes() {
+            ByteBuffer[] buffers = new ByteBuffer[this.segments.size() + 1];
+            for (int i = 0; i < this.segments.size(); i++) {
+                buffers[i] = ByteBuffer.wrap(this.segments.get(i));
+            }
+            buffers[buffers.length - 1] = ByteBuffer.wrap(this.current, 0, this.position).slice();
+            return new SegmentedBytes(buffers, this.segmentBits, this.length);
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ *  Table split into 2^ShardBits independent shards by the highest
+ *  ShardBits bits of KeyBits bit keys
+ *
+ *  <Directory>[<Shard>]
+ *
+ *  Directory: <ShardBits:1b><KeyBits:1b>[<Format:1b><Length:8b>]
+ *
+ *  Every shard is a table of its own format, built concurrently with others.
+ *  Shards without keys are empty tiny tables. Shards can also be stored
+ *  apart from the directory and loaded, swapped or evicted one by one,
+ *  a lookup finds its shard with one shift.
+ */
+public final class ShardedHashTable {
+    private ShardedHashTable() {}
+
+    public static final int MAX_SHARD_BITS = 16;
+
+    public static final class Directory {
+        private static final int HEADER_SIZE = 2;
+        private static final int SHARD_ENTRY_SIZE = 9;
+
+        private final int shardBits;
+        private final int keyBits;
+        private final HashTable.Format[] formats;
+        private final long[] lengths;
+        private final long[] offsets;
+
+        Directory(int shardBits, int keyBits, HashTable.Format[] formats, long[] lengths) {
+            assert formats.length == 1 << shardBits && lengths.length == formats.length;
+            this.shardBits = shardBits;
+            this.keyBits = keyBits;
+            this.formats = formats;
+            this.lengths = lengths;
+            this.offsets = new long[lengths.length];
+            long offset = size();
+            for (int i = 0; i < lengths.length; i++) {
+                this.offsets[i] = offset;
+                offset += lengths[i];
+            }
+        }
+
+        public static Directory read(byte[] data, int offset) {
+            return read(SegmentedBytes.wrap(data), offset);
+        }
+
+        public static Directory read(SegmentedBytes data, long offset) {
+            int shardBits = data.get(offset);
+            int keyBits = data.get(offset + 1);
+            checkBits(shardBits, keyBits);
+            int numShards = 1 << shardBits;
+            HashTable.Format[] formats = new HashTable.Format[numShards];
+            long[] lengths = new long[numShards];
+            long entryOffset = offset + HEADER_SIZE;
+            for (int i = 0; i < numShards; i++) {
+                int format = data.get(entryOffset);
+                if (format < 0 || format >= HashTable.Format.values().length) {
+                    throw new IllegalArgumentException("Unknown format of shard " + i + ": " + format);
+                }
+                formats[i] = HashTable.Format.values()[format];
+                lengths[i] = data.load(entryOffset + 1, 8);
+                entryOffset += SHARD_ENTRY_SIZE;
+            }
+            return new Directory(shardBits, keyBits, formats, lengths);
+        }
+
+        static void checkBits(int shardBits, int keyBits) {
+            if (shardBits < 1 || shardBits > MAX_SHARD_BITS) {
+                throw new IllegalArgumentException("Shard bits must be in range [1, " + MAX_SHARD_BITS + "]: " + shardBits);
+            }
+            if (keyBits < shardBits || keyBits > 64) {
+                throw new IllegalArgumentException("Key bits must be in range [" + shardBits + ", 64]: " + keyBits);
+            }
+        }
+
+        public int shardBits() {
+            return shardBits;
+        }
+
+        public int keyBits() {
+            return keyBits;
+        }
+
+        public int numShards() {
+            return formats.length;
+        }
+
+        public HashTable.Format format(int shard) {
+            return formats[shard];
+        }
+
+        public long length(int shard) {
+            return lengths[shard];
+        }
+
+        /**
+         *  @return offset of the shard from the beginning of the directory
+         */
+        public long offset(int shard) {
+            return offsets[shard];
+        }
+
+        /**
+         *  @return size of the directory in bytes
+         */
+        public int size() {
+            return HEADER_SIZE + formats.length * SHARD_ENTRY_SIZE;
+        }
+
+        /**
+         *  @return size of the directory with all shards
+         */
+        public long totalSize() {
+            int last = formats.length - 1;
+            return offsets[last] + lengths[last];
+        }
+
+        /**
+         *  @return shard of the key, -1 when the key does not fit into key bits
+         */
+        public int shard(long key) {
+            if (keyBits < 64 && key >>> keyBits != 0) {
+                return -1;
+            }
+            return (int) (key >>> (keyBits - shardBits));
+        }
+
+        public byte[] toBytes() {
+            byte[] data = new byte[size()];
+            data[0] = (byte) shardBits;
+            data[1] = (byte) keyBits;
+            int entryOffset = HEADER_SIZE;
+            for (int i = 0; i < formats.length; i++) {
+                data[entryOffset] = (byte) formats[i].ordinal();
+                System.arraycopy(ByteUtils.longToBytes(lengths[i]), 0, data, entryOffset + 1, 8);
+                entryOffset += SHARD_ENTRY_SIZE;
+            }
+            return data;
+        }
+    }
+
+    public interface WriterFactory {
+        /**
+         *  @return new writer of the shard, writers of different shards
+         *      may use different formats
+         */
+        HashTable.Writer newWriter(int shard);
+    }
+
+    /**
+     *  Builds shards on the executor, the common fork join pool by default
+     *
+     *  Keys keep their order in shards, so they must be passed in ascending order
+     *  unless shard writers have a sorter.
+     */
+    public static final class Writer {
+        private final int shardBits;
+        private final int keyBits;
+        private final WriterFactory writerFactory;
+        private ExecutorService executor = ForkJoinPool.commonPool();
+
+        public Writer(int shardBits, int keyBits, WriterFactory writerFactory) {
+            Directory.checkBits(shardBits, keyBits);
+            this.shardBits = shardBits;
+            this.keyBits = keyBits;
+            this.writerFactory = writerFactory;
+        }
+
+        public void setExecutor(ExecutorService executor) {
+            this.executor = executor;
+        }
+
+        public ExecutorService executor() {
+            return executor;
+        }
+
+        public Shards dump(long[] keys, byte[][] values) throws InterruptedException {
+            assert keys.length == values.length;
+            return dump(keys, new Values.ByteArrays(values));
+        }
+
+        public Shards dumpInts(long[] keys, int[] values) throws InterruptedException {
+            assert keys.length == values.length;
+            return dump(keys, new Values.Ints(values));
+        }
+
+        public Shards dumpLongs(long[] keys, long[] values) throws InterruptedException {
+            assert keys.length == values.length;
+            return dump(keys, new Values.Longs(values));
+        }
+
+        /**
+         *  @throws IllegalArgumentException when a key does not fit into key bits
+         */
+        private Shards dump(final long[] keys, final Values values) throws InterruptedException {
+            int numShards = 1 << this.shardBits;
+            int shift = this.keyBits - this.shardBits;
+            int[] counts = new int[numShards];
+            for (long key : keys) {
+                if (this.keyBits < 64 && key >>> this.keyBits != 0) {
+                    throw new IllegalArgumentException("Key " + key + " does not fit into " + this.keyBits + " bits");
+                }
+                counts[(int) (key >>> shift)]++;
+            }
+            final int[][] orders = new int[numShards][];
+            for (int i = 0; i < numShards; i++) {
+                orders[i] = new int[counts[i]];
+                counts[i] = 0;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                int shard = (int) (keys[i] >>> shift);
+                orders[shard][counts[shard]++] = i;
+            }
+
+            final HashTable.Format[] formats = new HashTable.Format[numShards];
+            List<Future<byte[]>> futures = new ArrayList<>(numShards);
+            for (int i = 0; i < numShards; i++) {
+                final int shard = i;
+                futures.add(this.executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        HashTable.Writer writer = writerFactory.newWriter(shard);
+                        formats[shard] = HashTable.Format.of(writer);
+                        int[] order = orders[shard];
+                        if (order.length == 0) {
+                            return TinyTable.empty(writer.valueSize());
+                        }
+                        return writer.dump(KeySorter.permute(keys, order), values.permute(order));
+                    }
+                }));
+            }
+
+            byte[][] shards = new byte[numShards][];
+            long[] lengths = new long[numShards];
+            try {
+                for (int i = 0; i < numShards; i++) {
+                    shards[i] = futures.get(i).get();
+                    lengths[i] = shards[i].length;
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Shard build failed", cause);
+            } finally {
+                for (Future<byte[]> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            return new Shards(new Directory(this.shardBits, this.keyBits, formats, lengths), shards);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ShardedHashTable.Writer(shardBits=%d, keyBits=%d)", shardBits, keyBits);
+        }
+    }
+
+    /**
+     *  Dumped shards with their directory
+     */
+    public static final class Shards {
+        private final Directory directory;
+        private final byte[][] shards;
+
+        Shards(Directory directory, byte[][] shards) {
+            this.directory = directory;
+            this.shards = shards;
+        }
+
+        public Directory directory() {
+            return directory;
+        }
+
+        public byte[] shard(int shard) {
+            return shards[shard];
+        }
+
+        /**
+         *  @return the directory followed by all shards
+         */
+        public byte[] toBytes() {
+            long size = this.directory.totalSize();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Table of " + size + " bytes does not fit into an array, write it into a stream");
+            }
+            byte[] data = new byte[(int) size];
+            System.arraycopy(this.directory.toBytes(), 0, data, 0, this.directory.size());
+            for (int i = 0; i < this.shards.length; i++) {
+                System.arraycopy(this.shards[i], 0, data, (int) this.directory.offset(i), this.shards[i].length);
+            }
+            return data;
+        }
+
+        public long writeTo(OutputStream out) throws IOException {
+            out.write(this.directory.toBytes());
+            for (byte[] shard : this.shards) {
+                out.write(shard);
+            }
+            return this.directory.totalSize();
+        }
+    }
+
+    public interface Loader<T> {
+        T load(int shard) throws IOException;
+    }
+
+    /**
+     *  Shard readers of a table, a missing shard is loaded
+     *  on the first lookup into it
+     *
+     *  Swapping or evicting a shard returns the replaced reader,
+     *  lookups that have already routed to it may still read it.
+     */
+    abstract public static class ShardReaders<T> {
+        protected final Directory directory;
+        private final int shift;
+        private final long keyMask;
+        private final AtomicReferenceArray<T> shards;
+        private final Loader<? extends T> loader;
+        private final Object[] locks;
+
+        ShardReaders(Directory directory, Loader<? extends T> loader) {
+            this.directory = directory;
+            this.shift = directory.keyBits() - directory.shardBits();
+            // bits above key bits, all keys fit into 64 bits
+            this.keyMask = directory.keyBits() < 64 ? -(1L << directory.keyBits()) : 0;
+            this.shards = new AtomicReferenceArray<>(directory.numShards());
+            this.loader = loader;
+            this.locks = new Object[directory.numShards()];
+            for (int i = 0; i < this.locks.length; i++) {
+                this.locks[i] = new Object();
+            }
+        }
+
+        public Directory directory() {
+            return directory;
+        }
+
+        /**
+         *  @return reader of the key's shard, null when the key does not fit into key bits
+         */
+        public T shardOf(long key) {
+            if ((key & this.keyMask) != 0) {
+                return null;
+            }
+            return shard((int) (key >>> this.shift));
+        }
+
+        /**
+         *  @throws IllegalStateException when the shard is evicted and there is no loader
+         */
+        public T shard(int shard) {
+            T reader = this.shards.get(shard);
+            if (reader != null) {
+                return reader;
+            }
+            return load(shard);
+        }
+
+        public boolean isLoaded(int shard) {
+            return this.shards.get(shard) != null;
+        }
+
+        /**
+         *  @return the replaced reader or null
+         */
+        public T setShard(int shard, T reader) {
+            return this.shards.getAndSet(shard, reader);
+        }
+
+        /**
+         *  @return the evicted reader or null
+         */
+        public T evict(int shard) {
+            return setShard(shard, null);
+        }
+
+        private T load(int shard) {
+            synchronized (this.locks[shard]) {
+                T reader = this.shards.get(shard);
+                if (reader != null) {
+                    return reader;
+                }
+                if (this.loader == null) {
+                    throw new IllegalStateException("Shard " + shard + " is not loaded");
+                }
+                try {
+                    reader = this.loader.load(shard);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                this.shards.set(shard, reader);
+                return reader;
+            }
+        }
+    }
+
+    public static final class Reader extends ShardReaders<HashTable.Reader> {
+        /**
+         *  @param data directory followed by all shards
+         */
+        public Reader(byte[] data) {
+            super(Directory.read(data, 0), null);
+            if (this.directory.totalSize() > data.length) {
+                throw new IllegalArgumentException("Data is shorter than its shards: " + data.length);
+            }
+            for (int i = 0; i < this.directory.numShards(); i++) {
+                setShard(i, this.directory.format(i).reader(data, (int) this.directory.offset(i), (int) this.directory.length(i)));
+            }
+        }
+
+        /**
+         *  @param loader loads shards stored apart from the directory
+         */
+        public Reader(Directory directory, Loader<? extends HashTable.Reader> loader) {
+            super(directory, loader);
+        }
+
+        public boolean exists(long key) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null && shard.exists(key);
+        }
+
+        public byte getByte(long key, byte defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.getByte(key, defaultValue) : defaultValue;
+        }
+
+        public short getShort(long key, short defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.getShort(key, defaultValue) : defaultValue;
+        }
+
+        public int getInt(long key, int defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.getInt(key, defaultValue) : defaultValue;
+        }
+
+        public long getLong(long key, long defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.getLong(key, defaultValue) : defaultValue;
+        }
+
+        public float getFloat(long key, float defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.getFloat(key, defaultValue) : defaultValue;
+        }
+
+        public double getDouble(long key, double defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.getDouble(key, defaultValue) : defaultValue;
+        }
+
+        public byte[] get(long key, byte[] defaultValue) {
+            HashTable.Reader shard = shardOf(key);
+            return shard != null ? shard.get(key, defaultValue) : defaultValue;
+        }
+    }
+
+    /**
+     *  Reader of shards in segmented data, usually memory mapped
+     */
+    public static final class LargeReader extends ShardReaders<HashTable.LargeReader> {
+        /**
+         *  @param data directory followed by all shards
+         */
+        public LargeReader(SegmentedBytes data) {
+            super(Directory.read(data, 0), null);
+            if (this.directory.totalSize() > data.length()) {
+                throw new IllegalArgumentException("Data is shorter than its shards: " + data.length());
+            }
+            for (int i = 0; i < this.directory.numShards(); i++) {
+                setShard(i, this.directory.format(i).largeReader(data, this.directory.offset(i), this.directory.length(i)));
+            }
+        }
+
+        /**
+         *  @param loader loads shards stored apart from the directory,
+         *      evicted shards of separate files can be unmapped one by one
+         */
+        public LargeReader(Directory directory, Loader<? extends HashTable.LargeReader> loader) {
+            super(directory, loader);
+        }
+
+        public boolean exists(long key) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null && shard.exists(key);
+        }
+
+        public byte getByte(long key, byte defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.getByte(key, defaultValue) : defaultValue;
+        }
+
+        public short getShort(long key, short defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.getShort(key, defaultValue) : defaultValue;
+        }
+
+        public int getInt(long key, int defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.getInt(key, defaultValue) : defaultValue;
+        }
+
+        public long getLong(long key, long defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.getLong(key, defaultValue) : defaultValue;
+        }
+
+        public float getFloat(long key, float defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.getFloat(key, defaultValue) : defaultValue;
+        }
+
+        public double getDouble(long key, double defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.getDouble(key, defaultValue) : defaultValue;
+        }
+
+        public byte[] get(long key, byte[] defaultValue) {
+            HashTable.LargeReader shard = shardOf(key);
+            return shard != null ? shard.get(key, defaultValue) : defaultValue;
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+
+/**
+ *  Reports size breakdown and lookup costs of serialized tables
+ *  and estimates them for other writer parameters
+ *
+ *  Usage: TableInspector trie|chain|cuckoo FILE [--what-if]
+ */
+public final class TableInspector {
+    public static final int MISS_SAMPLES = 10_000;
+
+    private TableInspector() {}
+
+    public static final class Report {
+        public String format;
+        public int size;
+        public int numKeys;
+        public final Map<String,Object> parameters = new LinkedHashMap<>();
+
+        public int headerBytes;
+        public int bitmaskBytes;
+        public int pointerBytes;
+        // CuckooHashTable only
+        public int fingerprintBytes;
+        public int keyBytes;
+        public int valueBytes;
+
+        // TrieHashTable only, indexed from the root level
+        public int[] levelNodes = new int[0];
+        public double[] levelFill = new double[0];
+
+        // ChainHashTable only, number of buckets by bucket length
+        public int[] bucketLengths = new int[0];
+        public double emptyBucketRatio;
+
+        // averages over all keys and over sampled absent keys
+        public double hitLevels;
+        public double hitProbes;
+        public double missLevels;
+        public double missProbes;
+
+        public double bytesPerKey() {
+            return numKeys == 0 ? 0.0 : (double) size / numKeys;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(format).append(": ").append(size).append(" bytes, ").append(numKeys).append(" keys, ")
+                .append(String.format("%.2f", bytesPerKey())).append(" bytes per key\n");
+            for (Map.Entry<String,Object> e : parameters.entrySet()) {
+                sb.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append("\n");
+            }
+            sb.append("  bytes: header=").append(headerBytes)
+                .append(" bitmasks=").append(bitmaskBytes)
+                .append(" pointers=").append(pointerBytes);
+            if (fingerprintBytes > 0) {
+                sb.append(" fingerprints=").append(fingerprintBytes);
+            }
+            sb.append(" keys=").append(keyBytes)
+                .append(" values=").append(valueBytes).append("\n");
+            for (int i = 0; i < levelNodes.length; i++) {
+                sb.append(String.format("  level %d: %d nodes, %.3f fill%n", i, levelNodes[i], levelFill[i]));
+            }
+            if (bucketLengths.length > 0) {
+                sb.append(String.format("  empty buckets: %.3f%n", emptyBucketRatio));
+                sb.append("  bucket lengths:");
+                for (int i = 0; i < bucketLengths.length; i++) {
+                    if (bucketLengths[i] != 0) {
+                        sb.append(" ").append(i).append("x").append(bucketLengths[i]);
+                    }
+                }
+                sb.append("\n");
+            }
+            sb.append(String.format("  hit: %.2f levels, %.2f probes; miss: %.2f levels, %.2f probes%n",
+                                    hitLevels, hitProbes, missLevels, missProbes));
+            return sb.toString();
+        }
+    }
+
+    public static final class Estimate {
+        public final HashTable.Writer writer;
+        public final Report report;
+
+        Estimate(HashTable.Writer writer, Report report) {
+            this.writer = writer;
+            this.report = report;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d bytes, %.2f bytes per key, hit %.2f probes, miss %.2f probes",
+                                 writer, report.size, report.bytesPerKey(), report.hitProbes, report.missProbes);
+        }
+    }
+
+    public static Report inspect(HashTable.Reader reader) {
+        if (reader instanceof TrieHashTable.Reader) {
+            return inspect((TrieHashTable.Reader) reader);
+        }
+        if (reader instanceof ChainHashTable.Reader) {
+            return inspect((ChainHashTable.Reader) reader);
+        }
+        if (reader instanceof CuckooHashTable.Reader) {
+            return inspect((CuckooHashTable.Reader) reader);
+        }
+        throw new IllegalArgumentException("Unsupported reader: " + reader.getClass().getName());
+    }
+
+    public static Report inspect(final TrieHashTable.Reader reader) {
+        final Report report = new Report();
+        report.format = "TrieHashTable";
+        report.size = size(reader);
+        if (reader.length == 0) {
+            return report;
+        }
+        if (TinyTable.isTiny(reader.data, reader.offset, reader.length)) {
+            return inspectTiny(reader);
+        }
+        report.parameters.put("numLevels", reader.numLevels());
+        List<TrieHashTable.BitmaskSize> levelBitmaskSizes = new ArrayList<>();
+        for (int level = reader.numLevels() - 1; level >= 0; level--) {
+            levelBitmaskSizes.add(reader.bitmaskSize(level));
+        }
+        report.parameters.put("bitmaskSizes", levelBitmaskSizes);
+        report.parameters.put("ptrSize", reader.ptrSize());
+        report.parameters.put("valueSize", reader.valueSize());
+        putValueCodec(reader, report);
+        report.parameters.put("pathCompression", reader.pathCompression());
+        report.parameters.put("relativePointers", reader.relativePointers());
+
+        final int numLevels = reader.numLevels();
+        final int[] levelNodes = new int[numLevels];
+        final long[] levelChildren = new long[numLevels];
+        report.headerBytes = report.size;
+        reader.forEachNode(new TrieHashTable.Reader.NodeVisitor() {
+            @Override
+            public void visit(int level, int layerOffset, int numChildren, int prefixLength) {
+                int depth = numLevels - 1 - level;
+                levelNodes[depth]++;
+                levelChildren[depth] += numChildren;
+                // skipped key digits
+                report.keyBytes += prefixLength;
+                report.bitmaskBytes += reader.bitmaskSize(level).size;
+                if (level == 0) {
+                    report.numKeys += numChildren;
+                    report.valueBytes += numChildren * reader.valueSize().size;
+                } else {
+                    report.pointerBytes += numChildren * reader.ptrSize(level);
+                }
+            }
+        });
+        report.headerBytes -= report.keyBytes + report.bitmaskBytes + report.pointerBytes + report.valueBytes;
+        report.levelNodes = levelNodes;
+        report.levelFill = new double[numLevels];
+        for (int i = 0; i < numLevels; i++) {
+            int bitmaskBits = reader.bitmaskSize(numLevels - 1 - i).size * 8;
+            report.levelFill[i] = (double) levelChildren[i] / ((long) levelNodes[i] * bitmaskBits);
+        }
+        measureProbes(reader, report);
+        return report;
+    }
+
+    public static Report inspect(ChainHashTable.Reader reader) {
+        Report report = new Report();
+        report.format = "ChainHashTable";
+        report.size = size(reader);
+        if (reader.length == 0) {
+            return report;
+        }
+        if (TinyTable.isTiny(reader.data, reader.offset, reader.length)) {
+            return inspectTiny(reader);
+        }
+        report.parameters.put("hashTableSize", reader.hashTableSize());
+        report.parameters.put("keySize", reader.keySize());
+        report.parameters.put("ptrSize", reader.ptrSize());
+        report.parameters.put("valueSize", reader.valueSize());
+        putValueCodec(reader, report);
+        report.parameters.put("keyColumn", reader.keyColumn());
+
+        int entrySize = reader.keySize() + reader.valueSize().size;
+        int hashTableSize = reader.hashTableSize();
+        int[] lengths = new int[hashTableSize];
+        int maxLength = 0;
+        int emptyBuckets = 0;
+        for (int i = 0; i < hashTableSize; i++) {
+            lengths[i] = reader.bucketLength(i) / entrySize;
+            maxLength = Math.max(maxLength, lengths[i]);
+            if (lengths[i] == 0) {
+                emptyBuckets++;
+            }
+            report.numKeys += lengths[i];
+        }
+        report.bucketLengths = new int[maxLength + 1];
+        for (int length : lengths) {
+            report.bucketLengths[length]++;
+        }
+        report.emptyBucketRatio = (double) emptyBuckets / hashTableSize;
+        report.keyBytes = report.numKeys * reader.keySize();
+        report.valueBytes = report.numKeys * reader.valueSize().size;
+        report.pointerBytes = hashTableSize == 1 ? 0 : hashTableSize * reader.ptrSize();
+        report.headerBytes = report.size - report.pointerBytes - report.keyBytes - report.valueBytes;
+        measureProbes(reader, report);
+        return report;
+    }
+
+    /**
+     *  Key and value bytes include empty slots
+     */
+    public static Report inspect(CuckooHashTable.Reader reader) {
+        final Report report = new Report();
+        report.format = "CuckooHashTable";
+        report.size = size(reader);
+        if (reader.length == 0) {
+            return report;
+        }
+        if (TinyTable.isTiny(reader.data, reader.offset, reader.length)) {
+            return inspectTiny(reader);
+        }
+        int numSlots = reader.numBuckets() * reader.bucketSize();
+        report.parameters.put("numBuckets", reader.numBuckets());
+        report.parameters.put("bucketSize", reader.bucketSize());
+        report.parameters.put("keySize", reader.keySize());
+        report.parameters.put("valueSize", reader.valueSize());
+        putValueCodec(reader, report);
+
+        reader.forEach(new HashTable.EntryVisitor() {
+            @Override
+            public void visit(long key, int valueOffset) {
+                report.numKeys++;
+            }
+        });
+        report.parameters.put("loadFactor", String.format("%.3f", (double) report.numKeys / numSlots));
+        report.fingerprintBytes = numSlots;
+        report.keyBytes = numSlots * reader.keySize();
+        report.valueBytes = numSlots * reader.valueSize().size;
+        report.headerBytes = report.size - report.fingerprintBytes - report.keyBytes - report.valueBytes;
+        measureProbes(reader, report);
+        return report;
+    }
+
+    /**
+     *  @return table size including the value codec
+     */
+    private static int size(HashTable.Reader reader) {
+        return reader.codec != null ? reader.length + reader.codec.size() : reader.length;
+    }
+
+    private static void putValueCodec(HashTable.Reader reader, Report report) {
+        if (reader.floatEncoding() != null) {
+            report.parameters.put("floatEncoding", reader.floatEncoding());
+        }
+        if (reader.codec != null && reader.codec.dictionarySize() > 0) {
+            report.parameters.put("dictionarySize", reader.codec.dictionarySize());
+        }
+    }
+
+    private static Report inspectTiny(HashTable.Reader reader) {
+        Report report = new Report();
+        report.format = "TinyTable";
+        report.size = size(reader);
+        short header = ByteUtils.bytesToShort(reader.data, reader.offset);
+        int keySize = TinyTable.keySize(header);
+        report.numKeys = TinyTable.numKeys(header);
+        report.parameters.put("keySize", keySize);
+        report.parameters.put("valueSize", reader.valueSize());
+        putValueCodec(reader, report);
+        report.keyBytes = report.numKeys * keySize;
+        report.valueBytes = report.numKeys * reader.valueSize().size;
+        report.headerBytes = report.size - report.keyBytes - report.valueBytes;
+        measureProbes(reader, report);
+        return report;
+    }
+
+    /**
+     *  @return all entries of the table, values are copied
+     */
+    public static SortedMap<Long,byte[]> entries(final HashTable.Reader reader) {
+        final SortedMap<Long,byte[]> entries = new TreeMap<>();
+        reader.forEach(new HashTable.EntryVisitor() {
+            @Override
+            public void visit(long key, int valueOffset) {
+                entries.put(key, reader.get(valueOffset));
+            }
+        });
+        return entries;
+    }
+
+    /**
+     *  Rebuilds the table with the writer and inspects the result
+     */
+    public static Estimate estimate(HashTable.Reader reader, HashTable.Writer writer) {
+        return estimate(entries(reader), writer);
+    }
+
+    static Estimate estimate(SortedMap<Long,byte[]> entries, HashTable.Writer writer) {
+        byte[] data;
+        if (writer.floatEncoding() != null) {
+            // only float values are encoded
+            data = writer.dumpFloats(ByteUtils.toLongArray(entries.keySet()), floats(entries.values()));
+        } else {
+            data = writer.dump(entries);
+        }
+        HashTable.Reader reader;
+        if (writer instanceof TrieHashTable.Writer) {
+            reader = new TrieHashTable.Reader(data);
+        } else if (writer instanceof CuckooHashTable.Writer) {
+            reader = new CuckooHashTable.Reader(data);
+        } else {
+            reader = new ChainHashTable.Reader(data);
+        }
+        return new Estimate(writer, inspect(reader));
+    }
+
+    private static float[] floats(Collection<byte[]> values) {
+        float[] floats = new float[values.size()];
+        int i = 0;
+        for (byte[] value : values) {
+            floats[i++] = ByteUtils.bytesToFloat(value);
+        }
+        return floats;
+    }
+
+    /**
+     *  Estimates the table under standard writer parameters,
+     *  values are encoded as in the table
+     *
+     *  @return estimates ordered by size
+     */
+    public static List<Estimate> whatIf(HashTable.Reader reader) {
+        // entries hold decoded values
+        HashTable.ValueSize valueSize = reader.codec != null ? reader.codec.valueSize() : reader.valueSize();
+        List<HashTable.Writer> writers = candidates(valueSize);
+        for (HashTable.Writer writer : writers) {
+            writer.setFloatEncoding(reader.floatEncoding());
+            if (reader.codec != null) {
+                writer.setMaxDictionarySize(reader.codec.dictionarySize());
+            }
+        }
+        return whatIf(reader, writers);
+    }
+
+    public static List<Estimate> whatIf(HashTable.Reader reader, List<HashTable.Writer> writers) {
+        SortedMap<Long,byte[]> entries = entries(reader);
+        List<Estimate> estimates = new ArrayList<>();
+        for (HashTable.Writer writer : writers) {
+            estimates.add(estimate(entries, writer));
+        }
+        Collections.sort(estimates, new Comparator<Estimate>() {
+            @Override
+            public int compare(Estimate a, Estimate b) {
+                return Integer.compare(a.report.size, b.report.size);
+            }
+        });
+        return estimates;
+    }
+
+    public static List<HashTable.Writer> candidates(HashTable.ValueSize valueSize) {
+        List<HashTable.Writer> writers = new ArrayList<>();
+        for (TrieHashTable.BitmaskSize bitmaskSize : TrieHashTable.BitmaskSize.values()) {
+            writers.add(new TrieHashTable.Writer(valueSize, bitmaskSize));
+        }
+        for (TrieHashTable.Objective objective : TrieHashTable.Objective.values()) {
+            writers.add(new TrieHashTable.Writer(valueSize, objective));
+        }
+        TrieHashTable.Writer compressed = new TrieHashTable.Writer(valueSize);
+        compressed.setPathCompression(true);
+        writers.add(compressed);
+        TrieHashTable.Writer relative = new TrieHashTable.Writer(valueSize);
+        relative.setRelativePointers(true);
+        writers.add(relative);
+        for (int fillingRatio : new int[]{ 2, 4, 10, 20 }) {
+            for (boolean keyColumn : new boolean[]{ false, true }) {
+                writers.add(new ChainHashTable.Writer(valueSize, fillingRatio, ChainHashTable.Writer.DEFAULT_MIN_HASH_TABLE_SIZE, keyColumn));
+            }
+        }
+        for (int loadFactor : new int[]{ CuckooHashTable.Writer.DEFAULT_LOAD_FACTOR, CuckooHashTable.Writer.MAX_LOAD_FACTOR }) {
+            writers.add(new CuckooHashTable.Writer(valueSize, loadFactor));
+        }
+        return writers;
+    }
+
+    private static void measureProbes(HashTable.Reader reader, Report report) {
+        final long[] counters = new long[6];
+        HashTable.Listener listener = new HashTable.Listener() {
+            @Override
+            public void onLookup(HashTable.Reader reader, long key, boolean found, int levels, int bucketLength, int probes, long nanos) {
+                int i = found ? 0 : 3;
+                counters[i]++;
+                counters[i + 1] += levels;
+                counters[i + 2] += probes;
+            }
+
+            @Override
+            public void onDump(HashTable.Writer writer, HashTable.DumpStats stats) {}
+        };
+
+        final List<Long> keys = new ArrayList<>();
+        reader.forEach(new HashTable.EntryVisitor() {
+            @Override
+            public void visit(long key, int valueOffset) {
+                keys.add(key);
+            }
+        });
+        long[] sortedKeys = ByteUtils.toLongArray(keys);
+        Arrays.sort(sortedKeys);
+        long maxKey = sortedKeys.length == 0 ? 0 : sortedKeys[sortedKeys.length - 1];
+
+        HashTable.Listener prevListener = reader.listener();
+        reader.setListener(listener);
+        try {
+            for (long key : keys) {
+                reader.getValueOffset(key);
+            }
+            // sampled keys of the table are skipped, so dense tables get fewer miss samples
+            Random random = new Random(0);
+            for (int i = 0; i < MISS_SAMPLES; i++) {
+                long key = (random.nextLong() & Long.MAX_VALUE) % (maxKey + 1);
+                if (Arrays.binarySearch(sortedKeys, key) < 0) {
+                    reader.getValueOffset(key);
+                }
+            }
+        } finally {
+            reader.setListener(prevListener);
+        }
+        if (counters[0] > 0) {
+            report.hitLevels = (double) counters[1] / counters[0];
+            report.hitProbes = (double) counters[2] / counters[0];
+        }
+        if (counters[3] > 0) {
+            report.missLevels = (double) counters[4] / counters[3];
+            report.missProbes = (double) counters[5] / counters[3];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TableInspector trie|chain|cuckoo FILE [--what-if]");
+            System.exit(2);
+        }
+        byte[] data = Files.readAllBytes(Paths.get(args[1]));
+        HashTable.Reader reader;
+        if ("trie".equals(args[0])) {
+            reader = new TrieHashTable.Reader(data);
+        } else if ("chain".equals(args[0])) {
+            reader = new ChainHashTable.Reader(data);
+        } else if ("cuckoo".equals(args[0])) {
+            reader = new CuckooHashTable.Reader(data);
+        } else {
+            System.err.println("Unknown format: " + args[0]);
+            System.exit(2);
+            return;
+        }
+        System.out.print(inspect(reader));
+        if (Arrays.asList(args).contains("--what-if")) {
+            System.out.println("What if:");
+            for (Estimate estimate : whatIf(reader)) {
+                System.out.println("  " + estimate);
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package net.uaprom.htable;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ *  Named tables that are replaced while they are read
+ *
+ *  A new version of a table is published by a single reference swap,
+ *  readers acquire the current version without locks and hold it
+ *  until they close the handle. Every version is reference counted:
+ *  the registry holds one reference until the version is replaced or removed,
+ *  and the releaser is called once the last handle is closed,
+ *  so mapped data can be unmapped as soon as nobody reads it.
+ *
+ *  <pre>
+ *  try (TableRegistry.Handle&lt;TrieHashTable.Reader&gt; handle = registry.acquire("prices")) {
+ *      int price = handle.table().getInt(productId, -1);
+ *  }
+ *  </pre>
+ */
+public final class TableRegistry<T> {
+    public interface Releaser<T> {
+        void release(T table);
+    }
+
+    /**
+     *  Unmaps data of large readers, see {@link SegmentedBytes#unmap()}
+     */
+    public static final Releaser<HashTable.LargeReader> UNMAP = new Releaser<HashTable.LargeReader>() {
+        @Override
+        public void release(HashTable.LargeReader table) {
+            table.data().unmap();
+        }
+    };
+
+    private static final Releaser<Object> NOOP = new Releaser<Object>() {
+        @Override
+        public void release(Object table) {}
+    };
+
+    private final ConcurrentMap<String, AtomicReference<Version<T>>> tables = new ConcurrentHashMap<>();
+    private final Releaser<? super T> releaser;
+
+    public TableRegistry() {
+        this(NOOP);
+    }
+
+    public TableRegistry(Releaser<? super T> releaser) {
+        this.releaser = releaser;
+    }
+
+    /**
+     *  Publishes the table under the name,
+     *  the replaced version is released when its last handle is closed
+     *
+     *  @return number of the published version, starting from 1 for every name
+     */
+    public long publish(String name, T table) {
+        assert table != null;
+        AtomicReference<Version<T>> current = this.tables.get(name);
+        if (current == null) {
+            AtomicReference<Version<T>> created = new AtomicReference<>();
+            current = this.tables.putIfAbsent(name, created);
+            if (current == null) {
+                current = created;
+            }
+        }
+        while (true) {
+            Version<T> old = current.get();
+            Version<T> version = new Version<>(table, old == null ? 1 : old.number + 1, this.releaser);
+            if (current.compareAndSet(old, version)) {
+                if (old != null) {
+                    old.release();
+                }
+                return version.number;
+            }
+        }
+    }
+
+    /**
+     *  Unpublishes the table, it is released when its last handle is closed
+     *
+     *  @return false if there was no table with the name
+     */
+    public boolean remove(String name) {
+        AtomicReference<Version<T>> current = this.tables.get(name);
+        if (current == null) {
+            return false;
+        }
+        Version<T> old = current.getAndSet(null);
+        if (old == null) {
+            return false;
+        }
+        old.release();
+        return true;
+    }
+
+    /**
+     *  Acquires the current version of the table, the handle must be closed
+     *
+     *  @return null if there is no table with the name
+     */
+    public Handle<T> acquire(String name) {
+        AtomicReference<Version<T>> current = this.tables.get(name);
+        if (current == null) {
+            return null;
+        }
+        while (true) {
+            Version<T> version = current.get();
+            if (version == null) {
+                return null;
+            }
+            // fails only when the version was just replaced and released
+            if (version.retain()) {
+                return new Handle<>(version);
+            }
+        }
+    }
+
+    public Set<String> names() {
+        Set<String> names = new HashSet<>();
+        for (Map.Entry<String, AtomicReference<Version<T>>> entry : this.tables.entrySet()) {
+            if (entry.getValue().get() != null) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    public static final class Handle<T> implements AutoCloseable {
+        private final Version<T> version;
+        private boolean closed;
+
+        Handle(Version<T> version) {
+            this.version = version;
+        }
+
+        public T table() {
+            assert !this.closed;
+            return this.version.table;
+        }
+
+        public long version() {
+            return this.version.number;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            this.version.release();
+        }
+    }
+
+    static final class Version<T> {
+        final T table;
+        final long number;
+        private final Releaser<? super T> releaser;
+        // the registry holds one reference while the version is published
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        Version(T table, long number, Releaser<? super T> releaser) {
+            this.table = table;
+            this.number = number;
+            this.releaser = releaser;
+        }
+
+        boolean retain() {
+            while (true) {
+                int n = this.refs.get();
+                if (n == 0) {
+                    return false;
+                }
+                if (this.refs.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            int n = this.refs.decrementAndGet();
+            assert n >= 0;
+            if (n == 0) {
+                this.releaser.release(this.table);
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.uaprom.htable.HashTable.EntryVisitor;
+import net.uaprom.htable.HashTable.Output;
+import net.uaprom.htable.HashTable.Probe;
+import net.uaprom.htable.HashTable.ValueSize;
+
+
+/**
+ *  Encoding of tables with a few keys, writers choose it instead of
+ *  their own format when it is not larger. Readers of all formats read it.
+ *
+ *  <Header>[<Key>][<Value>][<ValueCodec>]
+ *
+ *  Header:
+ *
+ *  |b|--7b---|2b|3b-|b|2b|
+ *   |  |      |  |   | |
+ *   |  |      |  |   | Value size (2^n)
+ *   |  |      |  |   Encoded values flag, values are decoded by the ValueCodec ending the table
+ *   |  |      |  |
+ *   |  |      |  Key size (n+1)
+ *   |  |      |
+ *   |  |      Reserved
+ *   |  |
+ *   |  Number of keys
+ *   |
+ *   Tiny table flag, the bit is reserved in other formats
+ *
+ *  Keys are sorted, values follow in the same order.
+ */
+final class TinyTable implements HashTable.Dumpable {
+    static final int HEADER_SIZE = 2;
+    static final int MAX_NUM_KEYS = 0b0111_1111;
+    private static final int VALUE_SIZE_OFFSET = 0;
+    private static final int ENCODED_VALUES_OFFSET = 2;
+    private static final int KEY_SIZE_OFFSET = 3;
+    private static final int NUM_KEYS_OFFSET = 8;
+    private static final int TINY_OFFSET = 15;
+    private static final int VALUE_SIZE_MASK = 0b0000_0011;
+    private static final int KEY_SIZE_MASK = 0b0000_0111;
+
+    private final long[] keys;
+    private final Values values;
+    private final ValueSize valueSize;
+    private final int keySize;
+
+    TinyTable(long[] keys, Values values, ValueSize valueSize) {
+        assert keys.length <= MAX_NUM_KEYS;
+        this.keys = keys;
+        this.values = values;
+        this.valueSize = valueSize;
+        // negative keys are sorted first and need all bytes
+        this.keySize = keys[0] < 0 ? 8 : ByteUtils.getMinimumNumberOfBytes(keys[keys.length - 1]);
+    }
+
+    @Override
+    public void layout(int maxPtrSize) {}
+
+    @Override
+    public long dumpSize() {
+        return HEADER_SIZE + keys.length * (keySize + valueSize.size);
+    }
+
+    @Override
+    public void dump(Output output) throws IOException {
+        int header = 0;
+        header |= this.valueSize.encode() << VALUE_SIZE_OFFSET;
+        if (this.values.codec() != null) {
+            header |= 1 << ENCODED_VALUES_OFFSET;
+        }
+        header |= (this.keySize - 1) << KEY_SIZE_OFFSET;
+        header |= this.keys.length << NUM_KEYS_OFFSET;
+        header |= 1 << TINY_OFFSET;
+        ByteBuffer buffer = output.reserve((int) dumpSize());
+        buffer.putShort((short) header);
+        for (long key : this.keys) {
+            Values.putBytes(buffer, key, this.keySize);
+        }
+        for (int i = 0; i < this.keys.length; i++) {
+            this.values.put(buffer, i);
+        }
+    }
+
+    /**
+     *  @return table without keys, writers dump such tables into empty arrays
+     *      which readers can not open
+     */
+    static byte[] empty(ValueSize valueSize) {
+        int header = valueSize.encode() << VALUE_SIZE_OFFSET | 1 << TINY_OFFSET;
+        return ByteUtils.shortToBytes((short) header);
+    }
+
+    static boolean isTiny(short header) {
+        return (header >>> TINY_OFFSET & 1) != 0;
+    }
+
+    static boolean isTiny(byte[] data, int offset, int length) {
+        return length >= HEADER_SIZE && isTiny(ByteUtils.bytesToShort(data, offset));
+    }
+
+    static int numKeys(short header) {
+        return (header >>> NUM_KEYS_OFFSET) & MAX_NUM_KEYS;
+    }
+
+    static int keySize(short header) {
+        return ((header >>> KEY_SIZE_OFFSET) & KEY_SIZE_MASK) + 1;
+    }
+
+    static ValueSize valueSize(short header) {
+        return ValueSize.decode((header >>> VALUE_SIZE_OFFSET) & VALUE_SIZE_MASK);
+    }
+
+    static int getValueOffset(byte[] data, int offset, long key, Probe probe) {
+        short header = ByteUtils.bytesToShort(data, offset);
+        int numKeys = numKeys(header);
+        int keySize = keySize(header);
+        if (probe != null) {
+            probe.bucketLength = numKeys;
+        }
+        if (keySize < 8 && key >>> (keySize << 3) != 0) {
+            return HashTable.Reader.NOT_FOUND_OFFSET;
+        }
+        int keysOffset = offset + HEADER_SIZE;
+        int ix = search(data, keysOffset, numKeys, keySize, key, probe);
+        if (ix < 0) {
+            return HashTable.Reader.NOT_FOUND_OFFSET;
+        }
+        return keysOffset + numKeys * keySize + ix * valueSize(header).size;
+    }
+
+    static long getValueOffset(SegmentedBytes data, long offset, long key) {
+        short header = (short) data.load(offset, HEADER_SIZE);
+        int numKeys = numKeys(header);
+        int keySize = keySize(header);
+        long keysOffset = offset + HEADER_SIZE;
+        for (int i = 0; i < numKeys; i++) {
+            long entryKey = data.load(keysOffset + (long) i * keySize, keySize);
+            if (entryKey == key) {
+                return keysOffset + (long) numKeys * keySize + (long) i * valueSize(header).size;
+            }
+        }
+        return HashTable.LargeReader.NOT_FOUND_OFFSET;
+    }
+
+    static void forEach(byte[] data, int offset, EntryVisitor visitor) {
+        short header = ByteUtils.bytesToShort(data, offset);
+        int numKeys = numKeys(header);
+        int keySize = keySize(header);
+        int keysOffset = offset + HEADER_SIZE;
+        int valuesOffset = keysOffset + numKeys * keySize;
+        for (int i = 0; i < numKeys; i++) {
+            long key = ByteUtils.load(data, keysOffset + i * keySize, keySize);
+            visitor.visit(key, valuesOffset + i * valueSize(header).size);
+        }
+    }
+
+    /**
+     *  Searches sorted keys of keySize bytes stored one after another,
+     *  short runs are scanned linearly
+     *
+     *  @return index of the key or -1
+     */
+    static int search(byte[] data, int offset, int numKeys, int keySize, long key, Probe probe) {
+        if (numKeys > ChainHashTable.Reader.SCAN_THRESHOLD) {
+            return binarySearch(data, offset, numKeys, keySize, key, probe);
+        }
+        if (keySize == 1 || keySize == 2 || keySize == 4) {
+            return swarScan(data, offset, numKeys, keySize, key, probe);
+        }
+        if (probe != null) {
+            probe.probes += numKeys;
+        }
+        return scan(data, offset, numKeys, keySize, key);
+    }
+
+    private static int binarySearch(byte[] data, int offset, int numKeys, int keySize, long key, Probe probe) {
+        int minEntryIx = 0, maxEntryIx = numKeys - 1;
+        while (minEntryIx <= maxEntryIx) {
+            int currentEntryIx = (maxEntryIx + minEntryIx) >>> 1;
+            if (probe != null) {
+                probe.probes++;
+            }
+            long entryKey = ByteUtils.load(data, offset + currentEntryIx * keySize, keySize);
+            if (entryKey > key) {
+                maxEntryIx = currentEntryIx - 1;
+            } else if (entryKey < key) {
+                minEntryIx = currentEntryIx + 1;
+            } else {
+                return currentEntryIx;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *  Branch-free scan: keys are unique so at most one entry matches
+     */
+    private static int scan(byte[] data, int offset, int numKeys, int keySize, long key) {
+        int found = 0;
+        for (int i = 0; i < numKeys; i++) {
+            long diff = ByteUtils.load(data, offset + i * keySize, keySize) ^ key;
+            int eq = (int) (((diff | -diff) >>> 63) ^ 1);
+            found += eq * (i + 1);
+        }
+        return found - 1;
+    }
+
+    /**
+     *  Compares 8 / keySize keys at once packing them into a long word
+     *  and searching for a zero lane after xor with the broadcasted key
+     */
+    private static int swarScan(byte[] data, int offset, int numKeys, int keySize, long key, Probe probe) {
+        int laneBits = keySize << 3;
+        long ones = SWAR_ONES[keySize];
+        long highs = ones << (laneBits - 1);
+        long pattern = key * ones;
+        int lanes = 8 / keySize;
+        for (int i = 0; i < numKeys; i += lanes) {
+            int n = Math.min(lanes, numKeys - i);
+            if (probe != null) {
+                probe.probes++;
+            }
+            long word = ByteUtils.load(data, offset + i * keySize, n * keySize);
+            long x = word ^ pattern;
+            long zeros = (x - ones) & ~x & highs;
+            if (n < lanes) {
+                zeros &= (1L << (n * laneBits)) - 1;
+            }
+            if (zeros != 0) {
+                return i + Long.numberOfTrailingZeros(zeros) / laneBits;
+            }
+        }
+        return -1;
+    }
+
+    private static final long[] SWAR_ONES = new long[] {
+        0L,
+        0x0101_0101_0101_0101L,
+        0x0001_0001_0001_0001L,
+        0L,
+        0x0000_0001_0000_0001L
+    };
+}
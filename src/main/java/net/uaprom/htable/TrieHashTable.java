@@ -1,7 +1,7 @@
 package net.uaprom.htable;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -16,38 +16,70 @@ import java.util.SortedMap;
 /**
  *  Hash array mapped trie implementation in Java
  *
- *  <Header><Data>
+ *  <Header><Data>[<ValueCodec>]
  *
  *  Header:
  *
- *  |3b-|-5b--|2b|3b-|b|2b|
- *    |   |    |  |   | |
- *    |   |    |  |   | Value size (2^n)
- *    |   |    |  |   Variable value size flag (not implemented yet)             
- *    |   |    |  |
- *    |   |    |  Bitmask size in bytes (2^n)
- *    |   |    |
- *    |   |    Pointer size in bytes (n+1)
- *    |   |
- *    |   Number of levels (n)
- *    |
- *    Reserved
+ *  |b|b|b|-5b--|2b|3b-|b|2b|
+ *   | | | |    |  |   | |
+ *   | | | |    |  |   | Value size (2^n)
+ *   | | | |    |  |   Encoded values flag, values are decoded by the ValueCodec ending the table
+ *   | | | |    |  |
+ *   | | | |    |  Bitmask size in bytes (2^n), of the root level for extended header
+ *   | | | |    |
+ *   | | | |    Pointer size in bytes (n+1), low bits
+ *   | | | |
+ *   | | | Number of levels (n)
+ *   | | |
+ *   | | Extended header flag
+ *   | |
+ *   | Pointer size high bit, set for 5-8 byte pointers of tables larger than 4 GB
+ *   |
+ *   Tiny table flag, such tables are encoded as TinyTable
+ *
+ *  Extended header:
+ *
+ *  <Flags:1b>[<LevelBitmaskSize:1b>]
+ *
+ *  Flags:
+ *
+ *  bit 0 - per level bitmask sizes (2^n) follow starting from the root level
+ *  bit 1 - path compression, every node starts with a prefix
+ *  bit 2 - relative pointers, per level pointer sizes in bytes follow
+ *          starting from the root level down to the level above the lowest one,
+ *          the header pointer size is the largest of them
  *
  *  Data:
  *
- *  [<Bitmask><LayerData>]
+ *  [[<Prefix>]<Bitmask><LayerData>]
+ *
+ *  Prefix:
+ *
+ *  <Skip:1b>[<Digits:1-8b>]
+ *
+ *  Skip is the number of levels above the node that have a single child,
+ *  their key digits follow as a little-endian number.
+ *
+ *  Pointers hold offsets of child nodes from the table start,
+ *  or from the start of their own node when they are relative.
  */
 public class TrieHashTable extends HashTable {
     private static final int HEADER_SIZE = 2;
     private static final int VALUE_SIZE_OFFSET = 0;
-    private static final int VARIABLE_VALUE_SIZE_OFFSET = 2;
+    private static final int ENCODED_VALUES_OFFSET = 2;
     private static final int BITMASK_SIZE_OFFSET = 3;
     private static final int PTR_SIZE_OFFSET = 6;
     private static final int NUM_LEVELS_OFFSET = 8;
+    private static final int EXTENDED_HEADER_OFFSET = 13;
+    private static final int PTR_SIZE_HIGH_OFFSET = 14;
     private static final int NUM_LEVELS_MASK = 0b0001_1111;
     private static final int BITMASK_SIZE_MASK = 0b0000_0111;
     private static final int PTR_SIZE_MASK = 0b0000_0011;
     private static final int VALUE_SIZE_MASK = 0b0000_0011;
+    private static final int EXTENDED_HEADER_MASK = 0b0000_0001;
+    private static final int LEVEL_BITMASK_SIZES_FLAG = 0b0000_0001;
+    private static final int PATH_COMPRESSION_FLAG = 0b0000_0010;
+    private static final int RELATIVE_POINTERS_FLAG = 0b0000_0100;
 
     public static enum BitmaskSize {
         BYTE(1), SHORT(2), INT(4), LONG(8);
@@ -82,10 +114,27 @@ public class TrieHashTable extends HashTable {
         }
     }
     
+    /**
+     *  What the writer minimizes when it chooses bitmask sizes per level
+     */
+    public static enum Objective {
+        SIZE, DEPTH
+    }
+
     public static final class Writer extends HashTable.Writer {
         private final BitmaskSize bitmaskSize;
+        private final BitmaskSize[] levelBitmaskSizes;
+        private final Objective objective;
+        private boolean pathCompression = false;
+        private boolean cacheLineLayout = false;
+        private boolean relativePointers = false;
+        // kept between dumps when scratch is reused
+        private Arena arena;
 
         public static final BitmaskSize DEFAULT_BITMASK_SIZE = BitmaskSize.SHORT;
+        public static final int CACHE_LINE_SIZE = 64;
+        // the most padding spent to keep a node inside one cache line
+        private static final int MAX_NODE_PADDING = CACHE_LINE_SIZE / 4;
 
         public Writer(ValueSize valueSize) {
             this(valueSize, DEFAULT_BITMASK_SIZE);
@@ -94,6 +143,90 @@ public class TrieHashTable extends HashTable {
         public Writer(ValueSize valueSize, BitmaskSize bitmaskSize) {
             super(valueSize);
             this.bitmaskSize = bitmaskSize;
+            this.levelBitmaskSizes = null;
+            this.objective = null;
+        }
+
+        /**
+         *  @param levelBitmaskSizes bitmask sizes starting from the lowest level,
+         *      the last one is repeated for upper levels
+         */
+        public Writer(ValueSize valueSize, BitmaskSize[] levelBitmaskSizes) {
+            super(valueSize);
+            assert levelBitmaskSizes.length > 0;
+            this.bitmaskSize = levelBitmaskSizes[levelBitmaskSizes.length - 1];
+            this.levelBitmaskSizes = levelBitmaskSizes.clone();
+            this.objective = null;
+        }
+
+        /**
+         *  Chooses bitmask sizes per level for every key set
+         */
+        public Writer(ValueSize valueSize, Objective objective) {
+            super(valueSize);
+            this.bitmaskSize = DEFAULT_BITMASK_SIZE;
+            this.levelBitmaskSizes = null;
+            this.objective = objective;
+        }
+
+        /**
+         *  Collapses chains of single child nodes into their last node,
+         *  skipped key digits are stored inline in the node prefix
+         */
+        public void setPathCompression(boolean pathCompression) {
+            this.pathCompression = pathCompression;
+        }
+
+        public boolean pathCompression() {
+            return pathCompression;
+        }
+
+        /**
+         *  Lays nodes out in van Emde Boas order, so the top half of the levels
+         *  of every subtree is stored before its lower subtrees and a lookup
+         *  touches a few neighbouring cache lines and pages. A node that would
+         *  straddle a cache line is moved to the next one when that costs
+         *  at most 16 bytes of padding. Offsets are aligned relative to the table
+         *  start. Readers do not depend on the node order.
+         */
+        public void setCacheLineLayout(boolean cacheLineLayout) {
+            this.cacheLineLayout = cacheLineLayout;
+        }
+
+        public boolean cacheLineLayout() {
+            return cacheLineLayout;
+        }
+
+        /**
+         *  Stores pointers as offsets from the start of their node using
+         *  the smallest size fitting all pointers of a level. Nodes are laid out
+         *  in depth-first order unless the cache line layout is set, so subtrees
+         *  are stored next to their parents and lower levels get short pointers.
+         */
+        public void setRelativePointers(boolean relativePointers) {
+            this.relativePointers = relativePointers;
+        }
+
+        public boolean relativePointers() {
+            return relativePointers;
+        }
+
+        @Override
+        public String toString() {
+            String options = pathCompression ? ", pathCompression=true" : "";
+            if (cacheLineLayout) {
+                options += ", cacheLineLayout=true";
+            }
+            if (relativePointers) {
+                options += ", relativePointers=true";
+            }
+            if (objective != null) {
+                return "TrieHashTable.Writer(valueSize=" + valueSize + ", objective=" + objective + options + ")";
+            }
+            if (levelBitmaskSizes != null) {
+                return "TrieHashTable.Writer(valueSize=" + valueSize + ", levelBitmaskSizes=" + Arrays.toString(levelBitmaskSizes) + options + ")";
+            }
+            return "TrieHashTable.Writer(valueSize=" + valueSize + ", bitmaskSize=" + bitmaskSize + options + ")";
         }
 
         private int getLevels(long maxKey) {
@@ -106,100 +239,512 @@ public class TrieHashTable extends HashTable {
             return levels;
         }
 
-        private int getPtrSize(List<LayerData> layers) {
-            int ptrSize = 0;
-            for (int ps = 0; ps <= 3; ps++) {
-                ptrSize = ps + 1;
-                int maxSize = 1 << (8 * ptrSize);
-                int size = 0;
-                for (LayerData l : layers) {
-                    size += l.size(ptrSize, this.valueSize.size);
-                    if (size > maxSize) {
-                        break;
+        /**
+         *  @return bitmask sizes starting from the lowest level
+         */
+        BitmaskSize[] getLevelBitmaskSizes(long[] keys, ValueSize valueSize) {
+            long maxKey = keys[keys.length - 1];
+            if (this.objective != null) {
+                return chooseLevelBitmaskSizes(keys, valueSize);
+            }
+            if (this.levelBitmaskSizes == null) {
+                BitmaskSize[] levels = new BitmaskSize[getLevels(maxKey)];
+                Arrays.fill(levels, this.bitmaskSize);
+                return levels;
+            }
+            List<BitmaskSize> levels = new ArrayList<>();
+            int shift = 0;
+            do {
+                BitmaskSize levelBitmaskSize = this.levelBitmaskSizes[Math.min(levels.size(), this.levelBitmaskSizes.length - 1)];
+                levels.add(levelBitmaskSize);
+                shift += levelBitmaskSize.shiftBits;
+            } while (shift < 64 && maxKey >>> shift != 0);
+            return levels.toArray(new BitmaskSize[levels.size()]);
+        }
+
+        /**
+         *  Dynamic programming over the number of key bits covered by lower levels.
+         *  A level covering bits [s, s + w) has as many nodes as there are
+         *  distinct keys shifted by s + w and as many children as distinct keys
+         *  shifted by s, so the exact size of every schedule is known in advance.
+         */
+        private BitmaskSize[] chooseLevelBitmaskSizes(long[] keys, ValueSize valueSize) {
+            long maxKey = keys[keys.length - 1];
+            int keyBits = Math.max(1, 64 - Long.numberOfLeadingZeros(maxKey));
+            // distinctKeys[s] - number of distinct values of key >>> s
+            long[] distinctKeys = new long[64 + 1];
+            for (int i = 1; i < keys.length; i++) {
+                int highestDiffBit = 63 - Long.numberOfLeadingZeros(keys[i - 1] ^ keys[i]);
+                distinctKeys[highestDiffBit]++;
+            }
+            distinctKeys[64] = 1;
+            for (int s = 63; s >= 0; s--) {
+                distinctKeys[s] += distinctKeys[s + 1];
+            }
+
+            BitmaskSize[] levels = null;
+            for (int ptrSize = 1; ptrSize <= 4; ptrSize++) {
+                int maxShift = keyBits + BitmaskSize.LONG.shiftBits;
+                long[] sizes = new long[maxShift];
+                int[] depths = new int[maxShift];
+                BitmaskSize[] lastLevel = new BitmaskSize[maxShift];
+                Arrays.fill(sizes, Long.MAX_VALUE);
+                sizes[0] = 0;
+                int best = -1;
+                for (int s = 0; s < maxShift; s++) {
+                    if (sizes[s] == Long.MAX_VALUE) {
+                        continue;
+                    }
+                    if (s >= keyBits) {
+                        if (best < 0 || isBetter(sizes[s], depths[s], sizes[best], depths[best])) {
+                            best = s;
+                        }
+                        continue;
+                    }
+                    int childSize = s == 0 ? valueSize.size : ptrSize;
+                    for (BitmaskSize levelBitmaskSize : BitmaskSize.values()) {
+                        int t = s + levelBitmaskSize.shiftBits;
+                        // one more byte for the level in the extended header
+                        long size = sizes[s] + 1
+                            + distinctKeys[Math.min(t, 64)] * levelBitmaskSize.size
+                            + distinctKeys[s] * childSize;
+                        int depth = depths[s] + 1;
+                        if (sizes[t] == Long.MAX_VALUE || isBetter(size, depth, sizes[t], depths[t])) {
+                            sizes[t] = size;
+                            depths[t] = depth;
+                            lastLevel[t] = levelBitmaskSize;
+                        }
                     }
                 }
-                if (size > maxSize) {
-                    continue;
-                } else {
+                levels = new BitmaskSize[depths[best]];
+                long bestSize = sizes[best] + 1;
+                for (int s = best, l = levels.length - 1; s > 0; s -= lastLevel[s].shiftBits, l--) {
+                    levels[l] = lastLevel[s];
+                }
+                // uniform schedules do not need the extended header
+                for (BitmaskSize levelBitmaskSize : BitmaskSize.values()) {
+                    int depth = (keyBits + levelBitmaskSize.shiftBits - 1) / levelBitmaskSize.shiftBits;
+                    long size = 0;
+                    for (int l = 0; l < depth; l++) {
+                        int s = l * levelBitmaskSize.shiftBits;
+                        size += distinctKeys[Math.min(s + levelBitmaskSize.shiftBits, 64)] * levelBitmaskSize.size
+                            + distinctKeys[s] * (s == 0 ? valueSize.size : ptrSize);
+                    }
+                    if (isBetter(size, depth, bestSize, levels.length)) {
+                        levels = new BitmaskSize[depth];
+                        Arrays.fill(levels, levelBitmaskSize);
+                        bestSize = size;
+                    }
+                }
+                if (ptrSize == 4 || HEADER_SIZE + bestSize <= 1L << (8 * ptrSize)) {
                     break;
                 }
             }
-            return ptrSize;
+            return levels;
+        }
+
+        private boolean isBetter(long size, int depth, long bestSize, int bestDepth) {
+            if (this.objective == Objective.DEPTH) {
+                return depth < bestDepth || (depth == bestDepth && size < bestSize);
+            }
+            return size < bestSize || (size == bestSize && depth < bestDepth);
         }
 
         private short getHeader(int numLevels, int ptrSize) {
-            assert 1 <= ptrSize && ptrSize <= 4;
+            return getHeader(numLevels, this.bitmaskSize, ptrSize, false, this.valueSize, false);
+        }
+
+        private short getHeader(int numLevels, BitmaskSize rootBitmaskSize, int ptrSize, boolean extended,
+                                ValueSize valueSize, boolean encodedValues) {
+            assert 1 <= ptrSize && ptrSize <= MAX_PTR_SIZE;
 
             int header = 0;
             header |= numLevels << NUM_LEVELS_OFFSET;
-            header |= this.bitmaskSize.encode() << BITMASK_SIZE_OFFSET;
-            header |= (ptrSize - 1) << PTR_SIZE_OFFSET;
-            header |= this.valueSize.encode() << VALUE_SIZE_OFFSET;
+            header |= rootBitmaskSize.encode() << BITMASK_SIZE_OFFSET;
+            header |= ((ptrSize - 1) & PTR_SIZE_MASK) << PTR_SIZE_OFFSET;
+            header |= ((ptrSize - 1) >>> 2) << PTR_SIZE_HIGH_OFFSET;
+            header |= valueSize.encode() << VALUE_SIZE_OFFSET;
+            if (encodedValues) {
+                header |= 1 << ENCODED_VALUES_OFFSET;
+            }
+            if (extended) {
+                header |= 1 << EXTENDED_HEADER_OFFSET;
+            }
             return (short) header;
         }
 
-        @Override
-        public byte[] dump(long[] keys, byte[][] values) {
-            assert keys.length == values.length;
+        private static boolean isUniform(BitmaskSize[] levels) {
+            for (BitmaskSize levelBitmaskSize : levels) {
+                if (levelBitmaskSize != levels[0]) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-            if (keys.length == 0) {
-                return new byte[0];
+        private Arena arena() {
+            if (!this.reuseScratch) {
+                return new Arena();
             }
+            if (this.arena == null) {
+                this.arena = new Arena();
+            }
+            this.arena.reset();
+            return this.arena;
+        }
 
-            long maxKey = keys[keys.length - 1];
-            int numLevels = getLevels(maxKey);
-            List<LayerData> layers = new ArrayList<>();
-            layers.add(new LayerData(this.bitmaskSize.size));
-            Map<Long,LayerData> layersMap = new HashMap<>();
-            for (long key : keys) {
-                layersMap.put(key, layers.get(0));
+        @Override
+        Layers build(long[] keys, Values values, ValueSize valueSize) {
+            Arena arena = arena();
+            BitmaskSize[] levels = getLevelBitmaskSizes(keys, valueSize);
+            int numLevels = levels.length;
+            int[] shifts = new int[numLevels];
+            for (int l = 1; l < numLevels; l++) {
+                shifts[l] = shifts[l - 1] + levels[l - 1].shiftBits;
             }
+
+            Layers layers = arena.layers;
+            layers.reset(levels, values, valueSize);
+            layers.add(arena.newLayerData(numLevels - 1, levels[numLevels - 1].size));
+            LayerData[] keyLayers = arena.keyLayers(keys.length);
+            Arrays.fill(keyLayers, 0, keys.length, layers.root());
             for (int l = numLevels; l > 0; l--) {
+                BitmaskSize levelBitmaskSize = levels[l - 1];
                 LayerData prevSubLayer = null;
-                int i = 0;
-                for (long key : keys) {
-                    int k = (int) (key >>> ((l - 1) * this.bitmaskSize.shiftBits) & this.bitmaskSize.shiftMask);
-                    LayerData layer = layersMap.get(key);
+                for (int i = 0; i < keys.length; i++) {
+                    int k = (int) (keys[i] >>> shifts[l - 1] & levelBitmaskSize.shiftMask);
+                    LayerData layer = keyLayers[i];
                     if (l == 1) {
-                        layer.addValue(values[i]);
+                        layer.addValue(i);
                     } else {
-                        LayerData subLayer = layer.newLayer(k);
+                        LayerData subLayer = layer.newLayer(k, l - 2, levels[l - 2].size, arena);
                         if (subLayer != prevSubLayer) {
                             layers.add(subLayer);
                         }
                         prevSubLayer = subLayer;
-                        layersMap.put(key, subLayer);
+                        keyLayers[i] = subLayer;
                     }
                     layer.setBit(k);
-                    i++;
                 }
             }
-            int ptrSize = getPtrSize(layers);
+            if (this.pathCompression) {
+                // parents always precede their children
+                for (LayerData layer : layers.breadthFirst) {
+                    layer.compress(levels);
+                }
+            }
+            return layers;
+        }
+
+        /**
+         *  Nodes of a table with its layout
+         */
+        private final class Layers implements Dumpable {
+            // nodes in breadth-first order, the root is the first one
+            private final List<LayerData> breadthFirst = new ArrayList<>();
+            private final List<LayerData> clustered = new ArrayList<>();
+            // nodes in the order they are written
+            private List<LayerData> nodes = this.breadthFirst;
+            private BitmaskSize[] levels;
+            private Values values;
+            private ValueSize valueSize;
+            private int flags;
+            private int headerSize;
+            // header pointer size, the largest one for relative pointers
+            private int ptrSize;
+            // indexed by level, 0 is the lowest level
+            private int[] ptrSizes;
+            // table size in bytes
+            private long size;
+
+            void reset(BitmaskSize[] levels, Values values, ValueSize valueSize) {
+                this.breadthFirst.clear();
+                this.clustered.clear();
+                this.nodes = this.breadthFirst;
+                this.levels = levels;
+                this.values = values;
+                this.valueSize = valueSize;
+                int flags = 0;
+                int headerSize = HEADER_SIZE;
+                if (!isUniform(levels)) {
+                    flags |= LEVEL_BITMASK_SIZES_FLAG;
+                    headerSize += levels.length;
+                }
+                if (pathCompression) {
+                    flags |= PATH_COMPRESSION_FLAG;
+                }
+                if (relativePointers) {
+                    flags |= RELATIVE_POINTERS_FLAG;
+                    headerSize += levels.length - 1;
+                }
+                if (flags != 0) {
+                    headerSize++;
+                }
+                this.flags = flags;
+                this.headerSize = headerSize;
+                this.ptrSizes = new int[levels.length];
+            }
+
+            void add(LayerData layer) {
+                this.breadthFirst.add(layer);
+            }
+
+            LayerData root() {
+                return this.breadthFirst.get(0);
+            }
+
+            /**
+             *  @return the smallest pointer size addressing every node
+             *      or maxPtrSize when there is no such one
+             */
+            int getPtrSize(int maxPtrSize) {
+                for (int ptrSize = 1; ptrSize < maxPtrSize; ptrSize++) {
+                    long maxSize = 1L << (8 * ptrSize);
+                    Arrays.fill(this.ptrSizes, ptrSize);
+                    if (place(maxSize) <= maxSize) {
+                        return ptrSize;
+                    }
+                }
+                return maxPtrSize;
+            }
+
+            /**
+             *  Grows pointer sizes of the levels until every relative pointer fits,
+             *  larger pointers move nodes apart so it can take a few rounds
+             *
+             *  @return table size in bytes
+             */
+            private long placeRelative(int maxPtrSize) {
+                Arrays.fill(this.ptrSizes, 1);
+                while (true) {
+                    long size = place(Long.MAX_VALUE);
+                    boolean grown = false;
+                    for (LayerData layer : this.nodes) {
+                        if (layer.collapsed) {
+                            continue;
+                        }
+                        for (LayerData child : layer.layers) {
+                            long ptr = child.target().offset - layer.offset;
+                            assert ptr > 0;
+                            int ptrSize = Math.min(maxPtrSize, ByteUtils.getMinimumNumberOfBytes(ptr));
+                            if (ptrSize > this.ptrSizes[layer.level]) {
+                                this.ptrSizes[layer.level] = ptrSize;
+                                grown = true;
+                            }
+                        }
+                    }
+                    if (!grown) {
+                        return size;
+                    }
+                }
+            }
+
+            /**
+             *  Sets offsets of the nodes until they exceed maxSize
+             *
+             *  @return table size in bytes
+             */
+            private long place(long maxSize) {
+                long offset = this.headerSize;
+                for (LayerData layer : this.nodes) {
+                    if (layer.collapsed) {
+                        continue;
+                    }
+                    int size = layer.size(this.ptrSizes[layer.level], this.valueSize.size);
+                    if (cacheLineLayout) {
+                        offset = align(offset, size);
+                    }
+                    layer.setOffset(offset);
+                    offset += size;
+                    if (offset > maxSize) {
+                        break;
+                    }
+                }
+                return offset;
+            }
+
+            /**
+             *  Adds the top height levels of the subtree in van Emde Boas order
+             */
+            private void cluster(LayerData node, int height) {
+                if (height == 1) {
+                    if (!node.collapsed) {
+                        this.clustered.add(node);
+                    }
+                    return;
+                }
+                int topHeight = height / 2;
+                cluster(node, topHeight);
+                clusterSubtrees(node, topHeight, height - topHeight);
+            }
+
+            private void clusterSubtrees(LayerData node, int depth, int height) {
+                for (LayerData child : node.layers) {
+                    if (depth == 1) {
+                        cluster(child, height);
+                    } else {
+                        clusterSubtrees(child, depth - 1, height);
+                    }
+                }
+            }
+
+            /**
+             *  Adds the subtree in depth-first order, parents first
+             */
+            private void preorder(LayerData node) {
+                if (!node.collapsed) {
+                    this.clustered.add(node);
+                }
+                for (LayerData child : node.layers) {
+                    preorder(child);
+                }
+            }
+
+            @Override
+            public void layout(int maxPtrSize) {
+                if ((cacheLineLayout || relativePointers) && this.nodes != this.clustered) {
+                    if (cacheLineLayout) {
+                        cluster(root(), this.levels.length);
+                    } else {
+                        preorder(root());
+                    }
+                    this.nodes = this.clustered;
+                }
+                if (relativePointers) {
+                    this.size = placeRelative(maxPtrSize);
+                    this.ptrSize = 1;
+                    for (int l = 1; l < this.ptrSizes.length; l++) {
+                        this.ptrSize = Math.max(this.ptrSize, this.ptrSizes[l]);
+                    }
+                } else {
+                    this.ptrSize = getPtrSize(maxPtrSize);
+                    Arrays.fill(this.ptrSizes, this.ptrSize);
+                    this.size = place(Long.MAX_VALUE);
+                }
+            }
+
+            @Override
+            public long dumpSize() {
+                return size;
+            }
+
+            @Override
+            public void dump(Output output) throws IOException {
+                int numLevels = this.levels.length;
+                ByteBuffer buffer = output.reserve(this.headerSize);
+                buffer.putShort(getHeader(numLevels, this.levels[numLevels - 1], this.ptrSize, this.flags != 0,
+                                           this.valueSize, this.values.codec() != null));
+                if (this.flags != 0) {
+                    buffer.put((byte) this.flags);
+                }
+                if ((this.flags & LEVEL_BITMASK_SIZES_FLAG) != 0) {
+                    for (int l = numLevels - 1; l >= 0; l--) {
+                        buffer.put((byte) this.levels[l].encode());
+                    }
+                }
+                if ((this.flags & RELATIVE_POINTERS_FLAG) != 0) {
+                    for (int l = numLevels - 1; l > 0; l--) {
+                        buffer.put((byte) this.ptrSizes[l]);
+                    }
+                }
+                long offset = this.headerSize;
+                for (LayerData layer : this.nodes) {
+                    if (layer.collapsed) {
+                        continue;
+                    }
+                    int ptrSize = this.ptrSizes[layer.level];
+                    int size = layer.size(ptrSize, this.valueSize.size);
+                    if (layer.offset > offset) {
+                        int padding = (int) (layer.offset - offset);
+                        buffer = output.reserve(padding);
+                        for (int i = 0; i < padding; i++) {
+                            buffer.put((byte) 0);
+                        }
+                    }
+                    layer.dump(output.reserve(size), ptrSize, relativePointers ? layer.offset : 0, this.values);
+                    offset = layer.offset + size;
+                }
+            }
+        }
+
+        /**
+         *  @return offset of a node moved to the next cache line
+         *      when it would straddle the current one and the padding is cheap
+         */
+        private static long align(long offset, int size) {
+            int lineOffset = (int) (offset & (CACHE_LINE_SIZE - 1));
+            int padding = CACHE_LINE_SIZE - lineOffset;
+            if (lineOffset != 0 && size <= CACHE_LINE_SIZE && lineOffset + size > CACHE_LINE_SIZE && padding <= MAX_NODE_PADDING) {
+                return offset + padding;
+            }
+            return offset;
+        }
+
+        /**
+         *  Scratch structures of a dump, nodes are pooled
+         */
+        private final class Arena {
+            private final Layers layers = new Layers();
+            private final List<LayerData> nodes = new ArrayList<>();
+            private int numNodes;
+            private LayerData[] keyLayers = new LayerData[0];
 
-            int bufferSize = HEADER_SIZE;
-            for (LayerData layer : layers) {
-                int layerSize = layer.size(ptrSize, valueSize.size);
-                layer.setOffset(bufferSize);
-                bufferSize += layerSize;
+            private void reset() {
+                this.numNodes = 0;
             }
 
-            ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
-            buffer.putShort(getHeader(numLevels, ptrSize));
-            for (LayerData layer : layers) {
-                layer.dump(buffer, ptrSize);
+            private LayerData newLayerData(int level, int bitmaskSize) {
+                LayerData l;
+                if (this.numNodes < this.nodes.size()) {
+                    l = this.nodes.get(this.numNodes);
+                } else {
+                    l = new LayerData();
+                    this.nodes.add(l);
+                }
+                this.numNodes++;
+                return l.reset(level, bitmaskSize);
+            }
+
+            private LayerData[] keyLayers(int numKeys) {
+                if (this.keyLayers.length < numKeys) {
+                    this.keyLayers = new LayerData[numKeys];
+                }
+                return this.keyLayers;
             }
-            return buffer.array();
         }
 
         private class LayerData {
+            public int level;
             public byte[] bitmask;
-            public int offset;
+            public long offset;
             public List<LayerData> layers = new ArrayList<>();
-            public List<byte[]> values = new ArrayList<>();
+            // values of the lowest level nodes are consecutive
+            public int firstValue;
+            public int numValues;
+            // path compression
+            public boolean prefixed;
+            public boolean collapsed;
+            public int skip;
+            public int skipBits;
+            public long skipDigits;
 
-            public LayerData(int bitmaskSize) {
-                this.bitmask = new byte[bitmaskSize];
+            private LayerData reset(int level, int bitmaskSize) {
+                this.level = level;
+                if (this.bitmask == null || this.bitmask.length != bitmaskSize) {
+                    this.bitmask = new byte[bitmaskSize];
+                } else {
+                    Arrays.fill(this.bitmask, (byte) 0);
+                }
+                this.offset = 0;
+                this.layers.clear();
+                this.firstValue = 0;
+                this.numValues = 0;
+                this.prefixed = false;
+                this.collapsed = false;
+                this.skip = 0;
+                this.skipBits = 0;
+                this.skipDigits = 0;
+                return this;
             }
         
             private void setBit(int k) {
@@ -208,51 +753,191 @@ public class TrieHashTable extends HashTable {
                 this.bitmask[n] = (byte) (this.bitmask[n] | (1 << b));
             }
 
-            private LayerData newLayer(int k) {
+            private LayerData newLayer(int k, int level, int bitmaskSize, Arena arena) {
                 int n = k >>> 3;
                 int b = k & 0b0000_0111;
                 if ((this.bitmask[n] & (1 << b)) != 0) {
                     return this.layers.get(this.layers.size() - 1);
                 }
                 else {
-                    LayerData l = new LayerData(this.bitmask.length);
+                    LayerData l = arena.newLayerData(level, bitmaskSize);
                     this.layers.add(l);
                     return l;
                 }
             }
 
-            private void addValue(byte[] v) {
-                this.values.add(v);
+            private void addValue(int valueIx) {
+                if (this.numValues == 0) {
+                    this.firstValue = valueIx;
+                }
+                this.numValues++;
             }
 
-            private void setOffset(int o) {
+            private void compress(BitmaskSize[] levels) {
+                this.prefixed = true;
+                if (this.level == 0 || this.layers.size() != 1) {
+                    return;
+                }
+                int digit = 0;
+                while ((this.bitmask[digit >>> 3] & (1 << (digit & 0b0000_0111))) == 0) {
+                    digit++;
+                }
+                this.collapsed = true;
+                LayerData child = this.layers.get(0);
+                child.skip = this.skip + 1;
+                child.skipBits = this.skipBits + levels[this.level].shiftBits;
+                child.skipDigits = (this.skipDigits << levels[this.level].shiftBits) | digit;
+            }
+
+            private LayerData target() {
+                LayerData l = this;
+                while (l.collapsed) {
+                    l = l.layers.get(0);
+                }
+                return l;
+            }
+
+            private int prefixSize() {
+                if (!this.prefixed) {
+                    return 0;
+                }
+                return this.skip == 0 ? 1 : 1 + prefixLength(this.skipBits);
+            }
+
+            private void setOffset(long o) {
                 this.offset = o;
             }
 
             private int size(int ptrSize, int valueSize) {
-                return bitmask.length + layers.size() * ptrSize + values.size() * valueSize;
+                if (this.collapsed) {
+                    return 0;
+                }
+                return prefixSize() + bitmask.length + layers.size() * ptrSize + numValues * valueSize;
             }
         
-            private void dump(ByteBuffer buffer, int ptrSize) {
+            /**
+             *  @param ptrBase offset pointers are counted from
+             */
+            private void dump(ByteBuffer buffer, int ptrSize, long ptrBase, Values values) {
+                if (this.prefixed) {
+                    buffer.put((byte) this.skip);
+                    if (this.skip != 0) {
+                        Values.putBytes(buffer, this.skipDigits, prefixLength(this.skipBits));
+                    }
+                }
                 buffer.put(this.bitmask);
                 if (!this.layers.isEmpty()) {
                     for (LayerData l : this.layers) {
-                        buffer.put(LONG_CODECS[ptrSize - 1].dump(l.offset));
+                        Values.putBytes(buffer, l.target().offset - ptrBase, ptrSize);
                     }
                 } else {
-                    for (byte[] v : this.values) {
-                        buffer.put(v);
+                    for (int i = 0; i < this.numValues; i++) {
+                        values.put(buffer, this.firstValue + i);
                     }
                 }
             }
         }
     }
 
+    /**
+     *  Decoded header, it occupies at most MAX_HEADER_SIZE bytes
+     */
+    static final class Header {
+        static final int MAX_HEADER_SIZE = HEADER_SIZE + 1 + 2 * NUM_LEVELS_MASK;
+
+        final int numLevels;
+        final BitmaskSize bitmaskSize;
+        final int ptrSize;
+        final ValueSize valueSize;
+        final int rootOffset;
+        // indexed by level, 0 is the lowest level
+        final BitmaskSize[] levelBitmaskSizes;
+        final int[] levelShifts;
+        final int[] levelMasks;
+        final int[] levelBitmaskLengths;
+        final int[] levelPtrSizes;
+        final int keyBits;
+        final boolean pathCompression;
+        final boolean relativePointers;
+        // tiny tables have no levels
+        final boolean tiny;
+
+        Header(byte[] data, int offset) {
+            short header = ByteUtils.bytesToShort(data, offset);
+            this.tiny = TinyTable.isTiny(header);
+            this.numLevels = this.tiny ? 0 : ((header >>> NUM_LEVELS_OFFSET) & NUM_LEVELS_MASK);
+            this.bitmaskSize = this.tiny ? null : BitmaskSize.decode((header >>> BITMASK_SIZE_OFFSET) & BITMASK_SIZE_MASK);
+            this.ptrSize = this.tiny ? 0 : ((header >>> PTR_SIZE_OFFSET) & PTR_SIZE_MASK | ((header >>> PTR_SIZE_HIGH_OFFSET) & 1) << 2) + 1;
+            this.valueSize = ValueSize.decode((header >>> VALUE_SIZE_OFFSET) & VALUE_SIZE_MASK);
+
+            this.levelBitmaskSizes = new BitmaskSize[this.numLevels];
+            Arrays.fill(this.levelBitmaskSizes, this.bitmaskSize);
+            this.levelPtrSizes = new int[this.numLevels];
+            Arrays.fill(this.levelPtrSizes, this.ptrSize);
+            int headerSize = HEADER_SIZE;
+            int flags = 0;
+            if (!this.tiny && ((header >>> EXTENDED_HEADER_OFFSET) & EXTENDED_HEADER_MASK) != 0) {
+                flags = data[offset + headerSize++];
+                if ((flags & LEVEL_BITMASK_SIZES_FLAG) != 0) {
+                    for (int l = this.numLevels - 1; l >= 0; l--) {
+                        this.levelBitmaskSizes[l] = BitmaskSize.decode(data[offset + headerSize++]);
+                    }
+                }
+                if ((flags & RELATIVE_POINTERS_FLAG) != 0) {
+                    for (int l = this.numLevels - 1; l > 0; l--) {
+                        this.levelPtrSizes[l] = data[offset + headerSize++];
+                    }
+                }
+            }
+            this.rootOffset = headerSize;
+            this.pathCompression = (flags & PATH_COMPRESSION_FLAG) != 0;
+            this.relativePointers = (flags & RELATIVE_POINTERS_FLAG) != 0;
+
+            this.levelShifts = new int[this.numLevels];
+            this.levelMasks = new int[this.numLevels];
+            this.levelBitmaskLengths = new int[this.numLevels];
+            int shift = 0;
+            for (int l = 0; l < this.numLevels; l++) {
+                this.levelShifts[l] = shift;
+                this.levelMasks[l] = this.levelBitmaskSizes[l].shiftMask;
+                this.levelBitmaskLengths[l] = this.levelBitmaskSizes[l].size;
+                shift += this.levelBitmaskSizes[l].shiftBits;
+            }
+            this.keyBits = shift;
+        }
+
+        /**
+         *  @return number of key bits skipped by a node
+         *      which is referenced from the level above the given one
+         */
+        int skipBits(int level, int skip) {
+            return this.levelShifts[level] + this.levelBitmaskSizes[level].shiftBits - this.levelShifts[level - skip + 1];
+        }
+    }
+
     public static final class Reader extends HashTable.Reader {
+        private final Header header;
         private final int numLevels;
         private final BitmaskSize bitmaskSize;
         private final int ptrSize;
         private final ValueSize valueSize;
+        private final int rootOffset;
+        // indexed by level, 0 is the lowest level
+        private final BitmaskSize[] levelBitmaskSizes;
+        private final int[] levelShifts;
+        private final int[] levelMasks;
+        private final int[] levelBitmaskLengths;
+        private final int[] levelPtrSizes;
+        private final int keyBits;
+        private final boolean pathCompression;
+        private final boolean relativePointers;
+        private final boolean tiny;
+        private int jumpTableBudget;
+        private volatile JumpTable jumpTable;
+
+        // largest jump table has 2^MAX_JUMP_BITS entries
+        public static final int MAX_JUMP_BITS = 24;
+        private static final JumpTable NO_JUMP_TABLE = new JumpTable(null, 0, 0);
 
         public Reader(byte[] data) {
             this(data, 0, data.length);
@@ -260,128 +945,634 @@ public class TrieHashTable extends HashTable {
 
         public Reader(byte[] data, int offset, int length) {
             super(data, offset, length);
-            short header = ByteUtils.bytesToShort(data, offset);
-            this.numLevels = ((header >>> NUM_LEVELS_OFFSET) & NUM_LEVELS_MASK);
-            this.bitmaskSize = BitmaskSize.decode((header >>> BITMASK_SIZE_OFFSET) & BITMASK_SIZE_MASK);
-            this.ptrSize = ((header >>> PTR_SIZE_OFFSET) & PTR_SIZE_MASK) + 1;
-            this.valueSize = ValueSize.decode((header >>> VALUE_SIZE_OFFSET) & VALUE_SIZE_MASK);
+            this.header = new Header(data, offset);
+            this.numLevels = header.numLevels;
+            this.bitmaskSize = header.bitmaskSize;
+            this.ptrSize = header.ptrSize;
+            this.valueSize = header.valueSize;
+            this.rootOffset = header.rootOffset;
+            this.levelBitmaskSizes = header.levelBitmaskSizes;
+            this.levelShifts = header.levelShifts;
+            this.levelMasks = header.levelMasks;
+            this.levelBitmaskLengths = header.levelBitmaskLengths;
+            this.levelPtrSizes = header.levelPtrSizes;
+            this.keyBits = header.keyBits;
+            this.pathCompression = header.pathCompression;
+            this.relativePointers = header.relativePointers;
+            this.tiny = header.tiny;
         }
 
+        /**
+         *  @return 0 for tiny tables
+         */
         public int numLevels() {
             return numLevels;
         }
 
+        /**
+         *  @return bitmask size of the root level
+         */
         public BitmaskSize bitmaskSize() {
             return bitmaskSize;
         }
 
+        /**
+         *  @param level 0 for the lowest level holding values
+         */
+        public BitmaskSize bitmaskSize(int level) {
+            return levelBitmaskSizes[level];
+        }
+
+        /**
+         *  @return the largest pointer size
+         */
         public int ptrSize() {
             return ptrSize;
         }
 
+        /**
+         *  @param level level of the nodes holding the pointers, above 0
+         */
+        public int ptrSize(int level) {
+            return levelPtrSizes[level];
+        }
+
+        public boolean pathCompression() {
+            return pathCompression;
+        }
+
+        public boolean relativePointers() {
+            return relativePointers;
+        }
+
+        /**
+         *  Lookups of long-lived tables can skip the top levels using a table
+         *  of node offsets indexed by the highest key bits. The jump table is
+         *  built on the first lookup and covers as many top levels as fit
+         *  into the budget, all levels except the lowest one at most.
+         *  Tables with path compression are always walked from the root.
+         *
+         *  @param maxBytes memory for the jump table, 0 disables it
+         */
+        public void setJumpTableBudget(int maxBytes) {
+            assert maxBytes >= 0;
+            this.jumpTableBudget = maxBytes;
+            this.jumpTable = null;
+        }
+
+        public int jumpTableBudget() {
+            return jumpTableBudget;
+        }
+
+        /**
+         *  @return number of key bits resolved by the jump table, 0 when there is none
+         */
+        public int jumpBits() {
+            if (this.jumpTableBudget == 0) {
+                return 0;
+            }
+            JumpTable jumpTable = jumpTable();
+            return jumpTable.offsets == null ? 0 : this.keyBits - jumpTable.shift;
+        }
+
         @Override
         public ValueSize valueSize() {
             return valueSize;
         }
 
         @Override
-        public final int getValueOffset(long key) {
-            if (
-                this.numLevels * this.bitmaskSize.shiftBits < 64
-                && key >>> (this.numLevels * this.bitmaskSize.shiftBits) > 0
-            ) {
+        public int getValueOffset(long key) {
+            return lookup(key);
+        }
+
+        @Override
+        final int findValueOffset(long key, Probe probe) {
+            if (this.tiny) {
+                return TinyTable.getValueOffset(this.data, this.offset, key, probe);
+            }
+            if (this.keyBits < 64 && key >>> this.keyBits > 0) {
                 return NOT_FOUND_OFFSET;
             }
 
-            int layerOffset = HEADER_SIZE;
+            int layerOffset = this.rootOffset;
+            int topLevel = numLevels - 1;
+            if (this.jumpTableBudget != 0) {
+                JumpTable jumpTable = jumpTable();
+                if (jumpTable.offsets != null) {
+                    if (probe != null) {
+                        probe.probes++;
+                    }
+                    topLevel = jumpTable.level;
+                    layerOffset = jumpTable.offsets[(int) (key >>> jumpTable.shift)];
+                    if (layerOffset == 0) {
+                        return NOT_FOUND_OFFSET;
+                    }
+                }
+            }
             int ptrIx = 0;
-            byte[] bitmask = new byte[this.bitmaskSize.size];
-            byte[] ptrBytes = new byte[this.ptrSize];
-            LongCodec ptrCodec = LONG_CODECS[this.ptrSize - 1];
-            for (int level = numLevels - 1; level >= 0; level--) {
-                long k = key >>> (level * this.bitmaskSize.shiftBits) & this.bitmaskSize.shiftMask;
-                int nByte = (int) (k >>> 3);
-                int nBit = (int) (k & 0b0000_0111);
-                if ((this.data[this.offset + layerOffset + nByte] & (1 << nBit)) == 0) {
+            int bitmaskLength = 0;
+            for (int level = topLevel; level >= 0; level--) {
+                if (probe != null) {
+                    probe.levels++;
+                    probe.probes++;
+                }
+                int nodeOffset = layerOffset;
+                if (this.pathCompression) {
+                    int skip = this.data[this.offset + layerOffset++];
+                    if (skip != 0) {
+                        int skipBits = this.header.skipBits(level, skip);
+                        int prefixLength = prefixLength(skipBits);
+                        level -= skip;
+                        long digits = key >>> this.levelShifts[level + 1];
+                        if (skipBits < 64) {
+                            digits &= (1L << skipBits) - 1;
+                        }
+                        if (ByteUtils.load(this.data, this.offset + layerOffset, prefixLength) != digits) {
+                            return NOT_FOUND_OFFSET;
+                        }
+                        layerOffset += prefixLength;
+                    }
+                }
+                bitmaskLength = this.levelBitmaskLengths[level];
+                int k = (int) (key >>> this.levelShifts[level]) & this.levelMasks[level];
+                long bitmask = ByteUtils.load(this.data, this.offset + layerOffset, bitmaskLength);
+                if ((bitmask >>> k & 1) == 0) {
                     return NOT_FOUND_OFFSET;
                 }
-                ptrIx = BIT_COUNTERS[nByte].count(this.data, this.offset + layerOffset, nByte, nBit);
+                ptrIx = Long.bitCount(bitmask & ((1L << k) - 1));
                 if (level != 0) {
-                    int ptrOffset = offset + layerOffset + bitmask.length + ptrIx * this.ptrSize;
-                    layerOffset = (int) ptrCodec.load(this.data, ptrOffset);
+                    layerOffset = childOffset(nodeOffset, layerOffset + bitmaskLength, level, ptrIx);
                 }
             }
-            return offset + layerOffset + bitmask.length + ptrIx * this.valueSize.size;
+            return offset + layerOffset + bitmaskLength + ptrIx * this.valueSize.size;
         }
 
-        private static final BitCounter DEFAULT_BIT_COUNTER = new BitCounter();
-        private static final BitCounter[] BIT_COUNTERS = new BitCounter[] {
-            new BitCounter() {
-                @Override
-                int count(byte[] bytes, int offset, int nByte, int nBit) {
-                    return BIT_COUNTS[bytes[offset] & BIT_COUNT_MASKS[nBit]];
+        /**
+         *  @param nodeOffset start of the node, relative pointers are counted from it
+         *  @param ptrsOffset offset of the first pointer of the node
+         */
+        private int childOffset(int nodeOffset, int ptrsOffset, int level, int ix) {
+            int ptrSize = this.levelPtrSizes[level];
+            int ptr = (int) ByteUtils.load(this.data, this.offset + ptrsOffset + ix * ptrSize, ptrSize);
+            return this.relativePointers ? nodeOffset + ptr : ptr;
+        }
+
+        /**
+         *  Offsets of the nodes at the given level indexed by key >>> shift,
+         *  0 for missing nodes as no node starts at the header
+         */
+        private static final class JumpTable {
+            final int[] offsets;
+            final int level;
+            final int shift;
+
+            JumpTable(int[] offsets, int level, int shift) {
+                this.offsets = offsets;
+                this.level = level;
+                this.shift = shift;
+            }
+        }
+
+        private JumpTable jumpTable() {
+            JumpTable jumpTable = this.jumpTable;
+            if (jumpTable == null) {
+                // concurrent lookups may build it twice, both tables are the same
+                jumpTable = buildJumpTable();
+                this.jumpTable = jumpTable;
+            }
+            return jumpTable;
+        }
+
+        private JumpTable buildJumpTable() {
+            if (this.length == 0 || this.tiny || this.pathCompression) {
+                return NO_JUMP_TABLE;
+            }
+            int jumpLevel = -1;
+            for (int level = this.numLevels - 2; level >= 0; level--) {
+                // digits of the levels above select the node
+                int bits = this.keyBits - this.levelShifts[level + 1];
+                if (bits > MAX_JUMP_BITS || (4L << bits) > this.jumpTableBudget) {
+                    break;
                 }
-            },
-            new BitCounter() {
-                @Override
-                int count(byte[] bytes, int offset, int nByte, int nBit) {
-                    return
-                        BIT_COUNTS[bytes[offset] & 0xff] +
-                        BIT_COUNTS[bytes[offset + 1] & BIT_COUNT_MASKS[nBit]];
+                jumpLevel = level;
+            }
+            if (jumpLevel < 0) {
+                return NO_JUMP_TABLE;
+            }
+            int shift = this.levelShifts[jumpLevel + 1];
+            int[] offsets = new int[1 << (this.keyBits - shift)];
+            fillJumpTable(offsets, this.rootOffset, this.numLevels - 1, jumpLevel, 0L);
+            return new JumpTable(offsets, jumpLevel, shift);
+        }
+
+        private void fillJumpTable(int[] offsets, int layerOffset, int level, int jumpLevel, long prefix) {
+            if (level == jumpLevel) {
+                offsets[(int) prefix] = layerOffset;
+                return;
+            }
+            int bitmaskLength = this.levelBitmaskLengths[level];
+            int ix = 0;
+            for (int k = 0; k < bitmaskLength * 8; k++) {
+                if ((this.data[this.offset + layerOffset + (k >>> 3)] & (1 << (k & 0b0000_0111))) == 0) {
+                    continue;
+                }
+                int childOffset = childOffset(layerOffset, layerOffset + bitmaskLength, level, ix);
+                fillJumpTable(offsets, childOffset, level - 1, jumpLevel, (prefix << this.levelBitmaskSizes[level].shiftBits) | k);
+                ix++;
+            }
+        }
+
+        /**
+         *  Visits entries in ascending key order
+         */
+        @Override
+        public void forEach(EntryVisitor visitor) {
+            if (this.length == 0) {
+                return;
+            }
+            if (this.tiny) {
+                TinyTable.forEach(this.data, this.offset, visitor);
+                return;
+            }
+            forEachEntry(this.rootOffset, this.numLevels - 1, 0L, visitor);
+        }
+
+        private void forEachEntry(int layerOffset, int level, long prefix, EntryVisitor visitor) {
+            int nodeOffset = layerOffset;
+            if (this.pathCompression) {
+                int skip = this.data[this.offset + layerOffset++];
+                if (skip != 0) {
+                    int skipBits = this.header.skipBits(level, skip);
+                    int prefixLength = prefixLength(skipBits);
+                    long digits = ByteUtils.load(this.data, this.offset + layerOffset, prefixLength);
+                    prefix = skipBits < 64 ? (prefix << skipBits) | digits : digits;
+                    layerOffset += prefixLength;
+                    level -= skip;
+                }
+            }
+            int bitmaskLength = this.levelBitmaskLengths[level];
+            int ix = 0;
+            for (int k = 0; k < bitmaskLength * 8; k++) {
+                if ((this.data[this.offset + layerOffset + (k >>> 3)] & (1 << (k & 0b0000_0111))) == 0) {
+                    continue;
+                }
+                long key = (prefix << this.levelBitmaskSizes[level].shiftBits) | k;
+                if (level == 0) {
+                    visitor.visit(key, this.offset + layerOffset + bitmaskLength + ix * this.valueSize.size);
+                } else {
+                    forEachEntry(childOffset(nodeOffset, layerOffset + bitmaskLength, level, ix), level - 1, key, visitor);
                 }
-            },
-            new BitCounter() {
+                ix++;
+            }
+        }
+
+        interface NodeVisitor {
+            /**
+             *  @param level 0 for the lowest level holding values
+             *  @param numChildren number of set bits in the node bitmask
+             *  @param prefixLength number of path compression bytes before the bitmask
+             */
+            void visit(int level, int layerOffset, int numChildren, int prefixLength);
+        }
+
+        void forEachNode(NodeVisitor visitor) {
+            if (this.length == 0 || this.tiny) {
+                return;
+            }
+            forEachNode(this.rootOffset, this.numLevels - 1, visitor);
+        }
+
+        private void forEachNode(int layerOffset, int level, NodeVisitor visitor) {
+            int prefixLength = 0;
+            if (this.pathCompression) {
+                int skip = this.data[this.offset + layerOffset];
+                prefixLength = skip == 0 ? 1 : 1 + prefixLength(this.header.skipBits(level, skip));
+                level -= skip;
+            }
+            int bitmaskOffset = layerOffset + prefixLength;
+            int bitmaskLength = this.levelBitmaskLengths[level];
+            int numChildren = 0;
+            for (int i = 0; i < bitmaskLength; i++) {
+                numChildren += Integer.bitCount(this.data[this.offset + bitmaskOffset + i] & 0xff);
+            }
+            visitor.visit(level, layerOffset, numChildren, prefixLength);
+            if (level == 0) {
+                return;
+            }
+            for (int ix = 0; ix < numChildren; ix++) {
+                forEachNode(childOffset(layerOffset, bitmaskOffset + bitmaskLength, level, ix), level - 1, visitor);
+            }
+        }
+
+    }
+
+    /**
+     *  Walks two tables together combining node bitmasks
+     *
+     *  The lowest levels of both tables must have the same bitmask sizes.
+     *  Keys of the shorter table have zero digits at the extra levels
+     *  of the taller one, so they are joined with its lowest zero subtree.
+     */
+    static final class Join {
+        private final Reader a;
+        private final Reader b;
+        private final KeySets.Operation operation;
+        private final KeySets.JoinVisitor visitor;
+        private final EntryVisitor onlyA;
+        private final EntryVisitor onlyB;
+
+        Join(Reader a, Reader b, KeySets.Operation operation, final KeySets.JoinVisitor visitor) {
+            this.a = a;
+            this.b = b;
+            this.operation = operation;
+            this.visitor = visitor;
+            this.onlyA = new EntryVisitor() {
                 @Override
-                int count(byte[] bytes, int offset, int nByte, int nBit) {
-                    return
-                        BIT_COUNTS[bytes[offset] & 0xff] +
-                        BIT_COUNTS[bytes[offset + 1] & 0xff] +
-                        BIT_COUNTS[bytes[offset + 2] & BIT_COUNT_MASKS[nBit]];
-                }
-            },
-            new BitCounter() {
+                public void visit(long key, int valueOffset) {
+                    visitor.visit(key, valueOffset, Reader.NOT_FOUND_OFFSET);
+                }
+            };
+            this.onlyB = new EntryVisitor() {
                 @Override
-                int count(byte[] bytes, int offset, int nByte, int nBit) {
-                    return
-                        BIT_COUNTS[bytes[offset] & 0xff] +
-                        BIT_COUNTS[bytes[offset + 1] & 0xff] +
-                        BIT_COUNTS[bytes[offset + 2] & 0xff] +
-                        BIT_COUNTS[bytes[offset + 3] & BIT_COUNT_MASKS[nBit]];
-                }
-            },
-            DEFAULT_BIT_COUNTER,
-            DEFAULT_BIT_COUNTER,
-            DEFAULT_BIT_COUNTER,
-            DEFAULT_BIT_COUNTER,
-        };
-
-        static class BitCounter {
-            protected static byte[] BIT_COUNT_MASKS = new byte[]{
-                0b0000_0000,
-                0b0000_0001,
-                0b0000_0011,
-                0b0000_0111,
-                0b0000_1111,
-                0b0001_1111,
-                0b0011_1111,
-                0b0111_1111
+                public void visit(long key, int valueOffset) {
+                    visitor.visit(key, Reader.NOT_FOUND_OFFSET, valueOffset);
+                }
             };
-            protected static byte[] BIT_COUNTS = new byte[256];
-            static {
-                for (int i = 0; i <= 255; i++) {
-                    BIT_COUNTS[i] = (byte) Integer.bitCount(i);
+        }
+
+        boolean canJoin() {
+            if (a.length == 0 || b.length == 0 || a.tiny || b.tiny || a.pathCompression || b.pathCompression) {
+                return false;
+            }
+            int numLevels = Math.min(a.numLevels, b.numLevels);
+            for (int level = 0; level < numLevels; level++) {
+                if (a.levelBitmaskSizes[level] != b.levelBitmaskSizes[level]) {
+                    return false;
                 }
             }
+            return true;
+        }
+
+        void run() {
+            if (a.numLevels > b.numLevels) {
+                joinTop(a, a.rootOffset, a.numLevels - 1, b);
+            } else if (b.numLevels > a.numLevels) {
+                joinTop(b, b.rootOffset, b.numLevels - 1, a);
+            } else {
+                joinNodes(a.rootOffset, b.rootOffset, a.numLevels - 1, 0L);
+            }
+        }
+
+        /**
+         *  @return true when keys present in this table only are visited
+         */
+        private boolean visitsOnly(Reader reader) {
+            return operation == KeySets.Operation.UNION || (operation == KeySets.Operation.DIFFERENCE && reader == a);
+        }
 
-            int count(byte[] bytes, int offset, int nByte, int nBit) {
-                int count = BIT_COUNTS[bytes[offset + nByte] & BIT_COUNT_MASKS[nBit]];
-                for (int byteIx = nByte - 1; byteIx >= 0; byteIx--) {
-                    int b = bytes[offset + byteIx] & 0xff;
-                    count += BIT_COUNTS[b];
+        /**
+         *  Joins a node of the taller table lying on the path of zero digits
+         */
+        private void joinTop(Reader taller, int layerOffset, int level, Reader shorter) {
+            long bitmask = bitmask(taller, layerOffset, level);
+            if ((bitmask & 1) != 0) {
+                int childOffset = childOffset(taller, layerOffset, level, 0);
+                if (level - 1 > shorter.numLevels - 1) {
+                    joinTop(taller, childOffset, level - 1, shorter);
+                } else if (taller == a) {
+                    joinNodes(childOffset, b.rootOffset, level - 1, 0L);
+                } else {
+                    joinNodes(a.rootOffset, childOffset, level - 1, 0L);
                 }
-                return count;
+            } else if (visitsOnly(shorter)) {
+                shorter.forEachEntry(shorter.rootOffset, shorter.numLevels - 1, 0L, shorter == a ? onlyA : onlyB);
+            }
+            if (!visitsOnly(taller)) {
+                return;
+            }
+            int ix = (int) (bitmask & 1);
+            for (bitmask &= ~1L; bitmask != 0; ix++) {
+                int k = Long.numberOfTrailingZeros(bitmask);
+                bitmask &= bitmask - 1;
+                taller.forEachEntry(childOffset(taller, layerOffset, level, ix), level - 1, k, taller == a ? onlyA : onlyB);
             }
         }
 
+        private void joinNodes(int layerOffsetA, int layerOffsetB, int level, long prefix) {
+            long bitmaskA = bitmask(a, layerOffsetA, level);
+            long bitmaskB = bitmask(b, layerOffsetB, level);
+            long bitmask;
+            if (operation == KeySets.Operation.INTERSECTION) {
+                bitmask = bitmaskA & bitmaskB;
+            } else if (operation == KeySets.Operation.UNION) {
+                bitmask = bitmaskA | bitmaskB;
+            } else {
+                bitmask = bitmaskA;
+            }
+            int shiftBits = a.levelBitmaskSizes[level].shiftBits;
+            while (bitmask != 0) {
+                int k = Long.numberOfTrailingZeros(bitmask);
+                bitmask &= bitmask - 1;
+                long lowerBits = (1L << k) - 1;
+                boolean inA = (bitmaskA >>> k & 1) != 0;
+                boolean inB = (bitmaskB >>> k & 1) != 0;
+                int ixA = Long.bitCount(bitmaskA & lowerBits);
+                int ixB = Long.bitCount(bitmaskB & lowerBits);
+                long key = (prefix << shiftBits) | k;
+                if (level == 0) {
+                    if (operation == KeySets.Operation.DIFFERENCE && inB) {
+                        continue;
+                    }
+                    visitor.visit(key,
+                                  inA ? valueOffset(a, layerOffsetA, ixA) : Reader.NOT_FOUND_OFFSET,
+                                  inB ? valueOffset(b, layerOffsetB, ixB) : Reader.NOT_FOUND_OFFSET);
+                } else if (inA && inB) {
+                    joinNodes(childOffset(a, layerOffsetA, level, ixA), childOffset(b, layerOffsetB, level, ixB), level - 1, key);
+                } else if (inA) {
+                    a.forEachEntry(childOffset(a, layerOffsetA, level, ixA), level - 1, key, onlyA);
+                } else {
+                    b.forEachEntry(childOffset(b, layerOffsetB, level, ixB), level - 1, key, onlyB);
+                }
+            }
+        }
+
+        private static long bitmask(Reader reader, int layerOffset, int level) {
+            return ByteUtils.load(reader.data, reader.offset + layerOffset, reader.levelBitmaskLengths[level]);
+        }
+
+        private static int childOffset(Reader reader, int layerOffset, int level, int ix) {
+            return reader.childOffset(layerOffset, layerOffset + reader.levelBitmaskLengths[level], level, ix);
+        }
+
+        private static int valueOffset(Reader reader, int layerOffset, int ix) {
+            return reader.offset + layerOffset + reader.levelBitmaskLengths[0] + ix * reader.valueSize.size;
+        }
+    }
+
+    /**
+     *  Reader of tables larger than 2 GB, usually memory mapped
+     */
+    public static final class LargeReader extends HashTable.LargeReader {
+        private final Header header;
+
+        public LargeReader(SegmentedBytes data) {
+            this(data, 0, data.length());
+        }
+
+        public LargeReader(SegmentedBytes data, long offset, long length) {
+            super(data, offset, length);
+            byte[] headerData = new byte[(int) Math.min(length, Header.MAX_HEADER_SIZE)];
+            data.get(offset, headerData, 0, headerData.length);
+            this.header = new Header(headerData, 0);
+        }
+
+        public int numLevels() {
+            return header.numLevels;
+        }
+
+        public int ptrSize() {
+            return header.ptrSize;
+        }
+
+        public boolean relativePointers() {
+            return header.relativePointers;
+        }
+
+        @Override
+        public ValueSize valueSize() {
+            return header.valueSize;
+        }
+
+        @Override
+        public long getValueOffset(long key) {
+            Header header = this.header;
+            if (header.tiny) {
+                return TinyTable.getValueOffset(this.data, this.offset, key);
+            }
+            if (header.keyBits < 64 && key >>> header.keyBits > 0) {
+                return NOT_FOUND_OFFSET;
+            }
+
+            long layerOffset = this.offset + header.rootOffset;
+            int ptrIx = 0;
+            int bitmaskLength = 0;
+            for (int level = header.numLevels - 1; level >= 0; level--) {
+                long nodeOffset = layerOffset;
+                if (header.pathCompression) {
+                    int skip = this.data.get(layerOffset++);
+                    if (skip != 0) {
+                        int skipBits = header.skipBits(level, skip);
+                        int prefixLength = prefixLength(skipBits);
+                        level -= skip;
+                        long digits = key >>> header.levelShifts[level + 1];
+                        if (skipBits < 64) {
+                            digits &= (1L << skipBits) - 1;
+                        }
+                        if (this.data.load(layerOffset, prefixLength) != digits) {
+                            return NOT_FOUND_OFFSET;
+                        }
+                        layerOffset += prefixLength;
+                    }
+                }
+                bitmaskLength = header.levelBitmaskLengths[level];
+                int k = (int) (key >>> header.levelShifts[level]) & header.levelMasks[level];
+                long bitmask = this.data.load(layerOffset, bitmaskLength);
+                if ((bitmask >>> k & 1) == 0) {
+                    return NOT_FOUND_OFFSET;
+                }
+                ptrIx = Long.bitCount(bitmask & ((1L << k) - 1));
+                if (level != 0) {
+                    int ptrSize = header.levelPtrSizes[level];
+                    long ptr = this.data.load(layerOffset + bitmaskLength + (long) ptrIx * ptrSize, ptrSize);
+                    layerOffset = (header.relativePointers ? nodeOffset : this.offset) + ptr;
+                }
+            }
+            return layerOffset + bitmaskLength + (long) ptrIx * header.valueSize.size;
+        }
+    }
+
+    /**
+     *  @return number of bytes holding skipped key digits
+     */
+    private static int prefixLength(int skipBits) {
+        return Math.min(8, (skipBits + 7) >>> 3);
+    }
+
+    /**
+     *  Looks up one key in many tables without creating a reader per table.
+     *  Key digits are computed once for every bitmask size.
+     *  Tables with extended header fall back to a reader.
+     *  Tiny tables are scanned.
+     */
+    public static final class MultiReader extends HashTable.MultiReader {
+        @Override
+        protected HashTable.MultiReader.Lookup prepare(long key) {
+            return new KeyLookup(key);
+        }
+    }
+
+    private static final class KeyLookup extends HashTable.MultiReader.Lookup {
+        // indexed by encoded bitmask size
+        private final int[][] digits = new int[BitmaskSize.values().length][NUM_LEVELS_MASK + 1];
+        private final int[] minLevels = new int[BitmaskSize.values().length];
+        private final long key;
+
+        KeyLookup(long key) {
+            this.key = key;
+            for (BitmaskSize bitmaskSize : BitmaskSize.values()) {
+                int[] keyDigits = this.digits[bitmaskSize.encode()];
+                int levels = 1;
+                for (int level = 0; level < keyDigits.length; level++) {
+                    int shift = level * bitmaskSize.shiftBits;
+                    if (shift >= 64) {
+                        break;
+                    }
+                    keyDigits[level] = (int) (key >>> shift & bitmaskSize.shiftMask);
+                    if (key >>> shift != 0) {
+                        levels = level + 1;
+                    }
+                }
+                this.minLevels[bitmaskSize.encode()] = levels;
+            }
+        }
+
+        @Override
+        public int getValueOffset(byte[] data, int offset, int length) {
+            if (length == 0) {
+                return Reader.NOT_FOUND_OFFSET;
+            }
+            short header = ByteUtils.bytesToShort(data, offset);
+            if (TinyTable.isTiny(header)) {
+                return TinyTable.getValueOffset(data, offset, this.key, null);
+            }
+            if (((header >>> EXTENDED_HEADER_OFFSET) & EXTENDED_HEADER_MASK) != 0) {
+                return new Reader(data, offset, length).findValueOffset(this.key, null);
+            }
+            int numLevels = (header >>> NUM_LEVELS_OFFSET) & NUM_LEVELS_MASK;
+            int encodedBitmaskSize = (header >>> BITMASK_SIZE_OFFSET) & BITMASK_SIZE_MASK;
+            if (numLevels < this.minLevels[encodedBitmaskSize]) {
+                return Reader.NOT_FOUND_OFFSET;
+            }
+            int[] keyDigits = this.digits[encodedBitmaskSize];
+            int bitmaskLength = 1 << encodedBitmaskSize;
+            int ptrSize = ((header >>> PTR_SIZE_OFFSET) & PTR_SIZE_MASK) + 1;
+            int valueSize = 1 << ((header >>> VALUE_SIZE_OFFSET) & VALUE_SIZE_MASK);
+
+            int layerOffset = HEADER_SIZE;
+            int ptrIx = 0;
+            for (int level = numLevels - 1; level >= 0; level--) {
+                int k = keyDigits[level];
+                long bitmask = ByteUtils.load(data, offset + layerOffset, bitmaskLength);
+                if ((bitmask >>> k & 1) == 0) {
+                    return Reader.NOT_FOUND_OFFSET;
+                }
+                ptrIx = Long.bitCount(bitmask & ((1L << k) - 1));
+                if (level != 0) {
+                    int ptrOffset = offset + layerOffset + bitmaskLength + ptrIx * ptrSize;
+                    layerOffset = (int) ByteUtils.load(data, ptrOffset, ptrSize);
+                }
+            }
+            return offset + layerOffset + bitmaskLength + ptrIx * valueSize;
+        }
     }
 }
@@ -0,0 +1,559 @@
+package net.uaprom.htable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import net.uaprom.htable.HashTable.FloatEncoding;
+import net.uaprom.htable.HashTable.Output;
+import net.uaprom.htable.HashTable.ValueSize;
+
+
+/**
+ *  Decodes values of tables written with a value encoding
+ *
+ *  Such tables have the encoded values flag set in the header
+ *  and end with the codec:
+ *
+ *  <Encoding:1b>[<Param>]<CodecSize:4b>
+ *
+ *  Codec size includes all the codec bytes, so readers find its start
+ *  from the end of the table.
+ */
+abstract class ValueCodec {
+    static final int ENCODED_VALUES_OFFSET = 2;
+    private static final int CODEC_SIZE_SIZE = 4;
+
+    private static final int FLOAT16 = 1;
+    private static final int BFLOAT16 = 2;
+    private static final int LINEAR = 3;
+    private static final int LOG = 4;
+    private static final int DICTIONARY = 5;
+
+    /**
+     *  @return size of values stored in the table
+     */
+    abstract ValueSize storedSize();
+
+    /**
+     *  @return size of decoded values
+     */
+    abstract ValueSize valueSize();
+
+    /**
+     *  @return bits of the decoded value
+     */
+    abstract long decode(long stored);
+
+    float decodeFloat(long stored) {
+        assert valueSize() == ValueSize.INT;
+        return Float.intBitsToFloat((int) decode(stored));
+    }
+
+    FloatEncoding floatEncoding() {
+        return null;
+    }
+
+    /**
+     *  @return number of distinct values of a dictionary, 0 for other codecs
+     */
+    int dictionarySize() {
+        return 0;
+    }
+
+    abstract int paramsSize();
+
+    abstract void dumpParams(Output output) throws IOException;
+
+    int size() {
+        return 1 + paramsSize() + CODEC_SIZE_SIZE;
+    }
+
+    void dump(Output output) throws IOException {
+        output.reserve(1).put((byte) encoding());
+        dumpParams(output);
+        output.reserve(CODEC_SIZE_SIZE).putInt(size());
+    }
+
+    static boolean isEncoded(short header) {
+        return (header >>> ENCODED_VALUES_OFFSET & 1) != 0;
+    }
+
+    static boolean isEncoded(byte[] data, int offset, int length) {
+        return length > 0 && isEncoded(ByteUtils.bytesToShort(data, offset));
+    }
+
+    /**
+     *  @return length of the table without the codec
+     */
+    static int tableLength(byte[] data, int offset, int length) {
+        if (!isEncoded(data, offset, length)) {
+            return length;
+        }
+        return length - ByteUtils.bytesToInt(data, offset + length - CODEC_SIZE_SIZE);
+    }
+
+    static long tableLength(SegmentedBytes data, long offset, long length) {
+        if (length == 0 || !isEncoded((short) data.load(offset, 2))) {
+            return length;
+        }
+        return length - data.load(offset + length - CODEC_SIZE_SIZE, CODEC_SIZE_SIZE);
+    }
+
+    /**
+     *  @return codec ending an encoded table
+     */
+    static ValueCodec read(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int size = ByteUtils.bytesToInt(data, end - CODEC_SIZE_SIZE);
+        int codecOffset = end - size;
+        int encoding = data[codecOffset];
+        int paramsOffset = codecOffset + 1;
+        switch (encoding) {
+        case FLOAT16:
+            return HALF_FLOAT;
+        case BFLOAT16:
+            return BRAIN_FLOAT;
+        case LINEAR:
+        case LOG:
+            return new Quantized(encoding == LOG, data[paramsOffset],
+                                 ByteUtils.bytesToDouble(data, paramsOffset + 1),
+                                 ByteUtils.bytesToDouble(data, paramsOffset + 9));
+        case DICTIONARY:
+            return new Dictionary(ValueSize.get(data[paramsOffset]), ByteUtils.bytesToInt(data, paramsOffset + 1),
+                                  data, paramsOffset + 5);
+        }
+        throw new IllegalArgumentException("Unknown value encoding: " + encoding);
+    }
+
+    static ValueCodec read(SegmentedBytes data, long offset, long length) {
+        long end = offset + length;
+        int size = (int) data.load(end - CODEC_SIZE_SIZE, CODEC_SIZE_SIZE);
+        byte[] codec = new byte[size];
+        data.get(end - size, codec, 0, size);
+        return read(codec, 0, size);
+    }
+
+    static FloatCodec forFloats(FloatEncoding encoding, float[] values) {
+        switch (encoding) {
+        case FLOAT16:
+            return HALF_FLOAT;
+        case BFLOAT16:
+            return BRAIN_FLOAT;
+        default:
+            boolean log = encoding == FloatEncoding.LOG8 || encoding == FloatEncoding.LOG16;
+            return Quantized.fit(log, encoding.valueSize.size * 8, values);
+        }
+    }
+
+    /**
+     *  Codec of float values, writers encode values with it
+     */
+    abstract static class FloatCodec extends ValueCodec {
+        /**
+         *  @return stored bits of a float value
+         */
+        abstract long encodeFloat(float value);
+
+        Values encodeFloats(float[] values) {
+            long[] stored = new long[values.length];
+            for (int i = 0; i < values.length; i++) {
+                stored[i] = encodeFloat(values[i]);
+            }
+            return new Values.Encoded(stored, this);
+        }
+    }
+
+    /**
+     *  Table followed by the codec
+     */
+    static final class EncodedTable implements HashTable.Dumpable {
+        private final HashTable.Dumpable table;
+        private final ValueCodec codec;
+
+        EncodedTable(HashTable.Dumpable table, ValueCodec codec) {
+            this.table = table;
+            this.codec = codec;
+        }
+
+        @Override
+        public void layout(int maxPtrSize) {
+            this.table.layout(maxPtrSize);
+        }
+
+        @Override
+        public long dumpSize() {
+            return this.table.dumpSize() + this.codec.size();
+        }
+
+        @Override
+        public void dump(Output output) throws IOException {
+            this.table.dump(output);
+            this.codec.dump(output);
+        }
+    }
+
+    abstract int encoding();
+
+    private static final FloatCodec HALF_FLOAT = new FloatCodec() {
+        @Override
+        ValueSize storedSize() {
+            return ValueSize.SHORT;
+        }
+
+        @Override
+        ValueSize valueSize() {
+            return ValueSize.INT;
+        }
+
+        @Override
+        long decode(long stored) {
+            return Float.floatToRawIntBits(halfToFloat((int) stored));
+        }
+
+        @Override
+        float decodeFloat(long stored) {
+            return halfToFloat((int) stored);
+        }
+
+        @Override
+        long encodeFloat(float value) {
+            return floatToHalf(value) & 0xffff;
+        }
+
+        @Override
+        FloatEncoding floatEncoding() {
+            return FloatEncoding.FLOAT16;
+        }
+
+        @Override
+        int encoding() {
+            return FLOAT16;
+        }
+
+        @Override
+        int paramsSize() {
+            return 0;
+        }
+
+        @Override
+        void dumpParams(Output output) {}
+    };
+
+    private static final FloatCodec BRAIN_FLOAT = new FloatCodec() {
+        @Override
+        ValueSize storedSize() {
+            return ValueSize.SHORT;
+        }
+
+        @Override
+        ValueSize valueSize() {
+            return ValueSize.INT;
+        }
+
+        @Override
+        long decode(long stored) {
+            return (stored & 0xffff) << 16;
+        }
+
+        @Override
+        long encodeFloat(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            if (Float.isNaN(value)) {
+                // keeps NaN a NaN after truncation
+                return (bits >>> 16) | 0x40;
+            }
+            // rounds half to even
+            return (bits + 0x7fff + ((bits >>> 16) & 1)) >>> 16;
+        }
+
+        @Override
+        FloatEncoding floatEncoding() {
+            return FloatEncoding.BFLOAT16;
+        }
+
+        @Override
+        int encoding() {
+            return BFLOAT16;
+        }
+
+        @Override
+        int paramsSize() {
+            return 0;
+        }
+
+        @Override
+        void dumpParams(Output output) {}
+    };
+
+    /**
+     *  Rounds to the nearest half precision float, ties to even
+     */
+    static short floatToHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7f_ffff;
+        if (exponent == 0xff) {
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int e = exponent - 127 + 15;
+        if (e >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        int shift;
+        int half;
+        if (e <= 0) {
+            if (e < -10) {
+                return (short) sign;
+            }
+            // subnormal, the implicit bit becomes explicit
+            mantissa |= 0x80_0000;
+            shift = 14 - e;
+            half = mantissa >>> shift;
+        } else {
+            shift = 13;
+            half = (e << 10) | (mantissa >>> shift);
+        }
+        int rest = mantissa & ((1 << shift) - 1);
+        int middle = 1 << (shift - 1);
+        if (rest > middle || (rest == middle && (half & 1) != 0)) {
+            // carries into the exponent, up to infinity
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    static float halfToFloat(int half) {
+        int sign = (half & 0x8000) << 16;
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f80_0000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            float subnormal = Math.scalb((float) mantissa, -24);
+            return sign != 0 ? -subnormal : subnormal;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    /**
+     *  Evenly spaced levels between the smallest and the largest value,
+     *  or evenly spaced in log(1 + value - min)
+     */
+    static final class Quantized extends FloatCodec {
+        private final boolean log;
+        private final int bits;
+        private final double min;
+        private final double scale;
+        private final long maxLevel;
+
+        Quantized(boolean log, int bits, double min, double scale) {
+            this.log = log;
+            this.bits = bits;
+            this.min = min;
+            this.scale = scale;
+            this.maxLevel = (1L << bits) - 1;
+        }
+
+        static Quantized fit(boolean log, int bits, float[] values) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (float value : values) {
+                if (Float.isNaN(value) || Float.isInfinite(value)) {
+                    throw new IllegalArgumentException("Can not quantize " + value);
+                }
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            double range = log ? Math.log1p(max - min) : max - min;
+            return new Quantized(log, bits, min, range / ((1L << bits) - 1));
+        }
+
+        @Override
+        ValueSize storedSize() {
+            return this.bits == 8 ? ValueSize.BYTE : ValueSize.SHORT;
+        }
+
+        @Override
+        ValueSize valueSize() {
+            return ValueSize.INT;
+        }
+
+        @Override
+        long decode(long stored) {
+            return Float.floatToRawIntBits(decodeFloat(stored));
+        }
+
+        @Override
+        float decodeFloat(long stored) {
+            double level = (stored & this.maxLevel) * this.scale;
+            return (float) (this.log ? this.min + Math.expm1(level) : this.min + level);
+        }
+
+        @Override
+        long encodeFloat(float value) {
+            if (this.scale == 0) {
+                return 0;
+            }
+            double distance = value - this.min;
+            long level = Math.round((this.log ? Math.log1p(distance) : distance) / this.scale);
+            return Math.max(0, Math.min(this.maxLevel, level));
+        }
+
+        @Override
+        FloatEncoding floatEncoding() {
+            if (this.log) {
+                return this.bits == 8 ? FloatEncoding.LOG8 : FloatEncoding.LOG16;
+            }
+            return this.bits == 8 ? FloatEncoding.LINEAR8 : FloatEncoding.LINEAR16;
+        }
+
+        @Override
+        int encoding() {
+            return this.log ? LOG : LINEAR;
+        }
+
+        @Override
+        int paramsSize() {
+            return 1 + 8 + 8;
+        }
+
+        @Override
+        void dumpParams(Output output) throws IOException {
+            ByteBuffer buffer = output.reserve(paramsSize());
+            buffer.put((byte) this.bits);
+            buffer.putDouble(this.min);
+            buffer.putDouble(this.scale);
+        }
+    }
+
+    /**
+     *  Ordinals into the sorted distinct values, which are referenced
+     *  by readers and not copied
+     *
+     *  <ValueSize:1b><NumValues:4b>[<Value>]
+     */
+    static final class Dictionary extends ValueCodec {
+        static final int MAX_SIZE = 1 << 16;
+
+        private final ValueSize valueSize;
+        private final int size;
+        private final byte[] data;
+        private final int valuesOffset;
+
+        Dictionary(ValueSize valueSize, int size, byte[] data, int valuesOffset) {
+            this.valueSize = valueSize;
+            this.size = size;
+            this.data = data;
+            this.valuesOffset = valuesOffset;
+        }
+
+        /**
+         *  @return dictionary of the values or null when it has more
+         *      than maxSize values or does not make the table smaller
+         */
+        static Dictionary fit(Values values, ValueSize valueSize, int maxSize) {
+            assert 0 < maxSize && maxSize <= MAX_SIZE;
+            long[] distinct = distinct(values, maxSize);
+            if (distinct == null) {
+                return null;
+            }
+            int ordinalSize = distinct.length <= 1 << 8 ? 1 : 2;
+            long saved = (long) values.length() * (valueSize.size - ordinalSize);
+            if (saved <= (long) distinct.length * valueSize.size + 1 + 4 + 1 + 4) {
+                return null;
+            }
+            Arrays.sort(distinct);
+            byte[] data = new byte[distinct.length * valueSize.size];
+            ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            for (long value : distinct) {
+                Values.putBytes(buffer, value, valueSize.size);
+            }
+            return new Dictionary(valueSize, distinct.length, data, 0);
+        }
+
+        /**
+         *  Open addressing set that gives up after maxSize values,
+         *  so high cardinality values are rejected early
+         */
+        private static long[] distinct(Values values, int maxSize) {
+            int capacity = Integer.highestOneBit(maxSize) << 2;
+            int mask = capacity - 1;
+            long[] slots = new long[capacity];
+            boolean[] used = new boolean[capacity];
+            long[] distinct = new long[maxSize];
+            int size = 0;
+            for (int i = 0; i < values.length(); i++) {
+                long value = values.get(i);
+                int slot = (int) (value * 0x9E3779B97F4A7C15L >>> 40) & mask;
+                while (used[slot] && slots[slot] != value) {
+                    slot = (slot + 1) & mask;
+                }
+                if (used[slot]) {
+                    continue;
+                }
+                if (size == maxSize) {
+                    return null;
+                }
+                used[slot] = true;
+                slots[slot] = value;
+                distinct[size++] = value;
+            }
+            return Arrays.copyOf(distinct, size);
+        }
+
+        Values encode(Values values) {
+            long[] distinct = new long[this.size];
+            for (int i = 0; i < this.size; i++) {
+                distinct[i] = decode(i);
+            }
+            long[] ordinals = new long[values.length()];
+            for (int i = 0; i < ordinals.length; i++) {
+                ordinals[i] = Arrays.binarySearch(distinct, values.get(i));
+            }
+            return new Values.Encoded(ordinals, this);
+        }
+
+        @Override
+        ValueSize storedSize() {
+            return this.size <= 1 << 8 ? ValueSize.BYTE : ValueSize.SHORT;
+        }
+
+        @Override
+        ValueSize valueSize() {
+            return this.valueSize;
+        }
+
+        @Override
+        long decode(long stored) {
+            return ByteUtils.load(this.data, this.valuesOffset + (int) stored * this.valueSize.size, this.valueSize.size);
+        }
+
+        @Override
+        int dictionarySize() {
+            return this.size;
+        }
+
+        @Override
+        int encoding() {
+            return DICTIONARY;
+        }
+
+        @Override
+        int paramsSize() {
+            return 1 + 4 + this.size * this.valueSize.size;
+        }
+
+        @Override
+        void dumpParams(Output output) throws IOException {
+            output.reserve(1 + 4).put((byte) this.valueSize.size).putInt(this.size);
+            // the dictionary may not fit into the stream buffer at once
+            for (int i = 0; i < this.size; i++) {
+                Values.putBytes(output.reserve(this.valueSize.size), decode(i), this.valueSize.size);
+            }
+        }
+    }
+}
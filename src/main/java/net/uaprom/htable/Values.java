@@ -0,0 +1,313 @@
+package net.uaprom.htable;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ *  Values passed to a writer, kept in their original arrays
+ *  and written straight into a little-endian output buffer
+ */
+abstract class Values {
+    abstract int length();
+
+    abstract void put(ByteBuffer buffer, int index);
+
+    /**
+     *  @return bytes of the value as a little-endian number
+     */
+    abstract long get(int index);
+
+    /**
+     *  @return values in the given order
+     */
+    abstract Values permute(int[] order);
+
+    /**
+     *  @return codec decoding the values, null when they are stored as is
+     */
+    ValueCodec codec() {
+        return null;
+    }
+
+    static final class ByteArrays extends Values {
+        private final byte[][] values;
+
+        ByteArrays(byte[][] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.put(values[index]);
+        }
+
+        @Override
+        long get(int index) {
+            return HashTable.LONG_CODECS[values[index].length - 1].load(values[index]);
+        }
+
+        @Override
+        Values permute(int[] order) {
+            byte[][] permuted = new byte[order.length][];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values[order[i]];
+            }
+            return new ByteArrays(permuted);
+        }
+    }
+
+    static final class Bytes extends Values {
+        private final byte[] values;
+
+        Bytes(byte[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.put(values[index]);
+        }
+
+        @Override
+        long get(int index) {
+            return values[index] & 0xffL;
+        }
+
+        @Override
+        Values permute(int[] order) {
+            byte[] permuted = new byte[order.length];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values[order[i]];
+            }
+            return new Bytes(permuted);
+        }
+    }
+
+    static final class Shorts extends Values {
+        private final short[] values;
+
+        Shorts(short[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.putShort(values[index]);
+        }
+
+        @Override
+        long get(int index) {
+            return values[index] & 0xffffL;
+        }
+
+        @Override
+        Values permute(int[] order) {
+            short[] permuted = new short[order.length];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values[order[i]];
+            }
+            return new Shorts(permuted);
+        }
+    }
+
+    static final class Ints extends Values {
+        private final int[] values;
+
+        Ints(int[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.putInt(values[index]);
+        }
+
+        @Override
+        long get(int index) {
+            return values[index] & 0xffff_ffffL;
+        }
+
+        @Override
+        Values permute(int[] order) {
+            int[] permuted = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values[order[i]];
+            }
+            return new Ints(permuted);
+        }
+    }
+
+    static final class Longs extends Values {
+        private final long[] values;
+
+        Longs(long[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.putLong(values[index]);
+        }
+
+        @Override
+        long get(int index) {
+            return values[index];
+        }
+
+        @Override
+        Values permute(int[] order) {
+            return new Longs(KeySorter.permute(values, order));
+        }
+    }
+
+    static final class Floats extends Values {
+        private final float[] values;
+
+        Floats(float[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.putInt(Float.floatToIntBits(values[index]));
+        }
+
+        @Override
+        long get(int index) {
+            return Float.floatToIntBits(values[index]) & 0xffff_ffffL;
+        }
+
+        @Override
+        Values permute(int[] order) {
+            float[] permuted = new float[order.length];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values[order[i]];
+            }
+            return new Floats(permuted);
+        }
+    }
+
+    static final class Doubles extends Values {
+        private final double[] values;
+
+        Doubles(double[] values) {
+            this.values = values;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            buffer.putLong(Double.doubleToLongBits(values[index]));
+        }
+
+        @Override
+        long get(int index) {
+            return Double.doubleToLongBits(values[index]);
+        }
+
+        @Override
+        Values permute(int[] order) {
+            double[] permuted = new double[order.length];
+            for (int i = 0; i < order.length; i++) {
+                permuted[i] = values[order[i]];
+            }
+            return new Doubles(permuted);
+        }
+    }
+
+    /**
+     *  Values encoded by a codec
+     */
+    static final class Encoded extends Values {
+        private final long[] values;
+        private final ValueCodec codec;
+
+        Encoded(long[] values, ValueCodec codec) {
+            this.values = values;
+            this.codec = codec;
+        }
+
+        @Override
+        int length() {
+            return values.length;
+        }
+
+        @Override
+        void put(ByteBuffer buffer, int index) {
+            putBytes(buffer, values[index], codec.storedSize().size);
+        }
+
+        @Override
+        long get(int index) {
+            return values[index];
+        }
+
+        @Override
+        Values permute(int[] order) {
+            return new Encoded(KeySorter.permute(values, order), codec);
+        }
+
+        @Override
+        ValueCodec codec() {
+            return codec;
+        }
+    }
+
+    /**
+     *  Writes the lowest numBytes bytes of v in little-endian order
+     */
+    static void putBytes(ByteBuffer buffer, long v, int numBytes) {
+        switch (numBytes) {
+        case 1:
+            buffer.put((byte) v);
+            break;
+        case 2:
+            buffer.putShort((short) v);
+            break;
+        case 4:
+            buffer.putInt((int) v);
+            break;
+        case 8:
+            buffer.putLong(v);
+            break;
+        default:
+            for (int i = 0; i < numBytes; i++) {
+                buffer.put((byte) (v >>> (i << 3)));
+            }
+        }
+    }
+}
@@ -17,6 +17,17 @@ class BaseSpecification extends Specification {
         }
     }
 
+    void assertReader_getLong(reader, keys, values, range, defaultValue) {
+        def map = [keys, values].transpose().collectEntries { it }
+        for (k in range) {
+            if (map.containsKey(k)) {
+                assert reader.getLong(k, defaultValue) == map[k]
+            } else {
+                assert reader.getLong(k, defaultValue) == defaultValue
+            }
+        }
+    }
+
     void assertReader_get(reader, keys, values, range, defaultValue) {
         def map = [keys, values].transpose().collectEntries { it }
         for (k in range) {
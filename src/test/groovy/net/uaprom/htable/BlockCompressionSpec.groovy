@@ -0,0 +1,97 @@
+package net.uaprom.htable
+
+
+class BlockCompressionSpec extends BaseSpecification {
+    def "test Lz4 compress and decompress"() {
+        given:
+        def compressed = new byte[Lz4.maxCompressedLength(data.length)]
+        def decompressed = new byte[data.length]
+
+        when:
+        def length = Lz4.compress(data, 0, data.length, compressed, 0, Lz4.newHashTable())
+        Lz4.decompress(compressed, 0, length, decompressed, 0, data.length)
+        then:
+        decompressed == data
+        length <= maxLength
+
+        where:
+        data | maxLength
+        new byte[0] | 1
+        [1, 2, 3] as byte[] | 4
+        new byte[1000] | 20
+        (0..<1000).collect { it % 3 } as byte[] | 30
+        (0..<1000).collect { (byte) (it * 0x9E3779B1 >>> 24) } as byte[] | 1016
+    }
+
+    def "test BlockCompression stores incompressible blocks as is"() {
+        given:
+        def random = new Random(0)
+        def data = new byte[3000]
+        random.nextBytes(data)
+
+        when:
+        def compressed = BlockCompression.compress(data, 10)
+        def bytes = BlockCompression.open(compressed, new BlockCache(1 << 20))
+        def decompressed = new byte[data.length]
+        bytes.get(0, decompressed, 0, data.length)
+        then:
+        compressed.length == data.length + 3 * 8 + 9
+        compressed[-1] == 10
+        bytes.isCompressed()
+        bytes.length() == data.length
+        decompressed == data
+        bytes.load(1020, 8) == SegmentedBytes.wrap(data).load(1020, 8)
+    }
+
+    def "test LargeReader over compressed table"() {
+        given:
+        def keys = (0L..20000L).step(3).collect { it }
+        def sink = new SegmentedBytes.Sink()
+        def out = new BlockCompression.Output(sink, 10)
+        writer.dump(keys as long[], keys.collect { intToBytes((int) it % 100) } as byte[][], out)
+        out.finish()
+        def cache = new BlockCache(4 << 10)
+
+        when:
+        def reader = readerFactory(BlockCompression.open(sink.toBytes(), cache))
+        then:
+        out.compressedLength() < out.length()
+        assertReader_getInt(reader, keys, keys.collect { (int) it % 100 }, 0L..20010L, -1)
+        cache.size() <= cache.capacity()
+        cache.evictions() > 0
+        cache.hitRate() > 0.5
+
+        where:
+        writer | readerFactory
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | { new TrieHashTable.LargeReader(it) }
+        new ChainHashTable.Writer(HashTable.ValueSize.INT) | { new ChainHashTable.LargeReader(it) }
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT) | { new CuckooHashTable.LargeReader(it) }
+    }
+
+    def "test BlockCache evicts blocks not read since the last pass"() {
+        given:
+        def data = (0..<4096).collect { (byte) (it >>> 10) } as byte[]
+        def cache = new BlockCache(2048)
+        def bytes = BlockCompression.open(BlockCompression.compress(data, 10), cache)
+
+        when:
+        bytes.get(0)
+        bytes.get(1024)
+        bytes.get(0)
+        bytes.get(2048)
+        then:
+        cache.numBlocks() == 2
+        cache.misses() == 3
+        cache.hits() == 1
+        cache.evictions() == 1
+        bytes.get(0) == 0
+        cache.hits() == 2
+
+        when:
+        bytes.unmap()
+        then:
+        cache.numBlocks() == 0
+        cache.size() == 0
+        bytes.get(3072) == 3
+    }
+}
@@ -0,0 +1,43 @@
+package net.uaprom.htable
+
+
+class BuildPipelineSpec extends BaseSpecification {
+    def "test BuildPipeline sinks tables in submission order"() {
+        given:
+        def sunk = []
+        def pipeline = new BuildPipeline(
+            { new TrieHashTable.Writer(HashTable.ValueSize.INT) } as BuildPipeline.WriterFactory,
+            4, 8,
+            { docId, table -> sunk << [docId, table] } as BuildPipeline.Sink)
+        def tablesKeys = (1..100).collect { n -> (0L..(n * 37L)).step(n).collect { it } }
+
+        when:
+        tablesKeys.eachWithIndex { keys, docId ->
+            pipeline.submitInts(docId, keys as long[], keys.collect { (int) it * 2 } as int[])
+        }
+        pipeline.close()
+        then:
+        sunk*.getAt(0) == (0..99).collect { (long) it }
+        tablesKeys.indexed().every { docId, keys ->
+            sunk[docId][1] == new TrieHashTable.Writer(HashTable.ValueSize.INT).dumpInts(keys, keys.collect { (int) it * 2 })
+        }
+        pipeline.tables() == 100
+        pipeline.keys() == tablesKeys*.size().sum()
+    }
+
+    def "test BuildPipeline stops sinking after a failure"() {
+        given:
+        def sunk = []
+        def pipeline = new BuildPipeline(
+            { new ChainHashTable.Writer(HashTable.ValueSize.INT) } as BuildPipeline.WriterFactory,
+            2, 4,
+            { docId, table -> if (docId == 2) throw new IOException("disk full"); sunk << docId } as BuildPipeline.Sink)
+
+        when:
+        (1..5).each { pipeline.submitInts(it, [1L, 2L] as long[], [1, 2] as int[]) }
+        pipeline.close()
+        then:
+        thrown(IOException)
+        sunk == [1L]
+    }
+}
@@ -1,5 +1,9 @@
 package net.uaprom.htable
 
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
 
 class HashTableSpec extends BaseSpecification {
     def "test ChainHashTable.Writer.getHashTableSize"() {
@@ -68,6 +72,7 @@ class HashTableSpec extends BaseSpecification {
     def "test ChainHashTable.Writer.dumpInts [valueSize: 4]"() {
         given:
         def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT)
+        htableWriter.setTinyThreshold(0)
 
         expect:
         htableWriter.dumpInts(keys, values).collect { it & 0xff } == bytes
@@ -96,6 +101,7 @@ class HashTableSpec extends BaseSpecification {
     def "test ChainHashTable.Writer.dumpInts [valueSize: 4, fillingRatio: 1]"() {
         given:
         def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT, 1)
+        htableWriter.setTinyThreshold(0)
 
         expect:
         htableWriter.dumpInts(keys, values).collect { it & 0xff } == bytes
@@ -123,6 +129,50 @@ class HashTableSpec extends BaseSpecification {
         ]
     }
 
+    def "test ChainHashTable.Writer.dumpInts [valueSize: 4, keyColumn: true]"() {
+        given:
+        def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT, 1, 2, true)
+        htableWriter.setTinyThreshold(0)
+
+        expect:
+        htableWriter.dumpInts(keys, values).collect { it & 0xff } == bytes
+
+        where:
+        keys | values || bytes
+        [0L, 2L] | [10, 12] || [
+            *shortToBytes((short) 0b00_1_00001_00_000_0_10),
+            4, 0,
+            0, 2, 10, 0, 0, 0, 12, 0, 0, 0
+        ]
+        [0L, 5L, 8L] | [13, 15, 18] || [
+            *shortToBytes((short) 0b00_1_00001_00_000_0_10),
+            4, 14,
+            0, 8, 13, 0, 0, 0, 18, 0, 0, 0,
+            5, 15, 0, 0, 0
+        ]
+    }
+
+    def "test ChainHashTable.Reader().get [valueSize: 4, keyColumn: true]"() {
+        given:
+        def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT, true)
+
+        when:
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keyRange.step(keyStep).collect { intToBytes((int) it * 2) }
+        def reader = new ChainHashTable.Reader(htableWriter.dump(keys, values))
+        then:
+        reader.keyColumn()
+        assertReader_get(reader, keys, values, keyRange, defaultValue)
+
+        where:
+        keyRange | keyStep | defaultValue
+        1L..1L | 1 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        1L..10L | 3 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        1L..100L | 1 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        0L..1000L | 3 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        0L..100000L | 7 | [0xff, 0xff, 0xff, 0xff] as byte[]
+    }
+
     def "test ChainHashTable.Reader().get [valueSize: 4] with data offset"() {
         given:
         def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT)
@@ -161,4 +211,244 @@ class HashTableSpec extends BaseSpecification {
         0L..1000L | 3 | [0xff, 0xff, 0xff, 0xff] as byte[]
         0L..100000L | 7 | [0xff, 0xff, 0xff, 0xff] as byte[]
     }
+
+    def "test ChainHashTable.MultiReader.getInts"() {
+        given:
+        def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT)
+
+        when:
+        def tables = tablesKeys.collect { keys -> htableWriter.dumpInts(keys, keys.collect { (int) it * 2 }) }
+        def values = new int[tables.size()]
+        new ChainHashTable.MultiReader().getInts(
+            key,
+            tables as byte[][],
+            [0] * tables.size() as int[],
+            tables.collect { it.length } as int[],
+            -1,
+            values)
+        then:
+        values as List == expected
+
+        where:
+        tablesKeys | key || expected
+        [[1L, 5L], [5L], [], [2L, 300L]] | 5L || [10, 10, -1, -1]
+        [[1L, 5L], [5L], [], [2L, 300L]] | 300L || [-1, -1, -1, 600]
+        [(0L..1000L).collect { it }, [1000L]] | 1000L || [2000, 2000]
+    }
+
+    def "test ChainHashTable.Writer.dump into a stream"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keys.collect { intToBytes((int) it * 2) }
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def size = writer.dump(keys as long[], values as byte[][], out)
+        then:
+        out.toByteArray() == writer.dump(keys, values)
+        size == out.size()
+
+        where:
+        writer | keyRange | keyStep
+        new ChainHashTable.Writer(HashTable.ValueSize.INT) | 0L..10000L | 7
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, true) | 0L..10000L | 7
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, 1000) | 0L..100L | 1
+    }
+
+    def "test ChainHashTable.LargeReader.getInt"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def sink = new SegmentedBytes.Sink(segmentBits)
+        writer.dump(keys as long[], keys.collect { intToBytes((int) it * 2) } as byte[][], sink)
+
+        when:
+        def reader = new ChainHashTable.LargeReader(sink.toBytes())
+        then:
+        assertReader_getInt(reader, keys, keys.collect { (int) it * 2 }, keyRange, -1)
+
+        where:
+        writer | keyRange | keyStep | segmentBits
+        new ChainHashTable.Writer(HashTable.ValueSize.INT) | 0L..10000L | 7 | 4
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, true) | 0L..10000L | 7 | 10
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, 1000) | 0L..100L | 1 | 30
+    }
+
+    def "test ChainHashTable.Writer typed dumps write the same bytes as dump"() {
+        given:
+        def keys = (0L..3000L).step(3).collect { it }
+
+        expect:
+        writer.dumpShorts(keys, keys.collect { (short) it }) == writer.dump(keys, keys.collect { shortToBytes((short) it) })
+
+        where:
+        writer << [
+            new ChainHashTable.Writer(HashTable.ValueSize.SHORT),
+            new ChainHashTable.Writer(HashTable.ValueSize.SHORT, true)
+        ]
+    }
+
+    def "test ChainHashTable.Writer.dumpLongs and dumpDoubles"() {
+        given:
+        def writer = new ChainHashTable.Writer(HashTable.ValueSize.LONG)
+        def keys = (0L..3000L).step(3).collect { it }
+
+        when:
+        def longsReader = new ChainHashTable.Reader(writer.dumpLongs(keys, keys.collect { it * -3L }))
+        def doublesReader = new ChainHashTable.Reader(writer.dumpDoubles(keys, keys.collect { it / 4.0d }))
+        then:
+        keys.every { longsReader.getLong(it, 0L) == it * -3L }
+        keys.every { doublesReader.getDouble(it, -1.0d) == it / 4.0d }
+    }
+
+    def "test ChainHashTable.Writer.dump into a ByteBuffer"() {
+        given:
+        def writer = new ChainHashTable.Writer(HashTable.ValueSize.INT)
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keys.collect { (int) it * 2 }
+        def expected = writer.dumpInts(keys, values)
+        def target = direct ? ByteBuffer.allocateDirect(expected.length + 10) : ByteBuffer.allocate(expected.length + 10)
+        target.position(3)
+
+        when:
+        def size = writer.dumpInts(keys as long[], values as int[], target)
+        def written = new byte[size]
+        target.position(3)
+        target.get(written)
+        then:
+        size == expected.length
+        written == expected
+        target.order() == ByteOrder.BIG_ENDIAN
+
+        where:
+        keyRange | keyStep | direct
+        0L..10000L | 7 | false
+        0L..10000L | 7 | true
+        0L..100L | 1 | true
+    }
+
+    def "test ChainHashTable.Writer.dump into a byte array"() {
+        given:
+        def writer = new ChainHashTable.Writer(HashTable.ValueSize.INT, true)
+        def keys = (0L..1000L).step(3).collect { it }
+        def values = keys.collect { intToBytes((int) it) }
+        def expected = writer.dump(keys, values)
+        def dst = new byte[expected.length + 5]
+
+        expect:
+        writer.dump(keys as long[], values as byte[][], dst, 5) == expected.length
+        dst[5..-1] == expected as List
+    }
+
+    def "test ChainHashTable.Writer.dump into a too small ByteBuffer"() {
+        given:
+        def writer = new ChainHashTable.Writer(HashTable.ValueSize.INT)
+        def keys = (0L..1000L).step(3).collect { it }
+        def target = ByteBuffer.allocate(writer.dumpInts(keys, keys.collect { (int) it }).length - 1)
+
+        when:
+        writer.dumpInts(keys as long[], keys.collect { (int) it } as int[], target)
+        then:
+        thrown(BufferOverflowException)
+        target.position() == 0
+    }
+
+    def "test ChainHashTable.Writer reusing scratch writes the same bytes"() {
+        given:
+        def writer = new ChainHashTable.Writer(HashTable.ValueSize.INT, true)
+        writer.setReuseScratch(true)
+        def fresh = new ChainHashTable.Writer(HashTable.ValueSize.INT, true)
+
+        expect:
+        tablesKeys.every { keys ->
+            def values = keys.collect { (int) it * 3 }
+            writer.dumpInts(keys, values) == fresh.dumpInts(keys, values)
+        }
+
+        where:
+        tablesKeys << [
+            [(0L..10000L).step(7).collect { it }, [5L, 6L], [1L], (0L..100L).collect { it }],
+            [[1L << 40, 1L << 41], (0L..3000L).step(3).collect { it }, [2L]]
+        ]
+    }
+
+    def "test ChainHashTable.Writer.dumpFloats with a float encoding"() {
+        given:
+        writer.setFloatEncoding(encoding)
+        def keys = (0L..30000L).step(7).collect { it }
+        def values = keys.collect { (float) ((it % 1000) / 10.0f) }
+        def sink = new SegmentedBytes.Sink(10)
+
+        when:
+        def data = writer.dumpFloats(keys, values)
+        sink.write(data)
+        def reader = new ChainHashTable.Reader(data)
+        def largeReader = new ChainHashTable.LargeReader(sink.toBytes())
+        def multiValues = new float[1]
+        then:
+        reader.floatEncoding() == encoding
+        keys.indexed().every { i, key ->
+            def value = reader.getFloat(key, Float.NaN)
+            new ChainHashTable.MultiReader().getFloats(key, [data] as byte[][], [0] as int[], [data.length] as int[], Float.NaN, multiValues)
+            Math.abs(value - values[i]) <= maxError && largeReader.getFloat(key, Float.NaN) == value && multiValues[0] == value
+        }
+        (1L..30L).findAll { it % 7 != 0 }.every { !reader.exists(it) && largeReader.getFloat(it, -1.0f) == -1.0f }
+
+        where:
+        writer | encoding | maxError
+        new ChainHashTable.Writer(HashTable.ValueSize.INT) | HashTable.FloatEncoding.FLOAT16 | 0.05f
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, true) | HashTable.FloatEncoding.BFLOAT16 | 0.25f
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, 1000) | HashTable.FloatEncoding.LINEAR16 | 0.001f
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, true) | HashTable.FloatEncoding.LOG8 | 1.0f
+    }
+
+    def "test ChainHashTable.Writer.setMaxDictionarySize"() {
+        given:
+        writer.setMaxDictionarySize(1000)
+        def keys = (0L..30000L).step(7).collect { it }
+        def values = keys.collect { (int) (it % 100) * 1000 }
+        def data = writer.dumpInts(keys, values)
+
+        when:
+        def reader = new ChainHashTable.Reader(data)
+        def multiValues = new int[1]
+        then:
+        reader.valueSize() == HashTable.ValueSize.BYTE
+        assertReader_getInt(reader, keys, values, keys.collect { [it, it + 1] }.flatten(), -1)
+        keys.indexed().every { i, key ->
+            new ChainHashTable.MultiReader().getInts(key, [data] as byte[][], [0] as int[], [data.length] as int[], -1, multiValues)
+            multiValues[0] == values[i]
+        }
+
+        where:
+        writer << [
+            new ChainHashTable.Writer(HashTable.ValueSize.INT),
+            new ChainHashTable.Writer(HashTable.ValueSize.INT, true)
+        ]
+    }
+
+    def "test ChainHashTable.MultiReader keeps codecs of different encoded tables apart"() {
+        given:
+        def keys = (0L..3000L).step(3).collect { it }
+        def linear = new ChainHashTable.Writer(HashTable.ValueSize.INT)
+        linear.setFloatEncoding(HashTable.FloatEncoding.LINEAR16)
+        def log = new ChainHashTable.Writer(HashTable.ValueSize.INT)
+        log.setFloatEncoding(HashTable.FloatEncoding.LOG16)
+        def first = linear.dumpFloats(keys, keys.collect { (float) it })
+        def second = log.dumpFloats(keys, keys.collect { (float) (it * 100) })
+        // the second table after the first one in the same array
+        def both = new byte[first.length + second.length]
+        System.arraycopy(first, 0, both, 0, first.length)
+        System.arraycopy(second, 0, both, first.length, second.length)
+        def multiReader = new ChainHashTable.MultiReader()
+        def multiValues = new float[3]
+
+        expect:
+        keys.every { key ->
+            multiReader.getFloats(key, [first, both, both] as byte[][], [0, 0, first.length] as int[],
+                                  [first.length, first.length, second.length] as int[], Float.NaN, multiValues)
+            multiValues[0] == new ChainHashTable.Reader(first).getFloat(key, Float.NaN) &&
+                multiValues[1] == multiValues[0] &&
+                multiValues[2] == new ChainHashTable.Reader(second).getFloat(key, Float.NaN)
+        }
+    }
 }
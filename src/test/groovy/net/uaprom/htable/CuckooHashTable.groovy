@@ -0,0 +1,20 @@
+package net.uaprom.htable
+
+import org.junit.Before
+import org.junit.Test
+
+
+public class CuckooHashTableBenchmark extends HashTableBenchmark {
+    @Before
+    void setUp() {
+        reader = new CuckooHashTable.Reader(new CuckooHashTable.Writer(HashTable.ValueSize.INT).dump(keys, values))
+    }
+
+    @Test
+    public void benchmarkReaderGet() {
+        long milliseconds = benchmark()
+        println "CuckooHashTable.Reader.get benchmark:"
+        println "Run ${CYCLES} cycles: ${milliseconds} ms"
+        println "${(long) (CYCLES / (milliseconds / 1000))} operations per second"
+    }
+}
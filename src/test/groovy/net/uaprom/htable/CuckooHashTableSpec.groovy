@@ -0,0 +1,157 @@
+package net.uaprom.htable
+
+
+class CuckooHashTableSpec extends BaseSpecification {
+    def "test CuckooHashTable.Writer.dumpInts header"() {
+        given:
+        def htableWriter = new CuckooHashTable.Writer(HashTable.ValueSize.INT, 50)
+        htableWriter.setTinyThreshold(0)
+
+        when:
+        def data = htableWriter.dumpInts([1L, 2L], [10, 20])
+        then:
+        data.length == 10 + 4 * (1 + 1 + 4)
+        (data as List).subList(0, 10) == [(byte) 0b10_000_0_10, 0, 1, 0, 0, 0, 0, 0, 0, 0]
+        new CuckooHashTable.Reader(data).getInt(2L, -1) == 20
+    }
+
+    def "test CuckooHashTable.Reader().get"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keys.collect { intToBytes((int) it * 2) }
+
+        when:
+        def reader = new CuckooHashTable.Reader(writer.dump(keys, values))
+        then:
+        assertReader_get(reader, keys, values, keyRange, [0xff, 0xff, 0xff, 0xff] as byte[])
+
+        where:
+        writer | keyRange | keyStep
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT) | 1L..1L | 1
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT) | 1L..20L | 1
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT) | 0L..100000L | 7
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT, 95) | 0L..100000L | 3
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT, 50, 1) | 0L..10000L | 3
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT, 95, 2) | 0L..10000L | 3
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT, 95, 8) | 0L..10000L | 3
+    }
+
+    def "test CuckooHashTable.Writer.dumpLongs with negative keys"() {
+        given:
+        def writer = new CuckooHashTable.Writer(HashTable.ValueSize.LONG)
+        def keys = (-3000L..3000L).step(3).collect { it * 0x1_0000_0001L }
+
+        when:
+        def reader = new CuckooHashTable.Reader(writer.dumpLongs(keys, keys.collect { -it }))
+        then:
+        reader.keySize() == 8
+        assertReader_getLong(reader, keys, keys.collect { -it }, keys.collect { [it, it + 1] }.flatten(), 0L)
+    }
+
+    def "test CuckooHashTable.Reader.forEach"() {
+        given:
+        def keys = (0L..10000L).step(7).collect { it }
+        def reader = new CuckooHashTable.Reader(new CuckooHashTable.Writer(HashTable.ValueSize.INT).dumpInts(keys, keys.collect { (int) it * 2 }))
+        def entries = [:]
+
+        when:
+        reader.forEach({ key, valueOffset -> entries[key] = reader.getInt(key, -1) } as HashTable.EntryVisitor)
+        then:
+        entries == keys.collectEntries { [it, (int) it * 2] }
+    }
+
+    def "test CuckooHashTable.LargeReader.getInt"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def sink = new SegmentedBytes.Sink(segmentBits)
+        writer.dump(keys as long[], keys.collect { intToBytes((int) it * 2) } as byte[][], sink)
+
+        when:
+        def reader = new CuckooHashTable.LargeReader(sink.toBytes())
+        then:
+        assertReader_getInt(reader, keys, keys.collect { (int) it * 2 }, keyRange, -1)
+
+        where:
+        writer | keyRange | keyStep | segmentBits
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT) | 0L..10000L | 7 | 4
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT, 95) | 0L..10000L | 7 | 10
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT) | 0L..10L | 1 | 30
+    }
+
+    def "test CuckooHashTable.MultiReader.getInts"() {
+        given:
+        def htableWriter = new CuckooHashTable.Writer(HashTable.ValueSize.INT)
+
+        when:
+        def tables = tablesKeys.collect { keys -> htableWriter.dumpInts(keys, keys.collect { (int) it * 2 }) }
+        def values = new int[tables.size()]
+        new CuckooHashTable.MultiReader().getInts(
+            key,
+            tables as byte[][],
+            [0] * tables.size() as int[],
+            tables.collect { it.length } as int[],
+            -1,
+            values)
+        then:
+        values as List == expected
+
+        where:
+        tablesKeys | key || expected
+        [[1L, 5L], [5L], [], [2L, 300L]] | 5L || [10, 10, -1, -1]
+        [(0L..1000L).collect { it }, [1000L]] | 1000L || [2000, 2000]
+    }
+
+    def "test CuckooHashTable.MultiReader keeps layouts of different tables apart"() {
+        given:
+        def multiReader = new CuckooHashTable.MultiReader()
+        def smallTable = new CuckooHashTable.Writer(HashTable.ValueSize.INT).dumpInts((0L..100L).collect { it }, (0..100).collect { it * 2 })
+        def largeTable = new CuckooHashTable.Writer(HashTable.ValueSize.INT, 50).dumpInts((0L..10000L).collect { it }, (0..10000).collect { it * 3 })
+        def values = new int[1]
+
+        expect:
+        [smallTable, largeTable, smallTable].every { table ->
+            def factor = table.is(smallTable) ? 2 : 3
+            [5L, 100L].every { key ->
+                multiReader.getInts(key, [table] as byte[][], [0] as int[], [table.length] as int[], -1, values)
+                values[0] == key * factor
+            }
+        }
+    }
+
+    def "test CuckooHashTable.Writer rejects keys that are not strictly ascending"() {
+        when:
+        new CuckooHashTable.Writer(HashTable.ValueSize.INT).dumpInts(keys, keys.collect { 1 })
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        keys << [[1L, 2L, 2L], [3L, 1L, 2L]]
+    }
+
+    def "test CuckooHashTable.Writer reusing scratch writes the same bytes"() {
+        given:
+        def writer = new CuckooHashTable.Writer(HashTable.ValueSize.INT)
+        writer.setReuseScratch(true)
+        def fresh = new CuckooHashTable.Writer(HashTable.ValueSize.INT)
+
+        expect:
+        [(0L..10000L).step(7).collect { it }, [5L, 6L], (0L..100L).collect { it }].every { keys ->
+            def values = keys.collect { (int) it * 3 }
+            writer.dumpInts(keys, values) == fresh.dumpInts(keys, values)
+        }
+    }
+
+    def "test CuckooHashTable.Writer.dumpFloats with a float encoding"() {
+        given:
+        def writer = new CuckooHashTable.Writer(HashTable.ValueSize.INT)
+        writer.setFloatEncoding(HashTable.FloatEncoding.LINEAR16)
+        def keys = (0L..30000L).step(7).collect { it }
+        def values = keys.collect { (float) ((it % 1000) / 10.0f) }
+
+        when:
+        def reader = new CuckooHashTable.Reader(writer.dumpFloats(keys, values))
+        then:
+        reader.valueSize() == HashTable.ValueSize.SHORT
+        keys.indexed().every { i, key -> Math.abs(reader.getFloat(key, Float.NaN) - values[i]) <= 0.001f }
+    }
+}
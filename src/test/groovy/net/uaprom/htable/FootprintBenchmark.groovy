@@ -0,0 +1,166 @@
+package net.uaprom.htable
+
+import groovy.json.JsonOutput
+import groovy.json.JsonSlurper
+import groovy.transform.CompileStatic
+import org.junit.Test
+
+
+/**
+ *  Serialized size, build time and build memory of every writer candidate
+ *  on standard datasets
+ *
+ *  Results are written as JSON into footprint.output. Bytes per key growing
+ *  by more than footprint.threshold (a fraction) over the results
+ *  in footprint.baseline fails the benchmark.
+ */
+public class FootprintBenchmark {
+    static final List<String> DATASETS = ['dense', 'sparse', 'clustered', 'random64', 'zipf']
+    static final List<Integer> DEFAULT_SIZES = [1_000, 100_000, 1_000_000]
+    static final double DEFAULT_THRESHOLD = 0.01
+    static final long SEED = 20150601L
+
+    @Test
+    public void benchmarkFootprint() {
+        def sizes = System.getProperty('footprint.sizes')?.split(',')?.collect { it.trim() as int } ?: DEFAULT_SIZES
+        def threshold = System.getProperty('footprint.threshold')?.toDouble() ?: DEFAULT_THRESHOLD
+        def results = []
+        for (String dataset : DATASETS) {
+            for (int size : sizes) {
+                long[] keys = keys(dataset, size, SEED)
+                int[] values = values(keys)
+                for (HashTable.Writer writer : TableInspector.candidates(HashTable.ValueSize.INT)) {
+                    results << measure(dataset, writer, keys, values)
+                }
+            }
+        }
+
+        println "dataset/keys/writer: bytes per key, build ms, build heap bytes"
+        results.each { println "${it.dataset}/${it.keys}/${it.writer}: ${String.format('%.3f', it.bytesPerKey)}, ${it.buildMillis}, ${it.buildHeapBytes}" }
+        def output = System.getProperty('footprint.output')
+        if (output) {
+            def file = new File(output)
+            file.parentFile?.mkdirs()
+            file.text = JsonOutput.prettyPrint(JsonOutput.toJson(results))
+            println "Results are written into ${file}"
+        }
+
+        def baseline = System.getProperty('footprint.baseline')
+        if (baseline && new File(baseline).exists()) {
+            def regressions = regressions(new JsonSlurper().parse(new File(baseline)) as List<Map>, results, threshold)
+            regressions.each { println "REGRESSION ${it}" }
+            assert regressions.isEmpty(), "Bytes per key increased by more than ${threshold * 100}% or results are missing from the baseline"
+        }
+    }
+
+    static Map measure(String dataset, HashTable.Writer writer, long[] keys, int[] values) {
+        HashTable.DumpStats stats = null
+        writer.setListener(new HashTable.Listener() {
+            @Override
+            void onLookup(HashTable.Reader reader, long key, boolean found, int levels, int bucketLength, int probes, long nanos) {}
+
+            @Override
+            void onDump(HashTable.Writer w, HashTable.DumpStats s) {
+                stats = s
+            }
+        })
+        byte[] data = writer.dumpInts(keys, values)
+        return [
+            dataset: dataset,
+            keys: keys.length,
+            writer: writer.toString(),
+            bytes: data.length,
+            bytesPerKey: (double) data.length / keys.length,
+            buildMillis: stats.totalNanos().intdiv(1_000_000),
+            buildHeapBytes: stats.allocatedBytes
+        ]
+    }
+
+    /**
+     *  Results of writers missing from the baseline are regressions too,
+     *  datasets of sizes the baseline does not have are skipped
+     */
+    static List<String> regressions(List<Map> baseline, List<Map> results, double threshold) {
+        def baselineBytes = baseline.collectEntries { [(id(it)): it.bytesPerKey as double] }
+        def baselineDatasets = baseline.collect { "${it.dataset}/${it.keys}" as String } as Set
+        def missing = results.findAll { !baselineBytes.containsKey(id(it)) && baselineDatasets.contains("${it.dataset}/${it.keys}" as String) }
+            .collect { "${id(it)}: missing from the baseline" }
+        def grown = results.findAll { baselineBytes.containsKey(id(it)) && it.bytesPerKey > baselineBytes[id(it)] * (1 + threshold) }
+            .collect { "${id(it)}: ${baselineBytes[id(it)]} -> ${it.bytesPerKey} bytes per key" }
+        return missing + grown
+    }
+
+    static String id(Map result) {
+        "${result.dataset}/${result.keys}/${result.writer}"
+    }
+
+    @CompileStatic
+    static long[] keys(String dataset, int n, long seed) {
+        Random random = new Random(seed)
+        long[] keys = new long[n]
+        switch (dataset) {
+            case 'dense':
+                for (int i = 0; i < n; i++) {
+                    keys[i] = i
+                }
+                return keys
+            case 'sparse':
+                // about one key out of 64
+                return uniqueSorted(n) { random.nextInt(n << 6) as long }
+            case 'clustered':
+                // runs of 64 consecutive keys at random 40 bit offsets
+                long base = 0
+                for (int i = 0; i < n; i++) {
+                    if ((i & 63) == 0) {
+                        base = random.nextLong() & 0xff_ffff_ffffL
+                    }
+                    keys[i] = base + (i & 63)
+                }
+                return uniqueSorted(keys)
+            case 'random64':
+                return uniqueSorted(n) { random.nextLong() & Long.MAX_VALUE }
+            case 'zipf':
+                // gaps between ids follow a power law like ids of real entities
+                long key = 0
+                for (int i = 0; i < n; i++) {
+                    key += 1 + (long) Math.min(1e9d, StrictMath.pow(1.0d - random.nextDouble(), -1.0d / 1.2d) - 1.0d)
+                    keys[i] = key
+                }
+                return keys
+        }
+        throw new IllegalArgumentException("Unknown dataset: ${dataset}")
+    }
+
+    @CompileStatic
+    private static long[] uniqueSorted(int n, Closure<Long> nextKey) {
+        Set<Long> keys = new HashSet<>()
+        while (keys.size() < n) {
+            keys.add(nextKey.call())
+        }
+        long[] sorted = keys as long[]
+        Arrays.sort(sorted)
+        return sorted
+    }
+
+    @CompileStatic
+    private static long[] uniqueSorted(long[] keys) {
+        long[] sorted = Arrays.copyOf(keys, keys.length)
+        Arrays.sort(sorted)
+        int n = 0
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[i] != sorted[n - 1]) {
+                sorted[n++] = sorted[i]
+            }
+        }
+        return Arrays.copyOf(sorted, n)
+    }
+
+    @CompileStatic
+    private static int[] values(long[] keys) {
+        int[] values = new int[keys.length]
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = (int) keys[i]
+        }
+        return values
+    }
+}
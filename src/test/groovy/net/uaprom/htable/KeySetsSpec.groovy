@@ -0,0 +1,65 @@
+package net.uaprom.htable
+
+
+class KeySetsSpec extends BaseSpecification {
+    static HashTable.Reader reader(HashTable.Writer writer, List<Long> keys, int factor) {
+        def data = writer.dumpInts(keys, keys.collect { (int) it * factor })
+        if (writer instanceof TrieHashTable.Writer) {
+            return new TrieHashTable.Reader(data)
+        }
+        if (writer instanceof ChainHashTable.Writer) {
+            return new ChainHashTable.Reader(data)
+        }
+        return new CuckooHashTable.Reader(data)
+    }
+
+    def "test KeySets.intersect, union and difference"() {
+        given:
+        def keysA = (0L..20000L).step(3).collect { it }
+        def keysB = ((10000L..40000L).step(5) + [7L << 30]).collect { it }
+        def a = reader(writerA, keysA, 2)
+        def b = reader(writerB, keysB, 3)
+        def setA = keysA as Set
+        def setB = keysB as Set
+        def intersection = []
+        def union = []
+        def difference = []
+
+        when:
+        KeySets.intersect(a, b, { key, valueOffsetA, valueOffsetB ->
+            intersection << [key, a.getInt(valueOffsetA), b.getInt(valueOffsetB)]
+        } as KeySets.JoinVisitor)
+        KeySets.union(a, b, { key, valueOffsetA, valueOffsetB ->
+            union << [key, valueOffsetA == -1 ? null : a.getInt(valueOffsetA), valueOffsetB == -1 ? null : b.getInt(valueOffsetB)]
+        } as KeySets.JoinVisitor)
+        KeySets.difference(a, b, { key, valueOffset -> difference << [key, a.getInt(valueOffset)] } as HashTable.EntryVisitor)
+        then:
+        intersection.sort(false) { it[0] } == keysA.intersect(keysB).sort().collect { [it, (int) it * 2, (int) it * 3] }
+        union.sort(false) { it[0] } == (keysA + keysB).unique().sort().collect {
+            [it, it in setA ? (int) it * 2 : null, it in setB ? (int) it * 3 : null]
+        }
+        difference.sort(false) { it[0] } == (keysA - keysB).collect { [it, (int) it * 2] }
+
+        where:
+        writerA | writerB
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.SHORT)
+        new ChainHashTable.Writer(HashTable.ValueSize.INT) | new ChainHashTable.Writer(HashTable.ValueSize.INT, true)
+        new ChainHashTable.Writer(HashTable.ValueSize.INT, 2) | new ChainHashTable.Writer(HashTable.ValueSize.INT, 20)
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | new CuckooHashTable.Writer(HashTable.ValueSize.INT)
+    }
+
+    def "test KeySets.union of tries of different heights visits keys in order"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        def keysA = [1L, 9L, 200L]
+        def keysB = [9L, 70000L, 1L << 40]
+        writer.setTinyThreshold(0)
+        def keys = []
+
+        when:
+        KeySets.union(reader(writer, keysA, 1), reader(writer, keysB, 1), { key, valueOffsetA, valueOffsetB -> keys << key } as KeySets.JoinVisitor)
+        then:
+        keys == [1L, 9L, 200L, 70000L, 1L << 40]
+    }
+}
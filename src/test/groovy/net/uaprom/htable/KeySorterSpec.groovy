@@ -0,0 +1,69 @@
+package net.uaprom.htable
+
+import java.util.concurrent.ForkJoinPool
+
+
+class KeySorterSpec extends BaseSpecification {
+    def "test KeySorter.order"() {
+        given:
+        def random = new Random(seed)
+        def keys = (0..<numKeys).collect { random.nextLong() } as long[]
+        def sorter = new KeySorter(KeySorter.DuplicatePolicy.FAIL, memoryBudget, null, ForkJoinPool.commonPool())
+
+        when:
+        def order = sorter.order(keys)
+        then:
+        order.collect { keys[it] } == (keys as List).sort()
+
+        where:
+        seed | numKeys | memoryBudget
+        0 | 0 | KeySorter.DEFAULT_MEMORY_BUDGET
+        1 | 1000 | KeySorter.DEFAULT_MEMORY_BUDGET
+        2 | 200000 | KeySorter.DEFAULT_MEMORY_BUDGET
+        // spills runs of 1000 keys
+        3 | 10000 | 24000L
+    }
+
+    def "test KeySorter.sort with duplicate keys"() {
+        given:
+        def sorter = new KeySorter(duplicatePolicy, memoryBudget, null, ForkJoinPool.commonPool())
+        def keys = [5L, 1L, 9L, 1L, 5L, 1L] as long[]
+        def values = [[0], [1], [2], [3], [4], [5]] as byte[][]
+
+        when:
+        def entries = sorter.sort(keys, values)
+        then:
+        entries.keys as List == [1L, 5L, 9L]
+        entries.values.collect { it[0] } == expectedValues
+
+        where:
+        duplicatePolicy | memoryBudget || expectedValues
+        KeySorter.DuplicatePolicy.KEEP_FIRST | KeySorter.DEFAULT_MEMORY_BUDGET || [1, 0, 2]
+        KeySorter.DuplicatePolicy.KEEP_LAST | KeySorter.DEFAULT_MEMORY_BUDGET || [5, 4, 2]
+        KeySorter.DuplicatePolicy.KEEP_FIRST | 48L || [1, 0, 2]
+        KeySorter.DuplicatePolicy.KEEP_LAST | 48L || [5, 4, 2]
+    }
+
+    def "test KeySorter.sort fails on duplicate keys"() {
+        when:
+        new KeySorter().sort([2L, 1L, 2L] as long[], [[0], [1], [2]] as byte[][])
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "test writers sort unsorted keys"() {
+        given:
+        htableWriter.setSorter(new KeySorter())
+        def keys = [300L, 5L, 1000L, 1L]
+
+        when:
+        def reader = readerFactory(htableWriter.dumpInts(keys, keys.collect { (int) it * 2 }))
+        then:
+        assertReader_getInt(reader, keys, keys.collect { (int) it * 2 }, 0L..1001L, -1)
+
+        where:
+        htableWriter | readerFactory
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | { new TrieHashTable.Reader(it) }
+        new ChainHashTable.Writer(HashTable.ValueSize.INT) | { new ChainHashTable.Reader(it) }
+    }
+}
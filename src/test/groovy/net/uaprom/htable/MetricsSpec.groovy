@@ -0,0 +1,71 @@
+package net.uaprom.htable
+
+
+class MetricsSpec extends BaseSpecification {
+    def "test Metrics.Histogram bucket bounds"() {
+        expect:
+        Metrics.Histogram.bucketIndex(value) == index
+        Metrics.Histogram.bucketLowerBound(index) == lowerBound
+
+        where:
+        value | index | lowerBound
+        0L | 0 | 0L
+        15L | 15 | 15L
+        16L | 16 | 16L
+        17L | 17 | 17L
+        32L | 32 | 32L
+        33L | 32 | 32L
+        1000L | 111 | 992L
+    }
+
+    def "test Metrics.Histogram.percentile"() {
+        given:
+        def histogram = new Metrics.Histogram()
+
+        when:
+        (1L..100L).each { histogram.record(it) }
+        then:
+        histogram.count() == 100
+        histogram.max() == 100
+        histogram.mean() == 50.5
+        histogram.percentile(50) == 50
+        histogram.percentile(100) == 100
+    }
+
+    def "test Metrics collects TrieHashTable lookups and dumps"() {
+        given:
+        def metrics = new Metrics()
+        def htableWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        htableWriter.setTinyThreshold(0)
+        htableWriter.setListener(metrics)
+
+        when:
+        def reader = new TrieHashTable.Reader(htableWriter.dumpInts([0L, 13L, 159L], [1, 2, 3]))
+        reader.setListener(metrics)
+        [0L, 13L, 159L, 14L, 1000L].each { reader.exists(it) }
+        then:
+        metrics.hits() == 3
+        metrics.misses() == 2
+        metrics.levels().max() == 3
+        metrics.dumps() == 1
+        metrics.dumpedKeys() == 3
+        metrics.outputBytes() == 25
+    }
+
+    def "test Metrics collects ChainHashTable bucket lengths"() {
+        given:
+        def metrics = new Metrics()
+        def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT, 1)
+        htableWriter.setTinyThreshold(0)
+
+        when:
+        def reader = new ChainHashTable.Reader(htableWriter.dumpInts([0L, 5L, 8L], [13, 15, 18]))
+        reader.setListener(metrics)
+        [0L, 5L, 8L].each { reader.exists(it) }
+        then:
+        metrics.hits() == 3
+        metrics.bucketLengths().count() == 3
+        metrics.bucketLengths().max() == 2
+        metrics.levels().max() == 1
+    }
+}
@@ -0,0 +1,91 @@
+package net.uaprom.htable
+
+
+class OrdinalTableSpec extends BaseSpecification {
+    def newWriter(Class writerClass) {
+        return new OrdinalTable.Writer(new OrdinalTable.WriterFactory() {
+            @Override
+            HashTable.Writer newWriter(HashTable.ValueSize ordinalSize) {
+                return writerClass.newInstance(ordinalSize)
+            }
+        })
+    }
+
+    def "test OrdinalTable.Reader"() {
+        given:
+        def keys = (0L..<numKeys).collect { it * 3 }
+        def ints = keys.collect { (int) it * 2 }
+        def doubles = keys.collect { it / 4.0d }
+        def bytes = keys.collect { (byte) it }
+        def data = newWriter(writerClass).dump(keys as long[],
+                                               OrdinalTable.Column.ofInts(ints as int[]),
+                                               OrdinalTable.Column.ofDoubles(doubles as double[]),
+                                               OrdinalTable.Column.ofBytes(bytes as byte[]))
+        def reader = new OrdinalTable.Reader(data)
+
+        expect:
+        reader.numKeys() == numKeys
+        reader.numColumns() == 3
+        reader.valueSize(1) == HashTable.ValueSize.LONG
+        reader.index().valueSize() == ordinalSize
+        keys.withIndex().every { key, i ->
+            def ordinal = reader.getOrdinal(key)
+            ordinal == i &&
+                reader.getInt(0, ordinal) == ints[i] &&
+                reader.getDouble(1, ordinal) == doubles[i] &&
+                reader.getByte(2, ordinal) == bytes[i]
+        }
+        reader.getOrdinal(1L) == OrdinalTable.NOT_FOUND
+        reader.getOrdinal(numKeys * 3L) == OrdinalTable.NOT_FOUND
+
+        where:
+        writerClass | numKeys | ordinalSize
+        TrieHashTable.Writer | 200 | HashTable.ValueSize.BYTE
+        ChainHashTable.Writer | 256 | HashTable.ValueSize.BYTE
+        CuckooHashTable.Writer | 257 | HashTable.ValueSize.SHORT
+        TrieHashTable.Writer | 70000 | HashTable.ValueSize.INT
+        ChainHashTable.Writer | 70000 | HashTable.ValueSize.INT
+    }
+
+    def "test OrdinalTable.Reader.forEach"() {
+        given:
+        def keys = [5L, 1L, 9L, 3L]
+        def writer = new OrdinalTable.Writer(new OrdinalTable.WriterFactory() {
+            @Override
+            HashTable.Writer newWriter(HashTable.ValueSize ordinalSize) {
+                def writer = new ChainHashTable.Writer(ordinalSize)
+                writer.setSorter(new KeySorter())
+                return writer
+            }
+        })
+        def reader = new OrdinalTable.Reader(writer.dump(keys as long[], OrdinalTable.Column.ofShorts([50, 10, 90, 30] as short[])))
+        def ordinals = [:]
+        reader.forEach(new OrdinalTable.OrdinalVisitor() {
+            @Override
+            void visit(long key, int ordinal) {
+                ordinals[key] = ordinal
+            }
+        })
+
+        expect:
+        ordinals == [5L: 0, 1L: 1, 9L: 2, 3L: 3]
+        keys.every { reader.getShort(0, reader.getOrdinal(it)) == it * 10 }
+    }
+
+    def "test empty OrdinalTable"() {
+        given:
+        def reader = new OrdinalTable.Reader(newWriter(TrieHashTable.Writer).dump([] as long[], OrdinalTable.Column.ofLongs([] as long[])))
+
+        expect:
+        reader.numKeys() == 0
+        reader.numColumns() == 1
+        reader.getOrdinal(0L) == OrdinalTable.NOT_FOUND
+    }
+
+    def "test OrdinalTable.Writer rejects columns of other length"() {
+        when:
+        newWriter(TrieHashTable.Writer).dump([1L, 2L] as long[], OrdinalTable.Column.ofInts([1] as int[]))
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,102 @@
+package net.uaprom.htable
+
+
+class ShardedHashTableSpec extends BaseSpecification {
+    def writerFactory = new ShardedHashTable.WriterFactory() {
+        @Override
+        HashTable.Writer newWriter(int shard) {
+            switch (shard % 3) {
+            case 0:
+                return new TrieHashTable.Writer(HashTable.ValueSize.INT)
+            case 1:
+                return new ChainHashTable.Writer(HashTable.ValueSize.INT)
+            default:
+                return new CuckooHashTable.Writer(HashTable.ValueSize.INT)
+            }
+        }
+    }
+
+    def "test ShardedHashTable.Directory"() {
+        given:
+        def directory = new ShardedHashTable.Writer(2, 16, writerFactory).dumpInts([1L, 0x4000L, 0xffffL] as long[], [1, 2, 3] as int[]).directory()
+
+        expect:
+        directory.numShards() == 4
+        directory.shard(0x3fffL) == 0
+        directory.shard(0x4000L) == 1
+        directory.shard(0xffffL) == 3
+        directory.shard(0x10000L) == -1
+        directory.shard(-1L) == -1
+        (0..3).collect { directory.format(it) } == [HashTable.Format.TRIE, HashTable.Format.CHAIN,
+                                                    HashTable.Format.CUCKOO, HashTable.Format.TRIE]
+        directory.length(2) == 2
+        directory.offset(0) == directory.size()
+        ShardedHashTable.Directory.read(directory.toBytes(), 0).toBytes() == directory.toBytes()
+    }
+
+    def "test ShardedHashTable.Reader.getInt"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keys.collect { (int) it * 2 }
+        def shards = new ShardedHashTable.Writer(shardBits, keyBits, writerFactory).dumpInts(keys as long[], values as int[])
+        def data = shards.toBytes()
+
+        expect:
+        data.length == shards.directory().totalSize()
+        assertReader_getInt(new ShardedHashTable.Reader(data), keys, values, keyRange, -1)
+        assertReader_getInt(new ShardedHashTable.LargeReader(SegmentedBytes.wrap(data)), keys, values, keyRange, -1)
+        new ShardedHashTable.Reader(data).getInt(1L << keyBits, -1) == -1
+
+        where:
+        shardBits | keyBits | keyRange | keyStep
+        1 | 14 | 0L..10000L | 7
+        4 | 14 | 0L..10000L | 3
+        4 | 20 | 0L..10000L | 1
+    }
+
+    def "test ShardedHashTable.Reader loads and evicts shards"() {
+        given:
+        def keys = (0L..4000L).step(5).collect { it }
+        def values = keys.collect { (int) it + 1 }
+        def shards = new ShardedHashTable.Writer(2, 12, writerFactory).dumpInts(keys as long[], values as int[])
+        def directory = ShardedHashTable.Directory.read(shards.directory().toBytes(), 0)
+        def loaded = []
+        def reader = new ShardedHashTable.Reader(directory, new ShardedHashTable.Loader<HashTable.Reader>() {
+            @Override
+            HashTable.Reader load(int shard) {
+                loaded << shard
+                def data = shards.shard(shard)
+                return directory.format(shard).reader(data, 0, data.length)
+            }
+        })
+
+        when:
+        def value = reader.getInt(1025L, -1)
+        then:
+        value == 1026
+        loaded == [1]
+        reader.isLoaded(1)
+        !reader.isLoaded(0)
+
+        when:
+        def evicted = reader.evict(1)
+        reader.getInt(1030L, -1)
+        then:
+        evicted != null
+        loaded == [1, 1]
+
+        when:
+        reader.setShard(3, new TrieHashTable.Reader(new TrieHashTable.Writer(HashTable.ValueSize.INT).dumpInts([3073L] as long[], [7] as int[])))
+        then:
+        reader.getInt(3073L, -1) == 7
+        reader.getInt(3075L, -1) == -1
+        loaded == [1, 1]
+    }
+
+    def "test ShardedHashTable.Writer rejects keys out of key bits"() {
+        when:
+        new ShardedHashTable.Writer(2, 8, writerFactory).dumpInts([1L, 256L] as long[], [1, 2] as int[])
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
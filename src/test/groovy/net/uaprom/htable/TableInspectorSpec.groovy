@@ -0,0 +1,104 @@
+package net.uaprom.htable
+
+
+class TableInspectorSpec extends BaseSpecification {
+    def "test TableInspector.inspect TrieHashTable"() {
+        given:
+        def htableWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        htableWriter.setTinyThreshold(0)
+
+        when:
+        def report = TableInspector.inspect(new TrieHashTable.Reader(htableWriter.dumpInts([0L, 13L, 159L], [1, 2, 3])))
+        then:
+        report.size == 25
+        report.numKeys == 3
+        report.headerBytes == 2
+        report.bitmaskBytes == 6
+        report.pointerBytes == 5
+        report.valueBytes == 12
+        report.levelNodes as List == [1, 2, 3]
+        report.hitLevels == 3.0
+    }
+
+    def "test TableInspector.inspect ChainHashTable"() {
+        given:
+        def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.INT, 1)
+        htableWriter.setTinyThreshold(0)
+
+        when:
+        def report = TableInspector.inspect(new ChainHashTable.Reader(htableWriter.dumpInts([0L, 5L, 8L, 11L], [13, 15, 18, 21])))
+        then:
+        report.numKeys == 4
+        report.pointerBytes == 4
+        report.keyBytes == 4
+        report.valueBytes == 16
+        report.bucketLengths as List == [1, 2, 1]
+        report.emptyBucketRatio == 0.25
+        // sampled keys of the table are not counted again
+        report.hitProbes == 1.25
+    }
+
+    def "test TableInspector.inspect CuckooHashTable"() {
+        given:
+        def htableWriter = new CuckooHashTable.Writer(HashTable.ValueSize.INT, 50)
+        htableWriter.setTinyThreshold(0)
+
+        when:
+        def report = TableInspector.inspect(new CuckooHashTable.Reader(htableWriter.dumpInts([0L, 5L, 8L, 11L], [13, 15, 18, 21])))
+        then:
+        report.numKeys == 4
+        report.parameters.numBuckets == 2
+        report.headerBytes == 10
+        report.fingerprintBytes == 8
+        report.keyBytes == 8
+        report.valueBytes == 32
+        report.hitLevels <= 2.0
+    }
+
+    def "test TableInspector.whatIf keeps entries"() {
+        given:
+        def keys = (0L..1000L).step(3).collect { it }
+        def values = keys.collect { intToBytes((int) it * 2) }
+        def reader = new TrieHashTable.Reader(new TrieHashTable.Writer(HashTable.ValueSize.INT).dump(keys, values))
+
+        when:
+        def estimates = TableInspector.whatIf(reader)
+        then:
+        estimates.size() == TableInspector.candidates(HashTable.ValueSize.INT).size()
+        estimates.every { it.report.numKeys == keys.size() }
+        estimates*.report*.size == estimates*.report*.size.sort(false)
+    }
+
+    def "test TableInspector.whatIf keeps float encoding"() {
+        given:
+        def keys = (0L..1000L).step(3).collect { it }
+        def values = keys.collect { (float) (it / 4) }
+        def htableWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        htableWriter.setFloatEncoding(HashTable.FloatEncoding.FLOAT16)
+        def reader = new TrieHashTable.Reader(htableWriter.dumpFloats(keys, values))
+
+        when:
+        def estimates = TableInspector.whatIf(reader)
+        then:
+        estimates.size() == TableInspector.candidates(HashTable.ValueSize.INT).size()
+        estimates.every { it.report.numKeys == keys.size() }
+        estimates.every { it.report.parameters.floatEncoding == HashTable.FloatEncoding.FLOAT16 }
+    }
+
+    def "test TableInspector.whatIf keeps dictionary encoding"() {
+        given:
+        def keys = (0L..1000L).step(3).collect { it }
+        def values = keys.collect { [7L, -1L, Long.MAX_VALUE][(int) (it % 9 / 3)] }
+        def htableWriter = new ChainHashTable.Writer(HashTable.ValueSize.LONG)
+        htableWriter.setMaxDictionarySize(16)
+        def reader = new ChainHashTable.Reader(htableWriter.dumpLongs(keys, values))
+
+        when:
+        def estimates = TableInspector.whatIf(reader)
+        then:
+        reader.valueSize() == HashTable.ValueSize.BYTE
+        estimates.size() == TableInspector.candidates(HashTable.ValueSize.LONG).size()
+        estimates.every { it.report.numKeys == keys.size() }
+        estimates.every { it.report.parameters.dictionarySize == 3 }
+    }
+}
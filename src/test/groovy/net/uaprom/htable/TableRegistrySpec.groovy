@@ -0,0 +1,61 @@
+package net.uaprom.htable
+
+
+class TableRegistrySpec extends BaseSpecification {
+    def "test TableRegistry releases replaced tables after their handles are closed"() {
+        given:
+        def released = []
+        def registry = new TableRegistry<String>({ released << it } as TableRegistry.Releaser)
+
+        when:
+        registry.publish("t", "v1")
+        def handle = registry.acquire("t")
+        def version = registry.publish("t", "v2")
+        then:
+        version == 2
+        handle.table() == "v1"
+        released == []
+
+        when:
+        handle.close()
+        handle.close()
+        then:
+        released == ["v1"]
+        registry.acquire("t").table() == "v2"
+    }
+
+    def "test TableRegistry.remove"() {
+        given:
+        def released = []
+        def registry = new TableRegistry<String>({ released << it } as TableRegistry.Releaser)
+        registry.publish("t", "v1")
+
+        expect:
+        registry.names() == ["t"] as Set
+        registry.remove("t")
+        !registry.remove("t")
+        registry.acquire("t") == null
+        registry.names().isEmpty()
+        released == ["v1"]
+    }
+
+    def "test TableRegistry swaps TrieHashTable readers"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        def keys = (0L..1000L).step(3).collect { it }
+        def registry = new TableRegistry<TrieHashTable.Reader>()
+
+        when:
+        def versions = (1..3).collect { v ->
+            registry.publish("t", new TrieHashTable.Reader(writer.dumpInts(keys, keys.collect { v })))
+        }
+        def handle = registry.acquire("t")
+        then:
+        versions == [1, 2, 3]
+        handle.version() == 3
+        keys.every { handle.table().getInt(it, -1) == 3 }
+
+        cleanup:
+        handle?.close()
+    }
+}
@@ -1,5 +1,11 @@
 package net.uaprom.htable
 
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+import net.uaprom.htable.TrieHashTable.BitmaskSize
+
 
 class TrieHashTableSpec extends BaseSpecification {
     def "test TrieHashTable.Writer.getLevels [valueSize: 4, bitmaskSize: 1]"() {
@@ -135,6 +141,7 @@ class TrieHashTableSpec extends BaseSpecification {
     def "test TrieHashTable.Writer.dump [valueSize: 1, bitmaskSize: 1]"() {
         given:
         def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.BYTE, TrieHashTable.BitmaskSize.BYTE)
+        hamtWriter.setTinyThreshold(0)
 
         expect:
         hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
@@ -151,6 +158,7 @@ class TrieHashTableSpec extends BaseSpecification {
     def "test TrieHashTable.Writer.dump [valueSize: 4, bitmaskSize: 1]"() {
         given:
         def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        hamtWriter.setTinyThreshold(0)
 
         expect:
         hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
@@ -199,6 +207,7 @@ class TrieHashTableSpec extends BaseSpecification {
     def "test TrieHashTable.Writer.dump [valueSize: 4, bitmaskSize: 2]"() {
         given:
         def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.SHORT)
+        hamtWriter.setTinyThreshold(0)
 
         expect:
         hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
@@ -232,6 +241,7 @@ class TrieHashTableSpec extends BaseSpecification {
     def "test TrieHashTable.Writer.dump [valueSize: 1, bitmaskSize: 4]"() {
         given:
         def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.BYTE, TrieHashTable.BitmaskSize.INT)
+        hamtWriter.setTinyThreshold(0)
 
         expect:
         hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
@@ -254,6 +264,7 @@ class TrieHashTableSpec extends BaseSpecification {
     def "test TrieHashTable.Writer.dump [valueSize: 1, bitmaskSize: 8]"() {
         given:
         def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.BYTE, TrieHashTable.BitmaskSize.LONG)
+        hamtWriter.setTinyThreshold(0)
 
         expect:
         hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
@@ -273,6 +284,111 @@ class TrieHashTableSpec extends BaseSpecification {
         ]
     }
 
+    def "test TrieHashTable.Writer.dump [valueSize: 4, levelBitmaskSizes: [1, 2]]"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(
+            HashTable.ValueSize.INT,
+            [TrieHashTable.BitmaskSize.BYTE, TrieHashTable.BitmaskSize.SHORT] as BitmaskSize[])
+        hamtWriter.setTinyThreshold(0)
+
+        expect:
+        hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
+
+        where:
+        keys | values | bytes
+        // keys: 0b000
+        [0L] | [[3, 0, 0, 0] as byte[]] | [
+            *shortToBytes((short) 0b000_00001_00_000_0_10),
+            0b0000_0001, 3, 0, 0, 0
+        ]
+        // keys: 0b0001_000
+        [8L] | [[3, 0, 0, 0] as byte[]] | [
+            *shortToBytes((short) 0b00_1_00010_00_001_0_10),
+            0b0000_0001, 1, 0,
+            0b0000_0010, 0b0000_0000, 8,
+            0b0000_0001, 3, 0, 0, 0
+        ]
+    }
+
+    def "test TrieHashTable.Writer.dump [bitmaskSize: 1, valueSize: 4] with path compression"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        hamtWriter.setTinyThreshold(0)
+        hamtWriter.setPathCompression(true)
+
+        expect:
+        hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
+
+        where:
+        keys | values | bytes
+        // keys: 0b001_000
+        [8L] | [[3, 0, 0, 0] as byte[]] | [
+            *shortToBytes((short) 0b00_1_00010_00_000_0_10),
+            0b0000_0010,
+            1, 1, 0b0000_0001, 3, 0, 0, 0
+        ]
+        // keys: 0b000_000_000_001, 0b000_000_000_010, 0b001_100_000_000
+        [1L, 2L, 0x300L] | [[1, 0, 0, 0] as byte[], [2, 0, 0, 0] as byte[], [3, 0, 0, 0] as byte[]] | [
+            *shortToBytes((short) 0b00_1_00100_00_000_0_10),
+            0b0000_0010,
+            0, 0b0000_0011, 7, 18,
+            2, 0, 0b0000_0110, 1, 0, 0, 0, 2, 0, 0, 0,
+            2, 0b100_000, 0b0000_0001, 3, 0, 0, 0
+        ]
+    }
+
+    def "test TrieHashTable.Reader.get with path compression"() {
+        given:
+        hamtWriter.setPathCompression(true)
+
+        when:
+        def keys = keyRange.step(keyStep).collect { it * keyMultiplier }
+        def values = keys.collect { intToBytes((int) it * 2) }
+        def reader = new TrieHashTable.Reader(hamtWriter.dump(keys, values))
+        then:
+        reader.pathCompression()
+        assertReader_get(reader, keys, values, keys.collect { [it - 1, it, it + 1] }.flatten(), defaultValue)
+
+        where:
+        hamtWriter | keyRange | keyStep | keyMultiplier | defaultValue
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..10000L | 7 | 1L | [0xff, 0xff, 0xff, 0xff] as byte[]
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 1L..1000L | 1 | 0x9E3779B97F4AL | [0xff, 0xff, 0xff, 0xff] as byte[]
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 1L..1000L | 3 | 0x9E3779B97F4AL | [0xff, 0xff, 0xff, 0xff] as byte[]
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 1L..1000L | 1 | 0x9E3779B97F4AL | [0xff, 0xff, 0xff, 0xff] as byte[]
+    }
+
+    def "test TrieHashTable.Reader.get with mixed bitmask sizes"() {
+        when:
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keyRange.step(keyStep).collect { intToBytes((int) it * 2) }
+        def reader = new TrieHashTable.Reader(hamtWriter.dump(keys, values))
+        then:
+        assertReader_get(reader, keys, values, keyRange, defaultValue)
+
+        where:
+        hamtWriter | keyRange | keyStep | defaultValue
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, [TrieHashTable.BitmaskSize.BYTE, TrieHashTable.BitmaskSize.LONG] as BitmaskSize[]) | 0L..100000L | 7 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 0L..100000L | 7 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.DEPTH) | 0L..100000L | 7 | [0xff, 0xff, 0xff, 0xff] as byte[]
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 1000L..1000000L | 997 | [0xff, 0xff, 0xff, 0xff] as byte[]
+    }
+
+    def "test TrieHashTable.Writer [objective: SIZE] is not larger than uniform bitmask sizes"() {
+        given:
+        def keys = (0L..200000L).step(keyStep).collect { it * it }
+        def values = keys.collect { intToBytes((int) it) }
+
+        when:
+        def size = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE).dump(keys, values).length
+        then:
+        TrieHashTable.BitmaskSize.values().every {
+            size <= new TrieHashTable.Writer(HashTable.ValueSize.INT, it).dump(keys, values).length
+        }
+
+        where:
+        keyStep << [1, 13, 1001]
+    }
+
     def "test TrieHashTable.Reader.exists"() {
         given:
         def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
@@ -385,4 +501,402 @@ class TrieHashTableSpec extends BaseSpecification {
         [1L] | [156] | -2
         1L..20L | 1..20 | -2
     }
+
+    def "test TrieHashTable.MultiReader.getInts"() {
+        given:
+        def htableWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+
+        when:
+        def tables = tablesKeys.collect { keys -> htableWriter.dumpInts(keys, keys.collect { (int) it * 2 }) }
+        def values = new int[tables.size()]
+        new TrieHashTable.MultiReader().getInts(
+            key,
+            tables as byte[][],
+            [0] * tables.size() as int[],
+            tables.collect { it.length } as int[],
+            -1,
+            values)
+        then:
+        values as List == expected
+
+        where:
+        tablesKeys | key || expected
+        [[1L, 5L], [5L], [], [2L, 300L]] | 5L || [10, 10, -1, -1]
+        [[1L, 5L], [5L], [], [2L, 300L]] | 300L || [-1, -1, -1, 600]
+        [(0L..1000L).collect { it }, [1000L]] | 1000L || [2000, 2000]
+    }
+
+    def "test TrieHashTable.Writer.dump into a stream"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keys.collect { intToBytes((int) it * 2) }
+        def out = new ByteArrayOutputStream()
+
+        when:
+        def size = writer.dump(keys as long[], values as byte[][], out)
+        then:
+        out.toByteArray() == writer.dump(keys, values)
+        size == out.size()
+
+        where:
+        writer | keyRange | keyStep
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..10000L | 7
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 0L..10000L | 7
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 0L..100L | 1
+    }
+
+    def "test TrieHashTable.LargeReader.getInt"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it }
+        def sink = new SegmentedBytes.Sink(segmentBits)
+        writer.dump(keys as long[], keys.collect { intToBytes((int) it * 2) } as byte[][], sink)
+
+        when:
+        def reader = new TrieHashTable.LargeReader(sink.toBytes())
+        then:
+        assertReader_getInt(reader, keys, keys.collect { (int) it * 2 }, keyRange, -1)
+
+        where:
+        writer | keyRange | keyStep | segmentBits
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..10000L | 7 | 4
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 0L..10000L | 7 | 10
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 0L..100L | 1 | 30
+    }
+
+    def "test TrieHashTable.Writer typed dumps write the same bytes as dump"() {
+        given:
+        def keys = (0L..3000L).step(3).collect { it }
+
+        expect:
+        writer.dumpShorts(keys, keys.collect { (short) it }) == writer.dump(keys, keys.collect { shortToBytes((short) it) })
+
+        where:
+        writer << [
+            new TrieHashTable.Writer(HashTable.ValueSize.SHORT),
+            new TrieHashTable.Writer(HashTable.ValueSize.SHORT, TrieHashTable.BitmaskSize.BYTE)
+        ]
+    }
+
+    def "test TrieHashTable.Writer.dumpLongs and dumpDoubles"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.LONG)
+        def keys = (0L..3000L).step(3).collect { it }
+
+        when:
+        def longsReader = new TrieHashTable.Reader(writer.dumpLongs(keys, keys.collect { it * -3L }))
+        def doublesReader = new TrieHashTable.Reader(writer.dumpDoubles(keys, keys.collect { it / 4.0d }))
+        then:
+        keys.every { longsReader.getLong(it, 0L) == it * -3L }
+        keys.every { doublesReader.getDouble(it, -1.0d) == it / 4.0d }
+    }
+
+    def "test TrieHashTable.Writer.dump into a ByteBuffer"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        def keys = keyRange.step(keyStep).collect { it }
+        def values = keys.collect { (int) it * 2 }
+        def expected = writer.dumpInts(keys, values)
+        def target = direct ? ByteBuffer.allocateDirect(expected.length + 10) : ByteBuffer.allocate(expected.length + 10)
+        target.position(3)
+
+        when:
+        def size = writer.dumpInts(keys as long[], values as int[], target)
+        def written = new byte[size]
+        target.position(3)
+        target.get(written)
+        then:
+        size == expected.length
+        written == expected
+        target.order() == ByteOrder.BIG_ENDIAN
+
+        where:
+        keyRange | keyStep | direct
+        0L..10000L | 7 | false
+        0L..10000L | 7 | true
+        0L..100L | 1 | true
+    }
+
+    def "test TrieHashTable.Writer.dump into a byte array"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        def keys = (0L..1000L).step(3).collect { it }
+        def values = keys.collect { intToBytes((int) it) }
+        def expected = writer.dump(keys, values)
+        def dst = new byte[expected.length + 5]
+
+        expect:
+        writer.dump(keys as long[], values as byte[][], dst, 5) == expected.length
+        dst[5..-1] == expected as List
+    }
+
+    def "test TrieHashTable.Writer.dump into a too small ByteBuffer"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        def keys = (0L..1000L).step(3).collect { it }
+        def target = ByteBuffer.allocate(writer.dumpInts(keys, keys.collect { (int) it }).length - 1)
+
+        when:
+        writer.dumpInts(keys as long[], keys.collect { (int) it } as int[], target)
+        then:
+        thrown(BufferOverflowException)
+        target.position() == 0
+    }
+
+    def "test TrieHashTable.Writer reusing scratch writes the same bytes"() {
+        given:
+        def writer = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        writer.setReuseScratch(true)
+        def fresh = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+
+        expect:
+        tablesKeys.every { keys ->
+            def values = keys.collect { (int) it * 3 }
+            writer.dumpInts(keys, values) == fresh.dumpInts(keys, values)
+        }
+
+        where:
+        tablesKeys << [
+            [(0L..10000L).step(7).collect { it }, [5L, 6L], [1L], (0L..100L).collect { it }],
+            [[1L << 40, 1L << 41], (0L..3000L).step(3).collect { it }, [2L]]
+        ]
+    }
+
+    def "test TrieHashTable.Writer.dump writes a tiny table"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+
+        expect:
+        hamtWriter.dumpInts(keys, values).collect { it & 0xff } == bytes.collect { it & 0xff }
+
+        where:
+        keys | values || bytes
+        [1L, 5L] | [2, 10] || [
+            *shortToBytes((short) 0b1_0000010_00_000_0_10),
+            1, 5,
+            2, 0, 0, 0, 10, 0, 0, 0
+        ]
+        [256L] | [13] || [
+            *shortToBytes((short) 0b1_0000001_00_001_0_10),
+            0, 1,
+            13, 0, 0, 0
+        ]
+    }
+
+    def "test tiny tables are read by all readers"() {
+        given:
+        def keys = (1L..40L).step(keyStep).collect { it * keyMultiplier }
+        def values = keys.collect { (int) it * 2 }
+        def data = new TrieHashTable.Writer(HashTable.ValueSize.INT).dumpInts(keys, values)
+        def probeKeys = keys.collect { [it - 1, it, it + 1] }.flatten()
+        def sink = new SegmentedBytes.Sink(4)
+        sink.write(data)
+
+        expect:
+        TinyTable.isTiny(data, 0, data.length)
+        assertReader_getInt(new TrieHashTable.Reader(data), keys, values, probeKeys, -1)
+        assertReader_getInt(new ChainHashTable.Reader(data), keys, values, probeKeys, -1)
+        assertReader_getInt(new TrieHashTable.LargeReader(sink.toBytes()), keys, values, probeKeys, -1)
+
+        where:
+        keyStep | keyMultiplier
+        7 | 1L
+        7 | 1000L
+        5 | 0x9E3779B97F4AL
+    }
+
+    def "test TrieHashTable.Writer.setTinyThreshold(0) disables tiny tables"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        hamtWriter.setTinyThreshold(0)
+
+        when:
+        def data = hamtWriter.dumpInts([1L, 5L], [2, 10])
+        then:
+        !TinyTable.isTiny(data, 0, data.length)
+        new TrieHashTable.Reader(data).numLevels() == 1
+    }
+
+    def "test TrieHashTable.Reader.get with cache line layout"() {
+        given:
+        hamtWriter.setCacheLineLayout(true)
+        hamtWriter.setPathCompression(pathCompression)
+
+        when:
+        def keys = keyRange.step(keyStep).collect { it * keyMultiplier }
+        def values = keys.collect { (int) it * 2 }
+        def data = hamtWriter.dumpInts(keys, values)
+        def reader = new TrieHashTable.Reader(data)
+        then:
+        assertReader_getInt(reader, keys, values, keys.collect { [it - 1, it, it + 1] }.flatten(), -1)
+        def out = new ByteArrayOutputStream()
+        hamtWriter.dump(keys as long[], values.collect { intToBytes(it) } as byte[][], out)
+        out.toByteArray() == data
+
+        where:
+        hamtWriter | keyRange | keyStep | keyMultiplier | pathCompression
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..100000L | 7 | 1L | false
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 1L..3000L | 1 | 0x9E3779B97F4AL | false
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 1L..3000L | 1 | 0x9E3779B97F4AL | true
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 0L..100000L | 13 | 1000L | true
+    }
+
+    def "test TrieHashTable.Writer.dump [bitmaskSize: 1, valueSize: 4] with relative pointers"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE)
+        hamtWriter.setTinyThreshold(0)
+        hamtWriter.setRelativePointers(true)
+
+        expect:
+        hamtWriter.dump(keys, values).collect { it & 0xff } == bytes
+
+        where:
+        keys | values | bytes
+        // keys: 0b000_001, 0b000_010, 0b001_000
+        [1L, 2L, 8L] | [[1, 0, 0, 0] as byte[], [2, 0, 0, 0] as byte[], [3, 0, 0, 0] as byte[]] | [
+            *shortToBytes((short) 0b00_1_00010_00_000_0_10),
+            0b0000_0100, 1,
+            0b0000_0011, 3, 12,
+            0b0000_0110, 1, 0, 0, 0, 2, 0, 0, 0,
+            0b0000_0001, 3, 0, 0, 0
+        ]
+    }
+
+    def "test TrieHashTable.Reader.get with relative pointers"() {
+        given:
+        hamtWriter.setRelativePointers(true)
+        hamtWriter.setCacheLineLayout(cacheLineLayout)
+        hamtWriter.setPathCompression(pathCompression)
+
+        when:
+        def keys = keyRange.step(keyStep).collect { it * keyMultiplier }
+        def values = keys.collect { (int) it * 2 }
+        def data = hamtWriter.dumpInts(keys, values)
+        def reader = new TrieHashTable.Reader(data)
+        then:
+        reader.relativePointers()
+        (1..<reader.numLevels()).every { reader.ptrSize(it) <= reader.ptrSize() }
+        assertReader_getInt(reader, keys, values, keys.collect { [it - 1, it, it + 1] }.flatten(), -1)
+        assertReader_getInt(new TrieHashTable.LargeReader(SegmentedBytes.wrap(data)), keys, values, keys.collect { [it - 1, it, it + 1] }.flatten(), -1)
+
+        where:
+        hamtWriter | keyRange | keyStep | keyMultiplier | cacheLineLayout | pathCompression
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..100000L | 7 | 1L | false | false
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 1L..3000L | 1 | 0x9E3779B97F4AL | false | true
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 1L..3000L | 1 | 0x9E3779B97F4AL | true | false
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 0L..100000L | 13 | 1000L | true | true
+    }
+
+    def "test TrieHashTable.Writer with relative pointers shortens lower level pointers"() {
+        given:
+        def keys = (0L..300000L).step(3).collect { it }
+        def values = keys.collect { (int) it }
+        def absoluteData = new TrieHashTable.Writer(HashTable.ValueSize.INT).dumpInts(keys, values)
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        hamtWriter.setRelativePointers(true)
+        def relativeData = hamtWriter.dumpInts(keys, values)
+
+        expect:
+        new TrieHashTable.Reader(absoluteData).ptrSize() == 3
+        new TrieHashTable.Reader(relativeData).ptrSize(1) < 3
+        relativeData.length < absoluteData.length
+    }
+
+    def "test TrieHashTable.Reader.get with a jump table"() {
+        given:
+        def keys = keyRange.step(keyStep).collect { it * keyMultiplier }
+        def values = keys.collect { (int) it * 2 }
+        def garbage = [0xff as byte] * 10 as byte[]
+        def data = hamtWriter.dumpInts(keys, values)
+
+        when:
+        def reader = new TrieHashTable.Reader([*garbage, *data] as byte[], garbage.length, data.length)
+        reader.setJumpTableBudget(budget)
+        then:
+        reader.jumpBits() == jumpBits
+        assertReader_getInt(reader, keys, values, keys.collect { [it - 1, it, it + 1] }.flatten(), -1)
+
+        where:
+        hamtWriter | keyRange | keyStep | keyMultiplier | budget || jumpBits
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..100000L | 7 | 1L | 1 << 10 || 8
+        new TrieHashTable.Writer(HashTable.ValueSize.INT) | 0L..100000L | 7 | 1L | 0 || 0
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.BitmaskSize.BYTE) | 1L..3000L | 1 | 0x9E3779B97F4AL | 1 << 16 || 12
+        new TrieHashTable.Writer(HashTable.ValueSize.INT, TrieHashTable.Objective.SIZE) | 0L..100000L | 13 | 1000L | 1 << 20 || 16
+    }
+
+    def "test TrieHashTable.Writer.dumpFloats with a float encoding"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        hamtWriter.setFloatEncoding(encoding)
+        def keys = (0L..30000L).step(7).collect { it }
+        def values = keys.collect { (float) ((it % 1000) / 10.0f) }
+        def sink = new SegmentedBytes.Sink(10)
+
+        when:
+        def data = hamtWriter.dumpFloats(keys, values)
+        sink.write(data)
+        def reader = new TrieHashTable.Reader(data)
+        def largeReader = new TrieHashTable.LargeReader(sink.toBytes())
+        def multiValues = new float[1]
+        then:
+        reader.floatEncoding() == encoding
+        reader.valueSize() == encoding.valueSize
+        data.length < new TrieHashTable.Writer(HashTable.ValueSize.INT).dumpFloats(keys, values).length
+        keys.indexed().every { i, key ->
+            def value = reader.getFloat(key, Float.NaN)
+            new TrieHashTable.MultiReader().getFloats(key, [data] as byte[][], [0] as int[], [data.length] as int[], Float.NaN, multiValues)
+            Math.abs(value - values[i]) <= maxError && largeReader.getFloat(key, Float.NaN) == value && multiValues[0] == value
+        }
+        reader.getFloat(1L, -1.0f) == -1.0f
+
+        where:
+        encoding | maxError
+        HashTable.FloatEncoding.FLOAT16 | 0.05f
+        HashTable.FloatEncoding.BFLOAT16 | 0.25f
+        HashTable.FloatEncoding.LINEAR8 | 0.2f
+        HashTable.FloatEncoding.LINEAR16 | 0.001f
+        HashTable.FloatEncoding.LOG8 | 1.0f
+        HashTable.FloatEncoding.LOG16 | 0.005f
+    }
+
+    def "test TrieHashTable.Writer.dumpFloats writes the value codec"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.INT)
+        hamtWriter.setFloatEncoding(HashTable.FloatEncoding.FLOAT16)
+
+        expect:
+        hamtWriter.dumpFloats([1L, 5L], [1.0f, -2.0f]).collect { it & 0xff } == [
+            *shortToBytes((short) 0b1_0000010_00_000_1_01),
+            1, 5,
+            0x00, 0x3c, 0x00, 0xc0,
+            1, *intToBytes(5)
+        ].collect { it & 0xff }
+    }
+
+    def "test TrieHashTable.Writer.setMaxDictionarySize"() {
+        given:
+        def hamtWriter = new TrieHashTable.Writer(HashTable.ValueSize.LONG)
+        hamtWriter.setMaxDictionarySize(maxDictionarySize)
+        def keys = (0L..30000L).step(3).collect { it }
+        def values = keys.collect { (it.intdiv(3) % cardinality) * 0x1_0000_0001L - 5L }
+        def sink = new SegmentedBytes.Sink()
+
+        when:
+        def data = hamtWriter.dumpLongs(keys, values)
+        sink.write(data)
+        def reader = new TrieHashTable.Reader(data)
+        def largeReader = new TrieHashTable.LargeReader(sink.toBytes())
+        then:
+        reader.valueSize() == valueSize
+        TableInspector.inspect(reader).parameters.dictionarySize == dictionarySize
+        assertReader_getLong(reader, keys, values, keys.collect { [it, it + 1] }.flatten(), -1L)
+        keys.indexed().every { i, key -> largeReader.getLong(key, -1L) == values[i] }
+
+        where:
+        maxDictionarySize | cardinality || valueSize | dictionarySize
+        0 | 3 || HashTable.ValueSize.LONG | null
+        256 | 3 || HashTable.ValueSize.BYTE | 3
+        256 | 256 || HashTable.ValueSize.BYTE | 256
+        1000 | 300 || HashTable.ValueSize.SHORT | 300
+        256 | 300 || HashTable.ValueSize.LONG | null
+    }
 }